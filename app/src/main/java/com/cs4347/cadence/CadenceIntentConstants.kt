@@ -5,6 +5,7 @@ package com.cs4347.cadence
 const val ACTION_UPDATE_STEPS_PER_MINUTE = "com.cadence.stepsChanged"
 const val ACTION_GET_STEPS_PER_MINUTE = "com.cadence.getStepsPerMinute"
 const val ACTION_SEND_STEPS_PER_MINUTE = "com.cadence.sendStepsPerMinute"
+const val ACTION_STEP_TAKEN = "com.cadence.stepTaken"
 
 const val ACTION_REQUEST_AUDIO_STATE = "com.cadence.requestAudioState"
 const val ACTION_AUDIO_STATE_UPDATED = "com.cadence.updateAudioState"
@@ -105,6 +105,8 @@ open class CadenceTrackerService : Service(),
     // Called when step sensor detects a step taken
     override fun step(timeNs: Long) {
         this.numSteps++
+        val stepNanoTime = toNanoTime(timeNs)
+        broadcastStepTime(stepNanoTime)
         val delta = if (lastStepTime != 0L) (timeNs - lastStepTime) else 0
         val prevDelta = lastStepDelta
         val factorChange = delta.toDouble() / prevDelta.toDouble()
@@ -122,6 +124,21 @@ open class CadenceTrackerService : Service(),
         sendBroadcast(Intent(ACTION_UPDATE_STEPS_PER_MINUTE).also {
             it.putExtra("STEPS_PER_MINUTE", getStepsPerMinute())
             it.putExtra("TOTAL_STEPS_TAKEN", getNumSteps())
+            it.putExtra("STEP_TIME_NS", stepNanoTime)
+        })
+    }
+
+    // Converts a step time from the step sensor's clock to the System.nanoTime clock, which audio
+    // timestamps use
+    private fun toNanoTime(timeNs: Long): Long {
+        val sensor = stepSensor ?: return System.nanoTime()
+        return System.nanoTime() - (sensor.getClockNs() - timeNs)
+    }
+
+    // Broadcasts the time of a footfall on the System.nanoTime clock
+    private fun broadcastStepTime(stepNanoTime: Long) {
+        sendBroadcast(Intent(ACTION_STEP_TAKEN).also {
+            it.putExtra("STEP_TIME_NS", stepNanoTime)
         })
     }
 
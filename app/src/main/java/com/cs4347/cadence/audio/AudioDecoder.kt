@@ -0,0 +1,38 @@
+package com.cs4347.cadence.audio
+
+import android.content.res.Resources
+import java.nio.ByteBuffer
+
+// AudioDecoder decodes the raw MP3 resource of a song variant into 16-bit stereo PCM at
+// SAMPLE_RATE.
+interface AudioDecoder {
+    // Decodes the song from the input byte index of its PCM and passes the PCM to sink. Returns
+    // true if the end of the song was reached, and false if sink stopped decoding early.
+    fun decode(song: LoadedSong, startIndex: Int, sink: PcmSink): Boolean
+}
+
+// Receives the PCM produced by an AudioDecoder
+interface PcmSink {
+    // Called before any PCM is written with the length of the song in bytes, which is exact if the
+    // song has a frame index and estimated from its duration otherwise
+    fun onLengthKnown(length: Int) {}
+
+    // Consumes the remaining bytes of buffer. Returns false to stop decoding.
+    fun write(buffer: ByteBuffer): Boolean
+}
+
+// Decoder backends that can be selected at runtime
+enum class AudioDecoderType {
+    // Hardware or platform software codec through MediaCodec
+    MEDIA_CODEC,
+
+    // Pure JVM decoder from javamp3
+    JAVA_MP3;
+
+    fun create(resources: Resources, frameIndexCache: Mp3FrameIndexCache): AudioDecoder {
+        return when (this) {
+            MEDIA_CODEC -> MediaCodecAudioDecoder(resources, frameIndexCache)
+            JAVA_MP3 -> JavaMp3AudioDecoder(resources, frameIndexCache)
+        }
+    }
+}
@@ -0,0 +1,94 @@
+package com.cs4347.cadence.audio
+
+import android.os.Process
+import android.util.Log
+import java.util.concurrent.CompletableFuture
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.LockSupport
+
+// AudioFeeder is a long-lived thread at audio priority that keeps the AudioTrack fed. It calls
+// feed, which writes one block in blocking mode, back to back, so writes are paced by the
+// AudioTrack draining its buffer. Changes to what is played are posted as actions through a
+// lock-free queue and run between blocks, so the thread never waits on the control thread, and
+// anything that may block, such as opening streams, is posted to the control thread instead. Songs
+// that have to be decoded are prepared before their streams are handed over, and reads never wait
+// on a decoder either: if one falls behind, silence is written in place of its audio. While feed
+// has nothing to write, the thread parks until woken or IDLE_POLL_MS passes.
+class AudioFeeder(
+    // Writes the next block, returning false if nothing could be written
+    private val feed: () -> Boolean
+) : Thread(THREAD_NAME) {
+    private val actions = ConcurrentLinkedQueue<Action<*>>()
+
+    @Volatile
+    private var isQuitting = false
+
+    override fun run() {
+        Process.setThreadPriority(Process.THREAD_PRIORITY_AUDIO)
+        while (!isQuitting) {
+            runActions()
+            if (!feed()) {
+                LockSupport.parkNanos(this, TimeUnit.MILLISECONDS.toNanos(IDLE_POLL_MS))
+            }
+        }
+        var action = actions.poll()
+        while (action != null) {
+            action.future.cancel(false)
+            action = actions.poll()
+        }
+        Log.d(TAG, "Stopped")
+    }
+
+    // Runs block on this thread before the next block of audio, and returns a future completed
+    // once it has run. The future is cancelled if the thread stops first.
+    fun <T> post(block: () -> T): CompletableFuture<T> {
+        val action = Action(block)
+        if (isQuitting) {
+            action.future.cancel(false)
+        } else {
+            actions.offer(action)
+            wake()
+        }
+        return action.future
+    }
+
+    // Signals that there may be audio to write, e.g. once playback starts
+    fun wake() {
+        LockSupport.unpark(this)
+    }
+
+    // Stops the thread after its current block. Actions not yet run are cancelled.
+    fun quit() {
+        isQuitting = true
+        wake()
+    }
+
+    private fun runActions() {
+        var action = actions.poll()
+        while (action != null) {
+            action.run()
+            action = actions.poll()
+        }
+    }
+
+    private class Action<T>(private val block: () -> T) {
+        val future = CompletableFuture<T>()
+
+        fun run() {
+            try {
+                future.complete(block())
+            } catch (e: Exception) {
+                future.completeExceptionally(e)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceAudioFeeder"
+        private const val THREAD_NAME = "CadenceAudioFeeder"
+
+        // Backstop for wakes that are missed, e.g. when the AudioTrack is resumed by the system
+        private const val IDLE_POLL_MS = 100L
+    }
+}
@@ -0,0 +1,80 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.exp
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+// BeatAnalyzer finds the beats of decoded songs whose tempo is known from the song library. It
+// places a grid at the song's BPM at the phase that lines up with the most of the song's onsets,
+// and lets each beat snap to the strongest nearby onset to follow small tempo drifts.
+object BeatAnalyzer {
+    private const val HOP_FRAMES = OnsetEnvelope.HOP_FRAMES
+
+    // Fraction of a beat period a beat may move from its predicted position to snap to an onset
+    private const val BEAT_TOLERANCE = 0.1
+
+    // Builds the beat grid of the 16-bit stereo PCM in samples, played at bpm
+    fun analyze(samples: ByteBuffer, bpm: Int): BeatGrid {
+        val envelope = OnsetEnvelope()
+        val pcm = samples.duplicate().order(ByteOrder.LITTLE_ENDIAN).asShortBuffer()
+        pcm.position(0)
+        envelope.add(pcm)
+        val onsets = envelope.toArray()
+        val period = 60.0 * SAMPLE_RATE / (bpm * HOP_FRAMES)
+        val phase = findPhase(onsets, period)
+        val beats = trackBeats(onsets, period, phase)
+        return BeatGrid(IntArray(beats.size) { beats[it] * HOP_FRAMES + HOP_FRAMES / 2 })
+    }
+
+    // Returns the offset in hops of the first beat, within one period, whose grid collects the
+    // most onset strength
+    private fun findPhase(onsets: FloatArray, period: Double): Int {
+        var bestPhase = 0
+        var bestScore = -1.0
+        for (phase in 0 until period.toInt()) {
+            var score = 0.0
+            var position = phase.toDouble()
+            while (position < onsets.size - 1) {
+                val hop = position.roundToInt()
+                // Allow a hop either side so rounding does not hide an onset
+                score += max(onsets[hop], max(onsets[max(hop - 1, 0)], onsets[min(hop + 1, onsets.size - 1)]))
+                position += period
+            }
+            if (score > bestScore) {
+                bestScore = score
+                bestPhase = phase
+            }
+        }
+        return bestPhase
+    }
+
+    // Walks the grid from the first beat, moving each beat to the onset near its predicted
+    // position that is strongest after weighting by its distance from the prediction
+    private fun trackBeats(onsets: FloatArray, period: Double, phase: Int): List<Int> {
+        val beats = ArrayList<Int>()
+        val tolerance = max(1, (period * BEAT_TOLERANCE).toInt())
+        var predicted = phase.toDouble()
+        while (predicted < onsets.size - 1) {
+            val center = predicted.roundToInt()
+            var beat = center
+            var bestWeight = 0.0
+            for (hop in max(center - tolerance, 0)..min(center + tolerance, onsets.size - 1)) {
+                val distance = (hop - predicted) / tolerance
+                val weight = onsets[hop] * exp(-2 * distance * distance)
+                if (weight > bestWeight) {
+                    bestWeight = weight
+                    beat = hop
+                }
+            }
+            if (beats.isEmpty() || beat > beats[beats.size - 1]) {
+                beats.add(beat)
+            }
+            // Follow the tracked beat halfway, so one misplaced onset does not shift the grid
+            predicted = (predicted + beat) / 2 + period
+        }
+        return beats
+    }
+}
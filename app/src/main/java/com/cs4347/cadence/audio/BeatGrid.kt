@@ -0,0 +1,53 @@
+package com.cs4347.cadence.audio
+
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.IOException
+import java.util.Arrays
+
+// BeatGrid holds the frame index of every beat of a song variant, in increasing order
+class BeatGrid(private val beatFrames: IntArray) {
+    val beatCount: Int
+        get() = beatFrames.size
+
+    fun getBeatFrame(beat: Int): Int {
+        return beatFrames[beat]
+    }
+
+    // Returns the first beat at or after the input frame, or -1 if there is none
+    fun getNextBeat(frame: Int): Int {
+        val index = Arrays.binarySearch(beatFrames, frame)
+        val beat = if (index >= 0) index else -index - 1
+        return if (beat < beatFrames.size) beat else -1
+    }
+
+    // Returns the last beat at or before the input frame, or -1 if there is none
+    fun getPreviousBeat(frame: Int): Int {
+        val index = Arrays.binarySearch(beatFrames, frame)
+        return if (index >= 0) index else -index - 2
+    }
+
+    fun writeTo(output: DataOutputStream) {
+        output.writeInt(FORMAT_VERSION)
+        output.writeInt(beatFrames.size)
+        for (frame in beatFrames) {
+            output.writeInt(frame)
+        }
+    }
+
+    companion object {
+        private const val FORMAT_VERSION = 1
+
+        fun readFrom(input: DataInputStream): BeatGrid {
+            val version = input.readInt()
+            if (version != FORMAT_VERSION) {
+                throw IOException("Unsupported beat grid version $version")
+            }
+            val beatFrames = IntArray(input.readInt())
+            for (i in beatFrames.indices) {
+                beatFrames[i] = input.readInt()
+            }
+            return BeatGrid(beatFrames)
+        }
+    }
+}
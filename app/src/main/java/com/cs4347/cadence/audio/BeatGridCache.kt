@@ -0,0 +1,153 @@
+package com.cs4347.cadence.audio
+
+import android.content.Context
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.util.concurrent.ConcurrentHashMap
+
+// BeatGridCache keeps the beat grids of song variants in memory and in app-private cache files
+// alongside the PcmCache, keyed by resource ID and APK version, so that each variant is analyzed
+// once. Variants are analyzed on the DecodeExecutor from their cached PCM. A variant whose PCM is
+// not cached yet is not probed again until the PcmCache reports that its PCM was committed.
+class BeatGridCache(
+    context: Context,
+    private val pcmCache: PcmCache,
+    private val executor: DecodeExecutor
+) {
+    private val directory = File(context.cacheDir, CACHE_DIRECTORY_NAME)
+
+    // Resource IDs are only stable within a single build of the APK
+    private val version: String = PcmCache.getApkVersion(context)
+
+    // Read without locking, since get is called from the audio feeder on every step
+    private val beatGrids = ConcurrentHashMap<Int, BeatGrid>()
+
+    // Variants whose PCM was not cached when they were last loaded, by resource ID
+    private val uncachedSongs = ConcurrentHashMap<Int, LoadedSong>()
+
+    // Resource IDs of the variants being loaded or analyzed
+    private val pendingResourceIds = HashSet<Int>()
+
+    // Resource IDs of the pending variants whose PCM was committed after their load started
+    private val recommittedResourceIds = HashSet<Int>()
+
+    init {
+        directory.mkdirs()
+        directory.listFiles()
+            ?.filter { !it.name.endsWith("_$version$CACHE_FILE_SUFFIX") }
+            ?.forEach { it.delete() }
+        pcmCache.onCommitted = this::onPcmCommitted
+    }
+
+    // Returns the beat grid of the input song, or null if it is not known yet. In that case the
+    // grid is loaded or analyzed in the background, unless the song's PCM is known not to be
+    // cached yet.
+    fun get(song: LoadedSong): BeatGrid? {
+        val beatGrid = beatGrids[song.resourceId]
+        if (beatGrid != null || uncachedSongs.containsKey(song.resourceId)) {
+            return beatGrid
+        }
+        schedule(song)
+        return null
+    }
+
+    // Returns the alignment between the input variants of a song, or null if the beat grid of
+    // either is not known yet or the grids do not match
+    fun getAlignment(from: LoadedSong, to: LoadedSong): VariantAlignment? {
+        val fromBeatGrid = get(from)
+        val toBeatGrid = get(to)
+        if (fromBeatGrid == null || toBeatGrid == null) {
+            return null
+        }
+        return VariantAlignment.create(fromBeatGrid, from.bpm, toBeatGrid, to.bpm)
+    }
+
+    @Synchronized
+    private fun schedule(song: LoadedSong) {
+        if (pendingResourceIds.add(song.resourceId)) {
+            executor.schedule(JobPriority.NEXT) { load(song) }
+        }
+    }
+
+    // Retries the variant once its PCM has been committed, whether by the PcmCacheWarmer or by a
+    // stream that decoded the whole song
+    @Synchronized
+    private fun onPcmCommitted(resourceId: Int) {
+        val song = uncachedSongs.remove(resourceId)
+        if (song != null) {
+            schedule(song)
+        } else if (pendingResourceIds.contains(resourceId)) {
+            recommittedResourceIds.add(resourceId)
+        }
+    }
+
+    private fun load(song: LoadedSong) {
+        var beatGrid: BeatGrid? = null
+        try {
+            beatGrid = read(song) ?: analyze(song)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to load the beat grid of ${song.name} at ${song.bpm} BPM", e)
+        } finally {
+            synchronized(this) {
+                pendingResourceIds.remove(song.resourceId)
+                val isRecommitted = recommittedResourceIds.remove(song.resourceId)
+                if (beatGrid != null) {
+                    beatGrids[song.resourceId] = beatGrid
+                } else if (isRecommitted) {
+                    schedule(song)
+                } else {
+                    // A variant that failed is also only retried once its PCM is cached again
+                    uncachedSongs[song.resourceId] = song
+                }
+            }
+        }
+    }
+
+    private fun read(song: LoadedSong): BeatGrid? {
+        val file = getFile(song.resourceId)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            DataInputStream(FileInputStream(file).buffered()).use { BeatGrid.readFrom(it) }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to read ${file.name}", e)
+            file.delete()
+            null
+        }
+    }
+
+    private fun analyze(song: LoadedSong): BeatGrid? {
+        val samples = pcmCache.map(song.resourceId) ?: return null
+        val startTime = System.currentTimeMillis()
+        val beatGrid = BeatAnalyzer.analyze(samples, song.bpm)
+        Log.d(
+            TAG,
+            "Found ${beatGrid.beatCount} beats in ${song.name} at ${song.bpm} BPM in ${System.currentTimeMillis() - startTime} ms"
+        )
+        val tempFile = File.createTempFile("${song.resourceId}_", TEMP_FILE_SUFFIX, directory)
+        try {
+            DataOutputStream(FileOutputStream(tempFile).buffered()).use { beatGrid.writeTo(it) }
+            tempFile.renameTo(getFile(song.resourceId))
+        } finally {
+            tempFile.delete()
+        }
+        return beatGrid
+    }
+
+    private fun getFile(resourceId: Int): File {
+        return File(directory, "${resourceId}_$version$CACHE_FILE_SUFFIX")
+    }
+
+    companion object {
+        private const val TAG = "CadenceBeatGridCache"
+        private const val CACHE_DIRECTORY_NAME = "beats"
+        private const val CACHE_FILE_SUFFIX = ".beats"
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+    }
+}
@@ -0,0 +1,73 @@
+package com.cs4347.cadence.audio
+
+import kotlin.math.abs
+import kotlin.math.floor
+
+// BeatPhaseLock nudges the playback rate so that beats land on footfalls. Each footfall's phase
+// error is how far, in beats, it falls after the nearest beat being heard. The rate is corrected
+// in proportion to the smoothed error, plus its running sum, which absorbs the small difference
+// left between the cadence and the tempo of the music, within MAX_RATE_CORRECTION so that the
+// change in pitch stays subtle. Steps on every other beat of double time music lock the same way.
+class BeatPhaseLock {
+    // Fraction the playback rate is sped up by, negative to slow it down
+    @Volatile
+    var rateCorrection = 0.0
+        private set
+
+    // Phase error of the last footfall in beats, from -0.5 to 0.5, or NaN before the first
+    @Volatile
+    var lastPhaseError = Double.NaN
+        private set
+
+    // Moving average of the absolute phase error in beats, or NaN before the first footfall
+    @Volatile
+    var meanAbsolutePhaseError = Double.NaN
+        private set
+
+    private var smoothedPhaseError = 0.0
+
+    // Rate correction accumulated from past phase errors
+    private var integratedCorrection = 0.0
+
+    // Updates the rate correction with a footfall at beatPhase, the fraction of the beat being
+    // heard that had passed when the foot landed
+    @Synchronized
+    fun onStep(beatPhase: Double) {
+        val phaseError = beatPhase - floor(beatPhase + 0.5)
+        lastPhaseError = phaseError
+        meanAbsolutePhaseError = if (meanAbsolutePhaseError.isNaN()) {
+            abs(phaseError)
+        } else {
+            meanAbsolutePhaseError + METRIC_SMOOTHING * (abs(phaseError) - meanAbsolutePhaseError)
+        }
+        smoothedPhaseError += ERROR_SMOOTHING * (phaseError - smoothedPhaseError)
+        // Footfalls after the beat mean the music is ahead, so it is slowed down
+        integratedCorrection = (integratedCorrection - INTEGRAL_GAIN * phaseError)
+            .coerceIn(-MAX_RATE_CORRECTION, MAX_RATE_CORRECTION)
+        rateCorrection = (integratedCorrection - GAIN * smoothedPhaseError)
+            .coerceIn(-MAX_RATE_CORRECTION, MAX_RATE_CORRECTION)
+    }
+
+    // Drops the correction, e.g. when the AudioTrack is recreated
+    @Synchronized
+    fun reset() {
+        smoothedPhaseError = 0.0
+        integratedCorrection = 0.0
+        rateCorrection = 0.0
+    }
+
+    companion object {
+        // Rate correction per beat of smoothed phase error
+        private const val GAIN = 0.08
+
+        // Rate correction accumulated per beat of phase error at each footfall
+        private const val INTEGRAL_GAIN = 0.004
+        private const val MAX_RATE_CORRECTION = 0.02
+
+        // Weight of each footfall in the smoothed error, to ride out step detection jitter
+        private const val ERROR_SMOOTHING = 0.3
+
+        // Weight of each footfall in meanAbsolutePhaseError
+        private const val METRIC_SMOOTHING = 0.1
+    }
+}
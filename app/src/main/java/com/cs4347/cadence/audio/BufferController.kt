@@ -0,0 +1,168 @@
+package com.cs4347.cadence.audio
+
+import android.media.AudioTrack
+import android.util.Log
+import java.io.PrintWriter
+import kotlin.math.max
+import kotlin.math.min
+
+// BufferController sizes the AudioTrack's buffer at runtime, within bounds, for the least latency
+// that plays without glitches on the device. The AudioTrack is built with room for maxMs, and the
+// buffer in use is set through setBufferSizeInFrames, which the feeder's blocking writes then keep
+// full. The buffer is doubled on every underrun. The least audio queued before each write shows
+// how close the feeder came to running dry: the buffer is grown by a step as soon as that drops
+// under a quarter of the buffer, and shrunk by a step when it stays above half the buffer for a
+// whole SHRINK_WINDOW_MS. The feeder writes blocks of a quarter of the buffer, so changes to what
+// is played wait for at most that long. Buffer and blocks are rounded up to whole bursts of the
+// output format. Bounds raised past the capacity of the AudioTrack only take effect once it is
+// rebuilt.
+class BufferController(minMs: Int, maxMs: Int) {
+    @Volatile
+    var minMs = minMs
+        private set
+
+    @Volatile
+    var maxMs = maxMs
+        private set
+
+    // Buffer in use, in ms of audio
+    @Volatile
+    var targetMs = INITIAL_TARGET_MS.coerceIn(minMs, maxMs)
+        private set
+
+    // Number of times targetMs was grown and shrunk
+    @Volatile
+    var growCount = 0
+        private set
+
+    @Volatile
+    var shrinkCount = 0
+        private set
+
+    // Format the AudioTrack plays at
+    @Volatile
+    var outputFormat = OutputFormat(SAMPLE_RATE, 1)
+
+    // Bytes of song PCM, at SAMPLE_RATE, the feeder writes at a time. Once resampled to the output
+    // format, a block is a whole number of bursts, give or take a frame.
+    val blockBytes: Int
+        get() {
+            val blockMs = (targetMs / BLOCKS_PER_BUFFER).coerceIn(MIN_BLOCK_MS, MAX_BLOCK_MS)
+            val outputFrames = toBurstFrames(blockMs)
+            return (outputFrames.toLong() * SAMPLE_RATE / outputFormat.sampleRate).toInt() * BYTES_PER_FRAME
+        }
+
+    // Least audio queued before a write in the current window, in ms
+    private var minQueuedMs = Int.MAX_VALUE
+
+    private var windowStartTime = 0L
+
+    // Whether the AudioTrack is filling up after being started or flushed, during which the
+    // queued audio says nothing about headroom
+    private var isFilling = true
+
+    private var lastUnderrunCount = 0
+
+    // Total capacity to build the AudioTrack with
+    fun getCapacityBytes(): Int {
+        return toBurstFrames(maxMs) * BYTES_PER_FRAME
+    }
+
+    // Changes the bounds, e.g. through onStartCommand. The target is moved within them.
+    @Synchronized
+    fun setBounds(minMs: Int, maxMs: Int) {
+        this.minMs = max(minMs, 1)
+        this.maxMs = max(maxMs, this.minMs)
+        targetMs = targetMs.coerceIn(this.minMs, this.maxMs)
+    }
+
+    // Applies the target to a newly built AudioTrack
+    fun apply(track: AudioTrack) {
+        lastUnderrunCount = 0
+        onRestart()
+        setBufferSize(track)
+    }
+
+    // Called once the AudioTrack is flushed or started from empty
+    fun onRestart() {
+        isFilling = true
+        minQueuedMs = Int.MAX_VALUE
+    }
+
+    // Called by the feeder before each write with the audio queued in the AudioTrack
+    fun onWrite(queuedMs: Int, now: Long) {
+        if (isFilling) {
+            if (queuedMs < targetMs * 3 / 4) {
+                return
+            }
+            isFilling = false
+            windowStartTime = now
+        }
+        minQueuedMs = min(minQueuedMs, queuedMs)
+    }
+
+    // Called periodically by the feeder. Adjusts the AudioTrack's buffer size to the underruns and
+    // queued audio seen since the last check, and returns whether it was changed.
+    @Synchronized
+    fun onCheck(track: AudioTrack, now: Long): Boolean {
+        val underrunCount = track.underrunCount
+        val underruns = underrunCount - lastUnderrunCount
+        lastUnderrunCount = underrunCount
+        if (underruns > 0) {
+            Log.w(TAG, "AudioTrack underran $underruns times with a $targetMs ms buffer")
+        }
+        val isWindowOver = now - windowStartTime >= SHRINK_WINDOW_MS
+        val newTargetMs = when {
+            underruns > 0 -> targetMs * 2
+            isFilling -> targetMs
+            // A near miss grows the buffer straight away
+            minQueuedMs < targetMs / 4 -> targetMs + STEP_MS
+            isWindowOver && minQueuedMs > targetMs / 2 -> targetMs - STEP_MS
+            else -> targetMs
+        }.coerceIn(minMs, maxMs)
+        if (isWindowOver || newTargetMs != targetMs) {
+            minQueuedMs = Int.MAX_VALUE
+            windowStartTime = now
+        }
+        if (newTargetMs == targetMs) {
+            return false
+        }
+        if (newTargetMs > targetMs) growCount++ else shrinkCount++
+        targetMs = newTargetMs
+        setBufferSize(track)
+        return true
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println(
+            "AudioTrack buffer: $targetMs ms in [$minMs, $maxMs] ms, grown $growCount times, shrunk $shrinkCount times, " +
+                    "output at ${outputFormat.sampleRate} Hz in bursts of ${outputFormat.framesPerBurst} frames"
+        )
+    }
+
+    private fun setBufferSize(track: AudioTrack) {
+        val frames = track.setBufferSizeInFrames(toBurstFrames(targetMs))
+        Log.d(
+            TAG,
+            "AudioTrack buffer set to ${frames * 1000 / outputFormat.sampleRate} ms for a target of $targetMs ms"
+        )
+    }
+
+    // Output frames in the input number of ms, rounded up to whole bursts
+    private fun toBurstFrames(ms: Int): Int {
+        val format = outputFormat
+        val frames = ms * format.sampleRate / 1000
+        return (frames + format.framesPerBurst - 1) / format.framesPerBurst * format.framesPerBurst
+    }
+
+    companion object {
+        private const val TAG = "CadenceBufferControl"
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+        private const val INITIAL_TARGET_MS = 120
+        private const val STEP_MS = 10
+        private const val SHRINK_WINDOW_MS = 10000L
+        private const val BLOCKS_PER_BUFFER = 4
+        private const val MIN_BLOCK_MS = 5
+        private const val MAX_BLOCK_MS = 40
+    }
+}
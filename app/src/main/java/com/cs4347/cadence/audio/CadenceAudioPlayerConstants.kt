@@ -11,4 +11,64 @@ const val BUFFER_SIZE_BYTES = BUFFER_SIZE_SECONDS * BYTES_PER_SECOND
 const val MIN_BPM_CHECK_INTERVAL = 1000
 const val MIN_INTERVAL_BETWEEN_SONG_CHANGE = 20000
 const val SONG_CHANGE_TRESHOLD_FACTOR = 2
-const val SECONDS_TO_LOAD_SONG_SET = 20
\ No newline at end of file
+const val SECONDS_TO_LOAD_SONG_SET = 20
+// Time before the end of the current song at which the next song set's stream is prepared
+const val NEXT_SONG_SET_PREPARE_MS = 8000
+// Bounds of the AudioTrack buffer, which is sized at runtime by a BufferController
+const val MIN_TRACK_BUFFER_MS = 20
+const val MAX_TRACK_BUFFER_MS = 500
+// Interval between the audio feeder's prefetch, timestamp and underrun checks
+const val PLAYBACK_CHECK_INTERVAL_MS = 500L
+// Blocks read across the end of a stream's ring buffer are written in two parts
+const val STREAM_BUFFER_SECONDS = 6
+const val STREAM_BUFFER_BYTES = STREAM_BUFFER_SECONDS * BYTES_PER_SECOND
+const val PREBUFFER_BYTES = BUFFER_SIZE_BYTES
+const val PREBUFFER_TIMEOUT_MS = 10000L
+// Interval at which a song set load checks whether a later cadence update has superseded it
+const val LOAD_CANCEL_CHECK_MS = 50L
+// Time the service waits for each of its threads to stop when it is destroyed
+const val THREAD_JOIN_TIMEOUT_MS = 2000L
+// Time a MediaCodec may go without calling back before its decode is abandoned
+const val CODEC_STALL_TIMEOUT_MS = 5000L
+const val PCM_CACHE_MAX_BYTES = 1024L * 1024 * 1024
+const val CADENCE_TREND_SAMPLES = 10
+const val MAX_PREDICTED_BPM_CHANGE = 15
+// Variants of the current and next song sets whose memory mappings are kept
+const val MAPPED_SONG_CACHE_MAX_SONGS = 6
+const val MAX_POOLED_STREAM_BUFFERS = 3
+val DEFAULT_AUDIO_DECODER_TYPE = AudioDecoderType.MEDIA_CODEC
+val DEFAULT_TEMPO_MODE = TempoMode.TIME_STRETCH
+// Range of tempo ratios a song is time-stretched within
+const val MIN_TEMPO = 0.8
+const val MAX_TEMPO = 1.25
+// Beats of the outgoing song the next song set's song fades in over. 0 cuts straight over.
+const val CROSSFADE_BEATS = 4
+// Length of the fade that smooths over a switch between variants of a song
+const val VARIANT_CROSSFADE_MS = 50
+// Audio written, past the point a variant switch was asked for, before the beat it switches on
+// when the new variant has to be decoded, to cover preparing its stream
+const val VARIANT_SWITCH_LEAD_MS = 500
+// Confidence a tempo estimate needs for its song to be selected by it
+const val MIN_TEMPO_CONFIDENCE = 0.5
+// Typical delay of Bluetooth A2DP output beyond what AudioTrack timestamps report
+const val BLUETOOTH_OUTPUT_LATENCY_MS = 150
+// Whether steady stretches are played offloaded to the audio DSP, selectable through onStartCommand
+const val DEFAULT_OFFLOAD_ENABLED = true
+// Time the playing song must have followed the cadence at its own tempo before it is offloaded
+const val OFFLOAD_STEADY_MS = 10000L
+// Largest difference from the song's own tempo, and largest phase lock rate correction, at which
+// the song is played offloaded at its own tempo
+const val OFFLOAD_MAX_TEMPO_ERROR = 0.02
+const val OFFLOAD_MAX_RATE_CORRECTION = 0.005
+// Least audio before the next song fades in that is worth offloading
+const val OFFLOAD_MIN_MS = 20000
+// Audio before the next song fades in that is left to the PCM engine, to prepare the crossfade
+const val OFFLOAD_END_MARGIN_MS = 3000
+// How far past the audio written so far offloaded playback starts, to cover opening it on the
+// control thread while the PCM engine keeps playing
+const val OFFLOAD_HANDOVER_LEAD_MS = 300
+// Offloaded audio left unplayed when the PCM engine starts taking back over at its end
+const val OFFLOAD_LEAVE_MS = 2000
+// How far past the offloaded frame being played the PCM engine's stream is prepared from when it
+// takes back over, to cover preparing the stream while the offloaded audio keeps playing
+const val OFFLOAD_HANDBACK_LEAD_MS = 300
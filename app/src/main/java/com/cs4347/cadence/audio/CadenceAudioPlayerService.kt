@@ -9,27 +9,33 @@ import android.content.BroadcastReceiver
 import android.content.Context
 import android.content.Intent
 import android.content.IntentFilter
-import android.content.res.AssetFileDescriptor
 import android.graphics.Color
 import android.media.*
+import android.os.BatteryManager
 import android.os.Binder
 import android.os.Build
 import android.os.IBinder
+import android.os.PowerManager
+import android.os.SystemClock
 import android.util.Log
 import androidx.annotation.RequiresApi
 import com.cs4347.cadence.*
 import com.cs4347.cadence.musicPlayer.SongSelector
-import com.cs4347.cadence.util.PrioLock
+import com.cs4347.cadence.musicPlayer.TimeShiftedSong
 import com.cs4347.cadence.voice.SpeechAdapter
 import com.cs4347.cadence.voice.SpeechHandler
 import com.cs4347.cadence.voice.VoiceCommandAdapter
+import java.io.FileDescriptor
+import java.io.PrintWriter
 import java.nio.ByteBuffer
-import java.util.concurrent.CompletableFuture
+import java.util.concurrent.CancellationException
+import java.util.concurrent.atomic.AtomicReference
+import java.util.concurrent.locks.LockSupport
 import kotlin.math.abs
+import kotlin.math.max
 import kotlin.math.min
 import kotlin.math.round
 import kotlin.math.roundToInt
-import kotlin.properties.Delegates
 
 // CadenceAudioPlayerService handles Audio Playback
 class CadenceAudioPlayerService : Service() {
@@ -42,16 +48,55 @@ class CadenceAudioPlayerService : Service() {
     // AudioTrack API used for playback
     private var audioTrack: AudioTrack? = null
 
+    // Converts the songs' PCM to audioTrack's sample rate. Only used on the audio feeder.
+    private var outputResampler = OutputResampler(SAMPLE_RATE)
+
+    private val audioAttributes = AudioAttributes.Builder()
+        .setUsage(AudioAttributes.USAGE_MEDIA)
+        .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
+        .setLegacyStreamType(AudioManager.STREAM_MUSIC)
+        .build()
+
+    // Plays the current song through the audio DSP during steady stretches, or null while the PCM
+    // engine plays it. Only changed on the audio feeder.
+    @Volatile
+    private var offloadPlayer: OffloadPlayer? = null
+
+    // System.nanoTime at which the audio queued in audioTrack before offloadPlayer's will have
+    // played, or 0 once offloadPlayer is playing
+    private var offloadHandoverTimeNs = 0L
+
+    // Whether steady stretches are offloaded, selectable through onStartCommand
+    @Volatile
+    private var isOffloadEnabled = DEFAULT_OFFLOAD_ENABLED
+
+    // Song that could not be opened for offloaded playback, so it is not tried again while it
+    // plays. Set on the control thread, which opens offloaded playback.
+    @Volatile
+    private var unoffloadableSong: LoadedSong? = null
+
+    // Whether the control thread has been asked to open offloaded playback and has not finished
+    @Volatile
+    private var isOffloadRequested = false
+
+    // Uptime since which every accepted cadence could be followed by the current song at its own
+    // tempo, or 0 if the last one could not
+    @Volatile
+    private var playableAsIsSince = 0L
+
+    // CPU time and battery drain in each playback mode, dumped through dumpsys
+    private lateinit var playbackModeStats: PlaybackModeStats
+
     // songLibrary determines which song set to play
     private val songLibrary = SongSelector()
 
     // The current loaded song set
-    private var currentSongSet by Delegates.observable<LoadedTimeShiftedSongSet?>(null) { _, _, _ ->
-        broadcastState()
-    }
+    @Volatile
+    private var currentSongSet: LoadedTimeShiftedSongSet? = null
 
     // lastAudioTrackIndex is the index of the last byte written to audioTrack relative to the first
-    // byte written after the audioTrack was last flushed
+    // byte written after the audioTrack was last flushed. Unlike the indices of songs, it counts
+    // audio at audioTrack's sample rate.
     private var lastAudioTrackIndex = 0
 
     // curWritingIndex is the start index in the current song of the next buffer to be written to the
@@ -59,24 +104,139 @@ class CadenceAudioPlayerService : Service() {
     private var curWritingIndex = 0
 
     // The currently playing song
-    private var currentSong by Delegates.observable<LoadedSong?>(null) { _, _, _ ->
-        broadcastState()
-    }
+    @Volatile
+    private var currentSong: LoadedSong? = null
+
+    // PCM stream of the currently playing song
+    @Volatile
+    private var currentStream: SongStream? = null
+
+    // Change to make once currentStream has been written up to a given index. Only changed on the
+    // audio feeder.
+    @Volatile
+    private var scheduledChange: ScheduledChange? = null
+
+    // The next song set, prepared by the control thread for the audio feeder to take at the end of
+    // the current song
+    private val nextSongSet = AtomicReference<PreparedSongSet?>(null)
+
+    // Decoded songs persisted across song set changes and launches
+    private lateinit var pcmCache: PcmCache
+
+    // Mappings of recently played songs' cached PCM
+    private val mappedSongCache = MappedSongCache(MAPPED_SONG_CACHE_MAX_SONGS)
+
+    // Frame indices of the raw MP3s, used by decoders to start decoding mid-song
+    private lateinit var frameIndexCache: Mp3FrameIndexCache
+
+    // Decoder backend used for new streams, selectable through onStartCommand
+    @Volatile
+    private lateinit var audioDecoder: AudioDecoder
+
+    // Recycles the off-heap storage of decoding streams between song sets
+    private val pcmBufferPool = PcmBufferPool(STREAM_BUFFER_BYTES, MAX_POOLED_STREAM_BUFFERS)
+
+    // How the tempo of the playing song follows the cadence, selectable through onStartCommand.
+    // Varispeed is used in battery saver mode, since it needs the least CPU.
+    @Volatile
+    private lateinit var tempoMode: TempoMode
+
+    // Beats over which the next song set's song fades in, selectable through onStartCommand
+    @Volatile
+    private var crossfadeBeats = CROSSFADE_BEATS
+
+    // Runs background decoding separately from the playback path
+    private val decodeExecutor = DecodeExecutor()
+
+    // Decodes the variants that are not playing into pcmCache in the background
+    private lateinit var cacheWarmer: PcmCacheWarmer
 
-    // Mutex used to prevent race conditions between onPeriodicCallback and bpmChanged
-    private var bufferMutex = PrioLock()
+    // Beat grids of the cached variants, used to switch variants on a beat
+    private lateinit var beatGridCache: BeatGridCache
+
+    // Estimates the tempo of library songs, so that songs without a BPM in their name can be played
+    private lateinit var tempoAnalyzer: SongTempoAnalyzer
+
+    // Recently received steps per minute, used to predict the next song set
+    private val cadenceTrend = CadenceTrend()
+
+    // Song positions written to the AudioTrack, used to find the beat being heard at a footfall
+    private val playbackMap = PlaybackMap()
+
+    // Nudges the playback rate so that beats land on footfalls
+    private val phaseLock = BeatPhaseLock()
+
+    // Reused for AudioTrack.getTimestamp. Only used on the audio feeder.
+    private val audioTimestamp = AudioTimestamp()
+
+    // Time each cadence update takes to be heard, dumped through dumpsys
+    private val latencyRecorder = StepLatencyRecorder()
+
+    // Output latency not covered by AudioTrack timestamps, selectable through onStartCommand.
+    // Estimated from the output device if null.
+    @Volatile
+    private var outputLatencyMs: Int? = null
+
+    // Opens the next song set's stream ahead of the song boundary
+    private val songPrefetcher =
+        SongSetPrefetcher(songLibrary, this::createSongSet, this::selectTrack) {
+            openNewStream(it, 0, JobPriority.NEXT)
+        }
+
+    // Handles cadence updates and playback controls one at a time. Changes to what is played are
+    // handed to audioFeeder, which owns the playing stream, audioTrack and the write indices, and
+    // are run between blocks of audio.
+    private val controlLoop = ControlLoop(this::handleCommand, this::onCommandSuperseded)
+
+    // State of the control plane, only changed on the control thread
+    @Volatile
+    private var state = PlayerState.IDLE
+        set(value) {
+            if (field != value) {
+                field = value
+                if (value == PlayerState.PLAYING || value == PlayerState.SWITCHING) {
+                    playbackModeStats.onModeChanged(
+                        if (offloadPlayer != null) PlaybackMode.OFFLOAD else PlaybackMode.PCM
+                    )
+                } else {
+                    playbackModeStats.onModeChanged(null)
+                }
+                broadcastState()
+            }
+        }
+
+    // Writes the current stream to audioTrack block by block while it is playing
+    private val audioFeeder = AudioFeeder(this::feedAudio)
+
+    // Uptime at which the audio feeder last checked on playback
+    private var lastPlaybackCheckTime: Long = 0
+
+    // Direct buffer of silence written in place of audio a decoder has fallen behind on. Only used
+    // on the audio feeder.
+    private var silenceBuffer: ByteBuffer? = null
+
+    // Whether the playing stream had nothing to read at the last write, and the number of times it
+    // has run dry
+    private var isStreamStarved = false
+
+    @Volatile
+    private var streamUnderrunCount = 0
+
+    // Sizes audioTrack's buffer and the feeder's blocks to the device, within bounds selectable
+    // through onStartCommand
+    private val bufferController = BufferController(MIN_TRACK_BUFFER_MS, MAX_TRACK_BUFFER_MS)
 
     // Timestamp of the last time bpmChanged was called.
     private var lastBpmChangeTime: Long = 0
 
+    // System.nanoTime at which the first cadence update dropped since the last accepted one was
+    // received, or 0 if none were dropped
+    private var firstThrottledTimeNs: Long = 0
+
     // Timestamp of the last time the last song set was loaded
+    @Volatile
     private var lastSongChangeTime: Long = 0
 
-    // Boolean representing whether the service is currently decoding a new song set
-    private var isLoading: Boolean by Delegates.observable(false) { _, _, _ ->
-        broadcastState()
-    }
-
     // Handlers for messages received from Broadcasts API
     private var broadcastReceivers: MutableList<BroadcastReceiver> = ArrayList()
 
@@ -94,7 +254,26 @@ class CadenceAudioPlayerService : Service() {
         channelId = getNewChannelId()
         mSpeechHandler = SpeechHandler(this)
         voiceAdapter = VoiceCommandAdapter(this)
+        pcmCache = PcmCache(this)
+        frameIndexCache = Mp3FrameIndexCache(resources)
+        playbackModeStats = PlaybackModeStats(getSystemService(Context.BATTERY_SERVICE) as BatteryManager)
+        val powerManager = getSystemService(Context.POWER_SERVICE) as PowerManager
+        tempoMode = if (powerManager.isPowerSaveMode) TempoMode.VARISPEED else DEFAULT_TEMPO_MODE
+        audioDecoder = DEFAULT_AUDIO_DECODER_TYPE.create(resources, frameIndexCache)
+        beatGridCache = BeatGridCache(this, pcmCache, decodeExecutor)
+        cacheWarmer = PcmCacheWarmer(audioDecoder, pcmCache, decodeExecutor) {
+            // Analyze the variant while its PCM is likely still in the page cache
+            beatGridCache.get(it)
+        }
+        tempoAnalyzer = SongTempoAnalyzer(this, audioDecoder, decodeExecutor) { resourceId, estimate ->
+            if (estimate.confidence >= MIN_TEMPO_CONFIDENCE) {
+                songLibrary.setEstimatedBpm(resourceId, estimate.bpm.roundToInt())
+            }
+        }
+        tempoAnalyzer.analyze(songLibrary.unlabelledResourceIds)
         initializeAudioTrack()
+        audioFeeder.start()
+        controlLoop.start()
         registerBroadcastReceivers()
         broadcastState()
         val notificationBuilder = getNotificationBuilder()
@@ -105,54 +284,119 @@ class CadenceAudioPlayerService : Service() {
         super.onCreate()
     }
 
+    override fun onStartCommand(intent: Intent?, flags: Int, startId: Int): Int {
+        val decoderType = intent?.getStringExtra("AUDIO_DECODER")
+        if (decoderType != null) {
+            setAudioDecoder(AudioDecoderType.valueOf(decoderType))
+        }
+        val tempoMode = intent?.getStringExtra("TEMPO_MODE")
+        if (tempoMode != null) {
+            // Takes effect from the next song streamed
+            Log.d(TAG, "Using $tempoMode tempo mode")
+            this.tempoMode = TempoMode.valueOf(tempoMode)
+        }
+        if (intent?.hasExtra("CROSSFADE_BEATS") == true) {
+            crossfadeBeats = max(intent.getIntExtra("CROSSFADE_BEATS", CROSSFADE_BEATS), 0)
+            Log.d(TAG, "Crossfading over $crossfadeBeats beats")
+        }
+        if (intent?.hasExtra("MIN_BUFFER_MS") == true || intent?.hasExtra("MAX_BUFFER_MS") == true) {
+            bufferController.setBounds(
+                intent.getIntExtra("MIN_BUFFER_MS", bufferController.minMs),
+                intent.getIntExtra("MAX_BUFFER_MS", bufferController.maxMs)
+            )
+            Log.d(TAG, "Buffering between ${bufferController.minMs} and ${bufferController.maxMs} ms")
+        }
+        if (intent?.hasExtra("OFFLOAD") == true) {
+            // Takes effect from the next steady stretch
+            isOffloadEnabled = intent.getBooleanExtra("OFFLOAD", DEFAULT_OFFLOAD_ENABLED)
+            Log.d(TAG, "Offloaded playback ${if (isOffloadEnabled) "enabled" else "disabled"}")
+        }
+        if (intent?.hasExtra("OUTPUT_LATENCY_MS") == true) {
+            outputLatencyMs = intent.getIntExtra("OUTPUT_LATENCY_MS", 0)
+            Log.d(TAG, "Compensating for $outputLatencyMs ms of output latency")
+        }
+        return super.onStartCommand(intent, flags, startId)
+    }
+
     override fun onDestroy() {
         broadcastReceivers.forEach(this::unregisterReceiver)
+        // The threads still use the track and streams until they stop. Stopping the feeder
+        // cancels its pending actions, which the control thread may be waiting on.
+        controlLoop.quit()
+        audioFeeder.quit()
+        audioFeeder.join(THREAD_JOIN_TIMEOUT_MS)
+        controlLoop.join(THREAD_JOIN_TIMEOUT_MS)
+        if (audioFeeder.isAlive || controlLoop.isAlive) {
+            Log.w(TAG, "Audio threads did not stop within $THREAD_JOIN_TIMEOUT_MS ms")
+        }
         audioTrack?.pause()
         audioTrack?.flush()
+        offloadPlayer?.release()
+        currentStream?.close()
+        discardScheduledChange()
+        discardNextSongSet()
+        songPrefetcher.cancel()
+        cacheWarmer.cancelAll()
+        decodeExecutor.shutdown()
         voiceAdapter.onStop()
         super.onDestroy()
     }
 
-    // Initialize AudioTrack instance with appropriate parameters.
+    // Prints the step to music latency histograms and the cost of each playback mode, e.g. through
+    // adb shell dumpsys activity service com.cs4347.cadence/.audio.CadenceAudioPlayerService
+    // Passing "reset" clears them after printing.
+    override fun dump(fd: FileDescriptor?, writer: PrintWriter?, args: Array<out String>?) {
+        if (writer == null) {
+            return
+        }
+        writer.println("AudioTrack underruns: ${audioTrack?.underrunCount}, stream underruns: $streamUnderrunCount")
+        bufferController.dump(writer)
+        latencyRecorder.dump(writer)
+        playbackModeStats.dump(writer)
+        if (args?.contains("reset") == true) {
+            latencyRecorder.reset()
+            playbackModeStats.reset()
+            writer.println("Latency histograms and playback mode stats reset")
+        }
+    }
+
+    // Switches the decoder backend of streams and background decodes started from now on
+    private fun setAudioDecoder(decoderType: AudioDecoderType) {
+        Log.d(TAG, "Using $decoderType decoder")
+        val decoder = decoderType.create(resources, frameIndexCache)
+        audioDecoder = decoder
+        cacheWarmer.decoder = decoder
+        tempoAnalyzer.decoder = decoder
+    }
+
+    // Initialize AudioTrack instance with appropriate parameters. The AudioTrack plays at the
+    // device's native output sample rate, which may change with the output device, so it is read
+    // each time.
     private fun initializeAudioTrack() {
+        val outputFormat = getOutputFormat()
+        Log.d(TAG, "Output at ${outputFormat.sampleRate} Hz in bursts of ${outputFormat.framesPerBurst} frames")
+        bufferController.outputFormat = outputFormat
         val audioTrack = AudioTrack.Builder()
-            .setAudioAttributes(
-                AudioAttributes.Builder()
-                    .setUsage(AudioAttributes.USAGE_MEDIA)
-                    .setContentType(AudioAttributes.CONTENT_TYPE_MUSIC)
-                    .setLegacyStreamType(AudioManager.STREAM_MUSIC)
-                    .build()
-            )
+            .setAudioAttributes(audioAttributes)
             .setAudioFormat(
                 AudioFormat.Builder()
                     .setEncoding(AudioFormat.ENCODING_PCM_16BIT)
-                    .setSampleRate(SAMPLE_RATE)
+                    .setSampleRate(outputFormat.sampleRate)
                     .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
                     .build()
             )
-            .setBufferSizeInBytes(SAMPLE_RATE)
+            .setBufferSizeInBytes(bufferController.getCapacityBytes())
             .setTransferMode(AudioTrack.MODE_STREAM)
             .build()
-        audioTrack.setPlaybackPositionUpdateListener(object :
-            AudioTrack.OnPlaybackPositionUpdateListener {
-            override fun onMarkerReached(track: AudioTrack?) {
-                return
-            }
-
-            override fun onPeriodicNotification(track: AudioTrack?) {
-                if (track == null) {
-                    return
-                }
-                CompletableFuture.runAsync {
-                    onPeriodicPlayback(track)
-                }
-            }
-        })
-        audioTrack.positionNotificationPeriod =
-            round(SAMPLE_RATE * BUFFER_SIZE_SECONDS * 0.9).toInt()
+        bufferController.apply(audioTrack)
+        outputResampler = OutputResampler(outputFormat.sampleRate)
         this.audioTrack = audioTrack
     }
 
+    private fun getOutputFormat(): OutputFormat {
+        return OutputFormat.query(getSystemService(Context.AUDIO_SERVICE) as AudioManager)
+    }
+
     // Registers receivers for Broadcasts API
     private fun registerBroadcastReceivers() {
         val stepsReceiver = object : BroadcastReceiver() {
@@ -160,14 +404,30 @@ class CadenceAudioPlayerService : Service() {
                 if (intent == null) {
                     throw IllegalArgumentException("Intent cannot be null.")
                 }
+                val receivedTimeNs = System.nanoTime()
+                val trace = LatencyTrace(intent.getLongExtra("STEP_TIME_NS", receivedTimeNs))
+                trace.mark(LatencyStage.RECEIVED, receivedTimeNs)
                 val newBpm = intent.getDoubleExtra("STEPS_PER_MINUTE", 1f.toDouble()).roundToInt()
                 Log.d(TAG, "Received BPM: $newBpm")
-                this@CadenceAudioPlayerService.bpmChanged(newBpm)
+                cadenceTrend.add(newBpm)
+                controlLoop.post(ControlCommand.BpmChanged(newBpm, trace))
             }
         }
         broadcastReceivers.add(stepsReceiver)
         registerReceiver(stepsReceiver, IntentFilter(ACTION_UPDATE_STEPS_PER_MINUTE))
 
+        val stepTakenReceiver = object : BroadcastReceiver() {
+            override fun onReceive(context: Context?, intent: Intent?) {
+                if (intent == null) {
+                    throw IllegalArgumentException("Intent cannot be null.")
+                }
+                val stepTimeNs = intent.getLongExtra("STEP_TIME_NS", 0)
+                audioFeeder.post { stepTaken(stepTimeNs) }
+            }
+        }
+        broadcastReceivers.add(stepTakenReceiver)
+        registerReceiver(stepTakenReceiver, IntentFilter(ACTION_STEP_TAKEN))
+
         val stateRequestReceiver = object : BroadcastReceiver() {
             override fun onReceive(context: Context?, intent: Intent?) {
                 this@CadenceAudioPlayerService.broadcastState()
@@ -178,7 +438,7 @@ class CadenceAudioPlayerService : Service() {
 
         val playRequestReceiver = object : BroadcastReceiver() {
             override fun onReceive(context: Context?, intent: Intent?) {
-                tryResumeFromPause()
+                controlLoop.post(ControlCommand.Resume)
             }
         }
         broadcastReceivers.add(playRequestReceiver)
@@ -186,169 +446,333 @@ class CadenceAudioPlayerService : Service() {
 
         val pauseRequestReceiver = object : BroadcastReceiver() {
             override fun onReceive(context: Context?, intent: Intent?) {
-                tryPause()
+                controlLoop.post(ControlCommand.Pause)
             }
         }
         broadcastReceivers.add(pauseRequestReceiver)
         registerReceiver(pauseRequestReceiver, IntentFilter(ACTION_PAUSE_AUDIO))
     }
 
-    // Attempt to pause current playback
-    private fun tryPause() {
-        if (isLoading) {
-            return
+    // Handles a command on the control thread
+    private fun handleCommand(command: ControlCommand) {
+        when (command) {
+            is ControlCommand.BpmChanged -> bpmChanged(command.bpm, command.trace)
+            ControlCommand.Pause -> pause()
+            ControlCommand.Resume -> resumeFromPause()
+            ControlCommand.PlaybackChanged -> broadcastState()
+            is ControlCommand.UpdatePrefetch -> updatePrefetch(command.remainingMs)
+            ControlCommand.PrepareNextSongSet -> prepareNextSongSet()
+            is ControlCommand.EnterOffload -> enterOffload(command.song, command.startIndex, command.endIndex)
+            ControlCommand.LeaveOffload -> leaveOffload()
         }
-        CompletableFuture.runAsync {
-            bufferMutex.lockPriority()
-            try {
-                this@CadenceAudioPlayerService.audioTrack?.pause()
-                broadcastState()
-            } finally {
-                bufferMutex.unlock()
+    }
+
+    private fun onCommandSuperseded(command: ControlCommand) {
+        if (command is ControlCommand.BpmChanged) {
+            onBpmChangeDropped(command.trace)
+        }
+    }
+
+    // Runs block on the audio feeder between blocks of audio, and waits for its result. Changes to
+    // playback need the PCM engine, so offloaded playback is left first.
+    private fun <T> runOnFeeder(block: () -> T): T {
+        leaveOffload()
+        return audioFeeder.post {
+            // Offloading may have been entered again since, but cannot have taken over yet
+            offloadPlayer?.let { cancelOffloadHandover(it) }
+            if (scheduledChange?.isOffload == true) {
+                discardScheduledChange()
             }
+            block()
+        }.get()
+    }
+
+    // Pauses current playback
+    private fun pause() {
+        if (state != PlayerState.PLAYING) {
+            return
         }
+        runOnFeeder { audioTrack?.pause() }
+        state = PlayerState.PAUSED
     }
 
-    // Attempt to resume playback from paused state
-    private fun tryResumeFromPause() {
-        if (isLoading) {
+    // Resumes playback from paused state. The paused audioTrack still holds the audio from where
+    // it was paused, so it is played again unless the output sample rate has changed since it was
+    // built, e.g. because headphones with another native rate were connected. It is then rebuilt
+    // at the new rate, dropping the audio that was queued in it.
+    private fun resumeFromPause() {
+        if (state != PlayerState.PAUSED) {
             return
         }
-        CompletableFuture.runAsync {
-            bufferMutex.lockPriority()
-            if (this@CadenceAudioPlayerService.audioTrack?.playState != AudioTrack.PLAYSTATE_PAUSED) {
-                return@runAsync
-            }
-            try {
-                this@CadenceAudioPlayerService.audioTrack?.flush()
-                this@CadenceAudioPlayerService.audioTrack?.stop()
-                this@CadenceAudioPlayerService.lastAudioTrackIndex = 0
+        runOnFeeder {
+            phaseLock.reset()
+            val track = this.audioTrack
+            if (track != null && track.state == AudioTrack.STATE_INITIALIZED &&
+                track.sampleRate == getOutputFormat().sampleRate
+            ) {
+                track.play()
+            } else {
+                track?.flush()
+                track?.release()
+                this.lastAudioTrackIndex = 0
+                playbackMap.clear()
+                latencyRecorder.clearPending()
                 initializeAudioTrack()
-                this@CadenceAudioPlayerService.audioTrack?.play()
-                broadcastState()
-
-                writeNextBuffers(2)
-            } finally {
-                bufferMutex.unlock()
+                this.audioTrack?.play()
             }
         }
+        state = PlayerState.PLAYING
     }
 
-    // Load next song set into memory and assigns it to this.currentSongSet
-    private fun loadAndAssignNextSong(bpm: Int): LoadedTimeShiftedSongSet {
+    // Selects the next song set. Songs are only decoded once their streams are prepared through
+    // prepareStream.
+    private fun loadNextSongSet(bpm: Int): LoadedTimeShiftedSongSet {
         mSpeechHandler.speak("Loading next song set.")
-        this.isLoading = true
-        this.currentSongSet = null
-        val nextSongInfo = songLibrary.getNextSong(bpm)
-        val resourceIds = arrayOf(nextSongInfo.slowId, nextSongInfo.originalId, nextSongInfo.fastId)
-        val resourceBpm =
-            arrayOf(nextSongInfo.slowBpm, nextSongInfo.originalBpm, nextSongInfo.fastBpm)
+        return createSongSet(songLibrary.getNextSong(bpm))
+    }
+
+    private fun createSongSet(songInfo: TimeShiftedSong): LoadedTimeShiftedSongSet {
+        val resourceIds = arrayOf(songInfo.slowId, songInfo.originalId, songInfo.fastId)
+        val resourceBpm = arrayOf(songInfo.slowBpm, songInfo.originalBpm, songInfo.fastBpm)
 
         val loadedSongs = resourceIds
             .mapIndexed { i: Int, id: Int ->
-                loadSongById(id, resourceBpm[i])
+                LoadedSong(getSongName(id), resourceBpm[i], id)
             }
+        return LoadedTimeShiftedSongSet(loadedSongs[0], loadedSongs[1], loadedSongs[2])
+    }
 
-        val result = LoadedTimeShiftedSongSet(loadedSongs[0], loadedSongs[1], loadedSongs[2])
-        this.currentSongSet = result
-
-        this.isLoading = false
-        this.lastSongChangeTime = System.currentTimeMillis()
-        return result
-    }
-
-    // Load song by resource ID into PCM 16-bit format
-    private fun loadSongById(id: Int, bpm: Int): LoadedSong {
-        val assetFileDescriptor: AssetFileDescriptor =
-            resources.openRawResourceFd(id)
-
-        val mediaExtractor = MediaExtractor()
-        mediaExtractor.setDataSource(assetFileDescriptor)
-
-        val format = mediaExtractor.getTrackFormat(0)
-        val mime = format.getString(MediaFormat.KEY_MIME)
-            ?: throw IllegalStateException("KEY_MINE is null")
-        mediaExtractor.selectTrack(0)
-        val codec = MediaCodec.createDecoderByType(mime)
-        codec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */)
-        codec.start()
-        var endOfFile = false
-        val info = MediaCodec.BufferInfo()
-        val list = ArrayList<Byte>()
-        var outputEndOfFile = false
-        while (!endOfFile) {
-            val inputBufferIndex: Int = codec.dequeueInputBuffer(-1)
-            if (inputBufferIndex >= 0) {
-                val size: Int = codec.getInputBuffer(inputBufferIndex)?.let {
-                    mediaExtractor.readSampleData(
-                        it, 0
-                    )
-                }!!
-                if (size < 0) {
-                    codec.queueInputBuffer(
-                        inputBufferIndex,
-                        0,
-                        0,
-                        0,
-                        MediaCodec.BUFFER_FLAG_END_OF_STREAM
-                    )
-                    endOfFile = true
-                } else {
-                    codec.queueInputBuffer(
-                        inputBufferIndex,
-                        0,
-                        size,
-                        mediaExtractor.getSampleTime(),
-                        0
-                    )
-                    mediaExtractor.advance()
-                }
-                val res = codec.dequeueOutputBuffer(info, -1)
-                if (res >= 0) {
-                    val buf: ByteBuffer = codec.getOutputBuffer(res)
-                        ?: throw IllegalArgumentException("Output buffer index invalid")
-                    val chunk = ByteArray(info.size)
-                    buf.get(chunk) // Read the buffer all at once
-                    buf.clear() // ** MUST DO!!! OTHERWISE THE NEXT TIME YOU GET THIS SAME BUFFER BAD THINGS WILL HAPPEN
-                    chunk.forEach {
-                        list.add((it).toByte())
-                    }
-                    codec.releaseOutputBuffer(res, false /* render */)
-                    if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
-                        outputEndOfFile = true
-                    }
-                } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                    Log.d(TAG, "Format changed on file ${resources.getResourceEntryName(id)}")
-                    Log.d(TAG, "Channel count: ${format.getInteger(MediaFormat.KEY_CHANNEL_COUNT)}")
-                    Log.d(TAG, "Sample Rate: ${format.getInteger(MediaFormat.KEY_SAMPLE_RATE)}")
-                }
-            } else {
-                Log.d(TAG, "Negative input buffer index $inputBufferIndex")
+    // Selects the song of the song set to play at the input bpm. When the tempo is processed, the
+    // original variant is always played and time-stretched to the bpm.
+    private fun selectTrack(songSet: LoadedTimeShiftedSongSet, bpm: Int): LoadedSong {
+        return if (tempoMode == TempoMode.VARIANTS) songSet.getClosestTrack(bpm) else songSet.original
+    }
+
+    // Cadence the next song set is selected for at a song boundary. This is the cadence
+    // songPrefetcher last prefetched for, so that the song it opened is the one selected, or the
+    // latest cadence if nothing was prefetched.
+    private fun getNextSongSetBpm(previousBpm: Int): Int {
+        return songPrefetcher.predictedBpm ?: cadenceTrend.latest() ?: previousBpm
+    }
+
+    // Prepares the stream of the next song set for the audio feeder to take at the end of the
+    // current song, usually from the stream opened ahead by songPrefetcher. If crossfades are
+    // enabled, it is prepared to fade in over the current song. Runs on the control thread.
+    private fun prepareNextSongSet() {
+        val previous = this.currentSongSet ?: return
+        val song = this.currentSong ?: return
+        if (nextSongSet.get()?.previous == previous) {
+            return
+        }
+        val bpm = getNextSongSetBpm(song.bpm)
+        val songSet = loadNextSongSet(bpm)
+        val stream = if (crossfadeBeats > 0) {
+            prepareIncomingStream(songSet, bpm, getCurrentBpm() ?: bpm)
+        } else {
+            prepareStream(selectTrack(songSet, bpm), 0, songSet.getTempo(bpm))
+        }
+        nextSongSet.getAndSet(PreparedSongSet(previous, songSet, stream))?.stream?.close()
+        audioFeeder.wake()
+    }
+
+    // Takes the next song set prepared to follow the current one. Returns null, and asks the
+    // control thread to prepare it, if it is not ready yet. Runs on the audio feeder.
+    private fun takeNextSongSet(): PreparedSongSet? {
+        val next = nextSongSet.getAndSet(null)
+        if (next != null && next.previous == currentSongSet) {
+            return next
+        }
+        next?.stream?.close()
+        controlLoop.post(ControlCommand.PrepareNextSongSet)
+        return null
+    }
+
+    // Closes the prepared next song set, e.g. once another song set replaces the current one
+    private fun discardNextSongSet() {
+        nextSongSet.getAndSet(null)?.stream?.close()
+    }
+
+    // Continues playback with the next song set once the current song has been fully written. If
+    // its stream was prepared to fade in, it is set to the tempo of the cadence, as at the end of
+    // a crossfade. Returns false if the next song set is not prepared yet. Runs on the audio
+    // feeder.
+    private fun startNextSongSet(): Boolean {
+        val next = takeNextSongSet() ?: return false
+        installStream(next.songSet, next.stream)
+        val bpm = cadenceTrend.latest()
+        if (bpm != null) {
+            getTempoStream()?.tempo = next.songSet.getTempo(bpm)
+        }
+        return true
+    }
+
+    // Fades the song of the next song set in over the current stream as the current song nears its
+    // end. Returns false if the next song set is not prepared yet. Runs on the audio feeder.
+    private fun crossfadeToNextSongSet(): Boolean {
+        val next = takeNextSongSet() ?: return false
+        crossfadeTo(next.songSet, next.stream)
+        return true
+    }
+
+    // Prepares the stream of the input song set's song for bpm to fade in at previousBpm, the
+    // tempo of the playing audio, from its first beat
+    private fun prepareIncomingStream(
+        songSet: LoadedTimeShiftedSongSet,
+        bpm: Int,
+        previousBpm: Int,
+        isCancelled: () -> Boolean = { false }
+    ): SongStream {
+        return prepareStream(
+            selectTrack(songSet, bpm), 0, songSet.getTempo(previousBpm), true, isCancelled
+        )
+    }
+
+    // Fades the input stream of the input song set in over the current stream. The crossfade is
+    // scheduled for the current stream's next beat, if its beats are known, so that the first beat
+    // of the incoming song lands on a beat of the outgoing one, and onApplied is called once it
+    // starts. The incoming song is played at the tempo of the outgoing one until the crossfade is
+    // over. Runs on the audio feeder.
+    private fun crossfadeTo(songSet: LoadedTimeShiftedSongSet, stream: SongStream, onApplied: () -> Unit = {}) {
+        val currentStream = this.currentStream
+        if (currentStream == null) {
+            installStream(songSet, stream)
+            onApplied()
+            return
+        }
+        scheduleChange(ScheduledChange(currentStream, getNextBeatIndex(), false, {
+            installStream(songSet, stream, getCrossfadeFrames())
+            onApplied()
+        }) { stream.close() })
+    }
+
+    // Opens a stream of the song from startIndex for playback, reusing the prefetched stream if it
+    // matches.
+    private fun openStream(song: LoadedSong, startIndex: Int): SongStream {
+        if (startIndex == 0) {
+            val prefetchedStream = songPrefetcher.take(song)
+            if (prefetchedStream != null) {
+                (prefetchedStream as? DecodingSongStream)?.priority = JobPriority.PLAYING
+                return prefetchedStream
             }
         }
+        return openNewStream(song, startIndex, JobPriority.PLAYING)
+    }
 
-        while (!outputEndOfFile) {
-            val res = codec.dequeueOutputBuffer(info, -1)
-            if (res >= 0) {
-                val buf: ByteBuffer = codec.getOutputBuffer(res)
-                    ?: throw IllegalArgumentException("Output buffer index invalid")
-                val chunk = ByteArray(info.size)
-                buf.get(chunk) // Read the buffer all at once
-                buf.clear() // ** MUST DO!!! OTHERWISE THE NEXT TIME YOU GET THIS SAME BUFFER BAD THINGS WILL HAPPEN
-                chunk.forEach {
-                    list.add(it)
-                }
-                codec.releaseOutputBuffer(res, false /* render */)
-                if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
-                    outputEndOfFile = true
+    // Streams the song from its memory-mapped PCM if cached, and decodes it otherwise at the input
+    // priority.
+    private fun openNewStream(song: LoadedSong, startIndex: Int, priority: JobPriority): SongStream {
+        val cachedSamples = mapCachedSong(song, priority)
+        if (cachedSamples != null) {
+            return MappedSongStream(song, cachedSamples, startIndex)
+        }
+        return DecodingSongStream(audioDecoder, song, startIndex, pcmCache, pcmBufferPool, decodeExecutor, priority)
+            .start()
+    }
+
+    // Returns the memory-mapped PCM of the song, reusing an earlier mapping if there is one, or
+    // null if the song is not cached. Mapping a file may block, so this is never called on the
+    // audio feeder.
+    private fun mapCachedSong(song: LoadedSong, priority: JobPriority): ByteBuffer? {
+        val mappedSamples = mappedSongCache.get(song)
+        if (mappedSamples != null) {
+            return mappedSamples
+        }
+        val cachedSamples = pcmCache.map(song.resourceId) ?: return null
+        mappedSongCache.put(song, cachedSamples)
+        // Page the PCM in ahead of playback rather than on the audio path
+        decodeExecutor.schedule(priority) { cachedSamples.load() }
+        return cachedSamples
+    }
+
+    // Opens a stream of the input song from startIndex, and blocks until enough of it has been
+    // decoded to start playback. Unless variants are played as they are, the stream's tempo is set
+    // to tempo. If fromFirstBeat is set, a song started from the beginning starts from its first
+    // beat. Throws CancellationException if isCancelled returns true before the stream is ready.
+    private fun prepareStream(
+        song: LoadedSong,
+        startIndex: Int,
+        tempo: Double,
+        fromFirstBeat: Boolean = false,
+        isCancelled: () -> Boolean = { false }
+    ): SongStream {
+        if (isCancelled()) {
+            throw CancellationException("Cancelled before opening ${song.name}")
+        }
+        val stream = openStream(song, startIndex)
+        awaitPrebuffered(stream, startIndex, isCancelled)
+        if (fromFirstBeat && startIndex == 0) {
+            skipToFirstBeat(stream)
+        }
+        return processTempo(stream, tempo)
+    }
+
+    // Plays the input stream at tempo, unless variants are played as they are
+    private fun processTempo(stream: SongStream, tempo: Double): SongStream {
+        val tempoProcessor = tempoMode.createProcessor() ?: return stream
+        return TempoSongStream(stream, tempoProcessor, tempo)
+    }
+
+    // Blocks until the input stream has prebuffered or PREBUFFER_TIMEOUT_MS passes, checking
+    // isCancelled, and whether the service is stopping, every LOAD_CANCEL_CHECK_MS. A cancelled
+    // stream is handed to songPrefetcher if it starts at the beginning of its song, so that its
+    // decoding is not wasted if the song is wanted next, and closed otherwise.
+    private fun awaitPrebuffered(stream: SongStream, startIndex: Int, isCancelled: () -> Boolean) {
+        val deadline = SystemClock.uptimeMillis() + PREBUFFER_TIMEOUT_MS
+        while (!stream.awaitPrebuffered(LOAD_CANCEL_CHECK_MS)) {
+            if (isCancelled() || controlLoop.isQuitting) {
+                if (startIndex == 0) {
+                    songPrefetcher.offer(stream)
+                } else {
+                    stream.close()
                 }
-            } else if (res == MediaCodec.INFO_OUTPUT_FORMAT_CHANGED) {
-                Log.d(TAG, "Format changed ${codec.outputFormat}")
+                throw CancellationException("Cancelled while prebuffering ${stream.song.name}")
+            }
+            if (SystemClock.uptimeMillis() >= deadline) {
+                Log.w(TAG, "Timed out prebuffering ${stream.song.name} at ${stream.song.bpm} BPM")
+                return
             }
         }
-        codec.stop()
-        assetFileDescriptor.close()
-        return LoadedSong(getSongName(id), bpm, list.toByteArray())
+    }
+
+    // Replaces the current stream with the input stream of a song from the input song set. If
+    // fadeFrames is positive, the new stream fades in over that many frames of the current stream
+    // rather than replacing it outright. Runs on the audio feeder.
+    private fun installStream(songSet: LoadedTimeShiftedSongSet, stream: SongStream, fadeFrames: Int = 0) {
+        // A change scheduled for the replaced stream no longer applies
+        discardScheduledChange()
+        val previousStream = currentStream
+        var newStream = stream
+        if (fadeFrames > 0 && previousStream != null) {
+            newStream = CrossfadeSongStream(previousStream, stream, fadeFrames)
+        } else {
+            previousStream?.close()
+        }
+        if (songSet != currentSongSet) {
+            // A next song set prepared to follow the replaced one no longer applies
+            discardNextSongSet()
+            this.currentSongSet = songSet
+            this.lastSongChangeTime = System.currentTimeMillis()
+        }
+        currentStream = newStream
+        this.currentSong = stream.song
+        this.curWritingIndex = newStream.position
+        playableAsIsSince = 0
+        warmOtherVariants(stream.song)
+        controlLoop.post(ControlCommand.PlaybackChanged)
+    }
+
+    // Decodes the other variants of the current song set in the background, closest to the
+    // playing variant first, once the playing variant has started. Only needed when switching
+    // between variants.
+    private fun warmOtherVariants(song: LoadedSong) {
+        val songSet = this.currentSongSet ?: return
+        if (getTempoStream() != null) {
+            cacheWarmer.retainOnly(listOf(song))
+            return
+        }
+        val tracks = songSet.getTracksByDistance(song.bpm)
+        cacheWarmer.retainOnly(tracks)
+        cacheWarmer.warm(tracks.filter { it != song })
     }
 
     private fun getNotificationBuilder(): Notification.Builder? {
@@ -397,133 +821,856 @@ class CadenceAudioPlayerService : Service() {
         return channelId
     }
 
-    // Get the most appropriate song out of the input song set that best matches the input bpm.
-    private fun getAppropriateLoadedTrack(songs: LoadedTimeShiftedSongSet, bpm: Int): LoadedSong {
-        val loadedSongs = arrayOf(songs.slow, songs.original, songs.fast)
+    // Called on the control thread when the users' steps per minute is changed. Updates arriving
+    // while a change is being prepared wait in the command queue, where all but the latest are
+    // dropped. Cadence changes are ignored while paused.
+    private fun bpmChanged(bpm: Int, trace: LatencyTrace) {
+        if (state == PlayerState.PAUSED ||
+            System.currentTimeMillis() - lastBpmChangeTime < MIN_BPM_CHECK_INTERVAL
+        ) {
+            onBpmChangeDropped(trace)
+            return
+        }
+        lastBpmChangeTime = System.currentTimeMillis()
+        trace.mark(LatencyStage.ACCEPTED)
+        if (firstThrottledTimeNs != 0L) {
+            latencyRecorder.onThrottled(firstThrottledTimeNs, trace.getTime(LatencyStage.ACCEPTED))
+            firstThrottledTimeNs = 0
+        }
 
-        return loadedSongs.minBy {
-            min(abs(it.bpm - bpm), abs(it.bpm - 2 * bpm))
-        } ?: throw IllegalArgumentException("No loaded songs.")
-    }
+        val loadedSongs = this.currentSongSet
+        val currentlyPlaying = this.currentSong
+        if (loadedSongs == null || currentlyPlaying == null) {
+            // If there is no song currently loaded, then start playing the most appropriate track.
+            startPlayback(bpm, trace)
+            return
+        }
 
-    // Called when the users' steps per minute is changed.
-    @Synchronized
-    private fun bpmChanged(bpm: Int) {
-        if (isLoading || System.currentTimeMillis() - lastBpmChangeTime < MIN_BPM_CHECK_INTERVAL) {
+        if (this.currentStream is CrossfadeSongStream || scheduledChange?.isOffload == false) {
+            // Let the transition finish before following the cadence
             return
         }
-        lastBpmChangeTime = System.currentTimeMillis()
-        CompletableFuture.runAsync {
-            bufferMutex.lockPriority()
-            try {
-                // Load a song set if uninitialized
-                var loadedSongs = this.currentSongSet ?: loadAndAssignNextSong(bpm)
-
-                val currentlyPlaying = this.currentSong
-                var closestLoadedTrack = getAppropriateLoadedTrack(loadedSongs, bpm)
-
-                if (currentlyPlaying == null) {
-                    // If there is no song currently loaded, then start playing the msot appropriate
-                    // track.
-                    this.currentSong = closestLoadedTrack
-                    audioTrack?.play()
-                    writeNextBuffers()
-                    return@runAsync
-                }
 
-                val shouldChangeSongSet =
-                    min(
-                        abs(2 * bpm - closestLoadedTrack.bpm),
-                        abs(bpm - closestLoadedTrack.bpm)
-                    ) > loadedSongs.getAverageDifference() * SONG_CHANGE_TRESHOLD_FACTOR &&
-                            System.currentTimeMillis() - lastSongChangeTime > MIN_INTERVAL_BETWEEN_SONG_CHANGE &&
-                            songLibrary.getBestFitBpm(bpm) != loadedSongs.original.bpm
-                Log.d(
-                    TAG,
-                    "New BPM: $bpm, shouldChangeSongSet: $shouldChangeSongSet, closestBpm: ${closestLoadedTrack.bpm}"
-                )
-
-                if (shouldChangeSongSet) {
-                    // Song set is changed if there is a more appropriate song set
-                    loadedSongs = loadAndAssignNextSong(bpm)
-                    closestLoadedTrack = getAppropriateLoadedTrack(loadedSongs, bpm)
-                    this.currentSong = closestLoadedTrack
-                    reset()
-                    writeNextBuffers()
-                    mSpeechHandler.speak(closestLoadedTrack.bpm)
-                    return@runAsync
-                }
+        val isPlayableAsIs = isPlayableAsIs(loadedSongs, currentlyPlaying, bpm)
+        if (!isPlayableAsIs) {
+            playableAsIsSince = 0
+        } else if (playableAsIsSince == 0L) {
+            playableAsIsSince = SystemClock.uptimeMillis()
+        }
+        if (isPlayableAsIs && offloadPlayer != null) {
+            // The offloaded song still follows the cadence
+            return
+        }
+
+        val closestLoadedTrack = loadedSongs.getClosestTrack(bpm)
+        val shouldChangeSongSet =
+            min(
+                abs(2 * bpm - closestLoadedTrack.bpm),
+                abs(bpm - closestLoadedTrack.bpm)
+            ) > loadedSongs.getAverageDifference() * SONG_CHANGE_TRESHOLD_FACTOR &&
+                    System.currentTimeMillis() - lastSongChangeTime > MIN_INTERVAL_BETWEEN_SONG_CHANGE &&
+                    songLibrary.getBestFitBpm(bpm) != loadedSongs.original.bpm
+        Log.d(
+            TAG,
+            "New BPM: $bpm, shouldChangeSongSet: $shouldChangeSongSet, closestBpm: ${closestLoadedTrack.bpm}"
+        )
+
+        if (shouldChangeSongSet) {
+            // Song set is changed if there is a more appropriate song set
+            changeSongSet(bpm, trace)
+            return
+        }
+
+        if (getTempoStream() != null) {
+            // Follow the cadence by changing the tempo of the playing song, which takes effect
+            // from the audio processed next
+            trace.mark(LatencyStage.PREPARED)
+            runOnFeeder { changeTempo(bpm, trace) }
+            broadcastState()
+            return
+        }
+
+        if (closestLoadedTrack.bpm == currentlyPlaying.bpm) {
+            // No need to change songs.
+            return
+        }
 
-                if (closestLoadedTrack.bpm == currentlyPlaying.bpm) {
-                    // No need to change songs.
-                    return@runAsync
+        trace.mark(LatencyStage.PREPARED)
+        if (switchVariant(closestLoadedTrack, bpm, trace) ||
+            switchVariantOnBeat(closestLoadedTrack, bpm, trace)
+        ) {
+            mSpeechHandler.speak(closestLoadedTrack.bpm)
+        }
+    }
+
+    // Records that a cadence update was dropped without being applied
+    private fun onBpmChangeDropped(trace: LatencyTrace) {
+        if (firstThrottledTimeNs == 0L) {
+            firstThrottledTimeNs = trace.getTime(LatencyStage.RECEIVED)
+        }
+    }
+
+    // Whether a cadence update waiting in the command queue would select a different song set than
+    // the one being loaded, in which case the load is abandoned so that the update is handled
+    // straight away. Updates that the throttle would drop do not count.
+    private fun isLoadSuperseded(songSet: LoadedTimeShiftedSongSet): Boolean {
+        if (System.currentTimeMillis() - lastBpmChangeTime < MIN_BPM_CHECK_INTERVAL) {
+            return false
+        }
+        val latest = controlLoop.findLatest { it is ControlCommand.BpmChanged } as? ControlCommand.BpmChanged
+            ?: return false
+        return songLibrary.getBestFitBpm(latest.bpm) != songSet.original.bpm
+    }
+
+    // Called when the load for a cadence update is abandoned for a later update
+    private fun onLoadCancelled(songSet: LoadedTimeShiftedSongSet, trace: LatencyTrace) {
+        Log.d(TAG, "Abandoned loading ${songSet.original.name} for a later cadence")
+        onBpmChangeDropped(trace)
+    }
+
+    // Loads the song set for bpm and starts playing it
+    private fun startPlayback(bpm: Int, trace: LatencyTrace) {
+        state = PlayerState.LOADING
+        val songSet = loadNextSongSet(bpm)
+        try {
+            val stream = prepareStream(selectTrack(songSet, bpm), 0, songSet.getTempo(bpm)) {
+                isLoadSuperseded(songSet)
+            }
+            trace.mark(LatencyStage.PREPARED)
+            runOnFeeder {
+                trace.mark(LatencyStage.HANDED_OVER)
+                installStream(songSet, stream)
+                audioTrack?.play()
+                onChangeApplied(trace)
+            }
+        } catch (e: CancellationException) {
+            onLoadCancelled(songSet, trace)
+        } finally {
+            state = if (currentSong != null) PlayerState.PLAYING else PlayerState.IDLE
+        }
+    }
+
+    // Replaces the playing song set with the one for bpm. Its song is prepared on the control
+    // thread while the current song keeps playing, then faded in over it, or cut to if crossfades
+    // are disabled.
+    private fun changeSongSet(bpm: Int, trace: LatencyTrace) {
+        val isCrossfaded = crossfadeBeats > 0
+        state = if (isCrossfaded) PlayerState.SWITCHING else PlayerState.LOADING
+        val songSet = loadNextSongSet(bpm)
+        val isCancelled = { isLoadSuperseded(songSet) }
+        try {
+            val stream = if (isCrossfaded) {
+                prepareIncomingStream(songSet, bpm, getCurrentBpm() ?: bpm, isCancelled)
+            } else {
+                prepareStream(selectTrack(songSet, bpm), 0, songSet.getTempo(bpm), false, isCancelled)
+            }
+            trace.mark(LatencyStage.PREPARED)
+            val isApplied = runOnFeeder {
+                trace.mark(LatencyStage.HANDED_OVER)
+                if (currentStream is CrossfadeSongStream) {
+                    // The current song ended and was replaced while this one was prepared
+                    stream.close()
+                    false
+                } else {
+                    if (isCrossfaded) {
+                        crossfadeTo(songSet, stream) { onChangeApplied(trace) }
+                    } else {
+                        reset()
+                        installStream(songSet, stream)
+                        onChangeApplied(trace)
+                    }
+                    true
                 }
+            }
+            if (isApplied) {
+                mSpeechHandler.speak(songSet.getClosestTrack(bpm).bpm)
+            }
+        } catch (e: CancellationException) {
+            onLoadCancelled(songSet, trace)
+        } finally {
+            state = PlayerState.PLAYING
+        }
+    }
+
+    // Replaces the audio queued in audioTrack that has not been heard yet with song, from the
+    // position matching the next frame to be heard, so that a variant switch is heard within a
+    // block instead of after the queued audio. The queued audio is dropped by pausing, which ramps
+    // the output down, and flushing audioTrack. Playback then resumes from the same point of the
+    // current song, crossfaded into the new one over VARIANT_CROSSFADE_FRAMES, so the splice does
+    // not click. Only used when both songs are cached, and streamed from the input mappings of
+    // their PCM, so neither waits for a decoder. Returns false, with playback untouched, if the
+    // switch cannot be made this way. Runs on the audio feeder.
+    private fun replaceQueuedAudio(
+        songSet: LoadedTimeShiftedSongSet,
+        currentlyPlaying: LoadedSong,
+        currentSamples: ByteBuffer,
+        song: LoadedSong,
+        samples: ByteBuffer,
+        tempo: Double,
+        trace: LatencyTrace
+    ): Boolean {
+        val track = audioTrack ?: return false
+        if (track.playState != AudioTrack.PLAYSTATE_PLAYING || currentSong != currentlyPlaying) {
+            return false
+        }
+        val currentTempo = getTempoStream()?.tempo ?: 1.0
+        track.pause()
+        val position = playbackMap.lookup(track.playbackHeadPosition)
+        if (position == null || position.song != currentlyPlaying) {
+            track.play()
+            return false
+        }
+        track.flush()
+        this.lastAudioTrackIndex = 0
+        outputResampler.reset()
+        playbackMap.clear()
+        latencyRecorder.clearPending()
+        bufferController.onRestart()
+
+        val headIndex = position.frame * BYTES_PER_FRAME
+        val newIndex = PcmUtils.alignToFrame(getVariantIndex(currentlyPlaying, song, headIndex))
+        currentStream?.close()
+        currentStream = processTempo(MappedSongStream(currentlyPlaying, currentSamples, headIndex), currentTempo)
+        installStream(songSet, processTempo(MappedSongStream(song, samples, newIndex), tempo), VARIANT_CROSSFADE_FRAMES)
+        onChangeApplied(trace)
+        writeNextBuffers(bufferController.blockBytes)
+        track.play()
+        Log.d(TAG, "Replaced queued audio of ${currentlyPlaying.name} at ${currentlyPlaying.bpm} BPM with ${song.bpm} BPM")
+        return true
+    }
+
+    // Index in variant to matching index in variant from, i.e. the same position in the song
+    private fun getVariantIndex(from: LoadedSong, to: LoadedSong, index: Int): Int {
+        val alignment = beatGridCache.getAlignment(from, to)
+        return alignment?.map(index) ?: round(from.bpm.toDouble() / to.bpm.toDouble() * index).toInt()
+    }
+
+    // Whether song, of songSet, follows bpm at its own tempo, so that it needs no tempo processing
+    // or variant switch
+    private fun isPlayableAsIs(songSet: LoadedTimeShiftedSongSet, song: LoadedSong, bpm: Int): Boolean {
+        if (getTempoStream() != null) {
+            return abs(songSet.getTempo(bpm) - 1) <= OFFLOAD_MAX_TEMPO_ERROR
+        }
+        return songSet.getClosestTrack(bpm) == song
+    }
+
+    // Sets the tempo of the playing song for bpm. Runs on the audio feeder.
+    private fun changeTempo(bpm: Int, trace: LatencyTrace) {
+        trace.mark(LatencyStage.HANDED_OVER)
+        val tempoStream = this.currentStream as? TempoSongStream ?: return
+        val songSet = this.currentSongSet ?: return
+        tempoStream.tempo = songSet.getTempo(bpm)
+        onChangeApplied(trace)
+    }
+
+    // Changes the current song within the song set, resuming the new variant's stream from the
+    // equivalent position, if both variants are cached. Their PCM is mapped here, and the switch
+    // then replaces the audio queued in audioTrack on the audio feeder, since the position depends
+    // on what has been played, so it is heard straight away. Returns whether the song was changed.
+    // Runs on the control thread.
+    private fun switchVariant(song: LoadedSong, bpm: Int, trace: LatencyTrace): Boolean {
+        val currentlyPlaying = this.currentSong ?: return false
+        val songSet = this.currentSongSet ?: return false
+        if (currentStream is CrossfadeSongStream || currentlyPlaying == song) {
+            return false
+        }
+        val currentSamples = mapCachedSong(currentlyPlaying, JobPriority.PLAYING) ?: return false
+        val samples = mapCachedSong(song, JobPriority.PLAYING) ?: return false
+        return runOnFeeder {
+            trace.mark(LatencyStage.HANDED_OVER)
+            replaceQueuedAudio(songSet, currentlyPlaying, currentSamples, song, samples, songSet.getTempo(bpm), trace)
+        }
+    }
 
-                // Change current song within the song set
-                this.currentSong = closestLoadedTrack
-                curWritingIndex =
-                    (round((currentlyPlaying.bpm.toDouble() / closestLoadedTrack.bpm.toDouble()) * curWritingIndex).toInt()) / 4 * 4
-                writeNextBuffers()
-                mSpeechHandler.speak(closestLoadedTrack.bpm)
-            } finally {
-                bufferMutex.unlock()
+    // Changes the current song within the song set when the new variant has to be decoded. The
+    // switch is made VARIANT_SWITCH_LEAD_MS past the audio written so far, on the next beat if the
+    // beats of both variants are known, so that the new one starts on the matching beat. The new
+    // variant's stream is prepared from there on the control thread, and the switch is scheduled
+    // for the audio feeder to make once it has fed the current variant up to that point. Returns
+    // whether the switch was scheduled, which it is not if the audio feeder got past the switch
+    // point first. Runs on the control thread.
+    private fun switchVariantOnBeat(song: LoadedSong, bpm: Int, trace: LatencyTrace): Boolean {
+        val currentlyPlaying = this.currentSong ?: return false
+        val songSet = this.currentSongSet ?: return false
+        if (currentStream is CrossfadeSongStream || currentlyPlaying == song) {
+            return false
+        }
+        val leadIndex = runOnFeeder { curWritingIndex } + VARIANT_SWITCH_LEAD_MS * BYTES_PER_SECOND / 1000
+        val beatIndex = beatGridCache.getAlignment(currentlyPlaying, song)?.getNextBeatIndex(leadIndex) ?: -1
+        val switchIndex = PcmUtils.alignToFrame(if (beatIndex >= 0) beatIndex else leadIndex)
+        val newIndex = PcmUtils.alignToFrame(getVariantIndex(currentlyPlaying, song, switchIndex))
+        val stream = prepareStream(song, newIndex, songSet.getTempo(bpm))
+        trace.mark(LatencyStage.PREPARED)
+        return runOnFeeder {
+            trace.mark(LatencyStage.HANDED_OVER)
+            val currentStream = this.currentStream
+            if (currentSong != currentlyPlaying || currentStream == null || currentStream is CrossfadeSongStream ||
+                curWritingIndex > switchIndex
+            ) {
+                Log.d(TAG, "Missed the switch to ${song.name} at ${song.bpm} BPM")
+                stream.close()
+                false
+            } else {
+                scheduleChange(ScheduledChange(currentStream, switchIndex, false, {
+                    installStream(songSet, stream, VARIANT_CROSSFADE_FRAMES)
+                    onChangeApplied(trace)
+                }) { stream.close() })
+                true
             }
         }
     }
 
     // Flush audio track buffers and reset index counters.
     private fun reset() {
+        flush()
+        audioTrack?.play()
+    }
+
+    // Drops the audio queued in audioTrack and what was recorded about it, leaving audioTrack
+    // paused or stopped if it was
+    private fun flush() {
         audioTrack?.flush()
         this.curWritingIndex = 0
         this.lastAudioTrackIndex = 0
-        audioTrack?.play()
+        outputResampler.reset()
+        playbackMap.clear()
+        latencyRecorder.clearPending()
+        bufferController.onRestart()
+    }
+
+    // Starts timing how long the frames written from now on, which carry a cadence update's
+    // change, take to be heard
+    private fun onChangeApplied(trace: LatencyTrace) {
+        latencyRecorder.onChangeApplied(trace, (lastAudioTrackIndex / BYTES_PER_FRAME).toLong())
+    }
+
+    // Completes latency traces whose first changed frame the AudioTrack has played
+    private fun recordPlayedFrames(track: AudioTrack) {
+        if (!track.getTimestamp(audioTimestamp)) {
+            return
+        }
+        latencyRecorder.onTimestamp(
+            audioTimestamp.framePosition,
+            audioTimestamp.nanoTime,
+            track.sampleRate.toDouble(),
+            getOutputLatencyNs(track)
+        )
+    }
+
+    // Write the next numBytes from the currently playing stream into the AudioTrack API. Returns
+    // whether anything was written. If the stream has nothing decoded to read, the rest of the
+    // block is written as silence. A scheduled change is made once the stream reaches its index, or
+    // its end, and writing carries on from there. If the next song set is not prepared when the
+    // current song should fade out, the current song plays on until it is, and once the current
+    // song ends, nothing is written until it is.
+    private fun writeNextBuffers(numBytes: Int): Boolean {
+        var bytesToWrite = numBytes
+        var hasChangedSong = false
+        var isNextSongSetPending = false
+        while (bytesToWrite > 0) {
+            val stream = this.currentStream ?: break
+            val bytesUntilChange = getBytesUntilScheduledChange(stream)
+            if (bytesUntilChange == 0) {
+                if (!applyScheduledChange()) {
+                    return true
+                }
+                continue
+            }
+            var bytesUntilCrossfade = getBytesUntilCrossfade(stream)
+            if (bytesUntilCrossfade == 0 && scheduledChange != null) {
+                // The song that is due to fade out is left to the scheduled change
+                bytesUntilCrossfade = Int.MAX_VALUE
+            }
+            if (bytesUntilCrossfade == 0) {
+                if (hasChangedSong) {
+                    break
+                }
+                // Fade the next song in over the end of the current one
+                if (!isNextSongSetPending && crossfadeToNextSongSet()) {
+                    hasChangedSong = true
+                    continue
+                }
+                isNextSongSetPending = true
+                bytesUntilCrossfade = bytesToWrite
+            }
+            val startPosition = stream.position
+            val buffer = stream.read(min(bytesToWrite, min(bytesUntilCrossfade, bytesUntilChange)))
+            if (buffer == null) {
+                if (scheduledChange != null) {
+                    // The stream ended before the change was due, so it is made now
+                    if (!applyScheduledChange()) {
+                        return true
+                    }
+                    continue
+                }
+                if (hasChangedSong || isNextSongSetPending || !startNextSongSet()) {
+                    break
+                }
+                // Continued straight into the next song so that there is no gap at the boundary
+                hasChangedSong = true
+                continue
+            }
+            val sizeRead = buffer.remaining()
+            if (sizeRead == 0) {
+                // The decoder has fallen behind, so silence is written rather than waiting on it
+                onStreamUnderrun(stream)
+                writeSilence(bytesToWrite)
+                bytesToWrite = 0
+                break
+            }
+            isStreamStarved = false
+
+            onBufferWritten(stream, startPosition, writeToTrack(buffer))
+            bytesToWrite -= sizeRead
+            if (stream is CrossfadeSongStream && stream.isFadeComplete()) {
+                finishCrossfade(stream)
+            }
+        }
+        return bytesToWrite < numBytes
+    }
+
+    // Schedules change, replacing any change scheduled before. Runs on the audio feeder.
+    private fun scheduleChange(change: ScheduledChange) {
+        discardScheduledChange()
+        scheduledChange = change
+    }
+
+    // Drops the scheduled change, if any. Runs on the audio feeder.
+    private fun discardScheduledChange() {
+        val change = scheduledChange ?: return
+        scheduledChange = null
+        change.discard()
+    }
+
+    // Makes the scheduled change. Returns false if it handed playback over to offloadPlayer, so
+    // nothing more is written to audioTrack. Runs on the audio feeder.
+    private fun applyScheduledChange(): Boolean {
+        val change = scheduledChange ?: return true
+        scheduledChange = null
+        change.apply()
+        return offloadPlayer == null
+    }
+
+    // Number of bytes that can be read from the input stream before the scheduled change is due,
+    // or Int.MAX_VALUE if none is scheduled. A change scheduled for another stream no longer
+    // applies and is dropped.
+    private fun getBytesUntilScheduledChange(stream: SongStream): Int {
+        val change = scheduledChange ?: return Int.MAX_VALUE
+        if (change.stream !== stream) {
+            discardScheduledChange()
+            return Int.MAX_VALUE
+        }
+        val tempo = getTempoStream()?.tempo ?: 1.0
+        return max(((change.index - stream.position) / tempo).toInt() / BYTES_PER_FRAME, 0) * BYTES_PER_FRAME
+    }
+
+    // Continues with the incoming stream alone once a crossfade is over. The incoming song was
+    // played at the tempo of the outgoing one, so its tempo now follows the cadence.
+    private fun finishCrossfade(stream: CrossfadeSongStream) {
+        currentStream = stream.incoming
+        val songSet = this.currentSongSet
+        val bpm = cadenceTrend.latest()
+        if (songSet != null && bpm != null) {
+            getTempoStream()?.tempo = songSet.getTempo(bpm)
+        }
+        controlLoop.post(ControlCommand.PlaybackChanged)
+    }
+
+    // Number of bytes that can be written from the input stream before the next song should start
+    // fading in over it, or Int.MAX_VALUE if it is not faded out
+    private fun getBytesUntilCrossfade(stream: SongStream): Int {
+        if (crossfadeBeats <= 0 || stream is CrossfadeSongStream || stream.length < 0) {
+            return Int.MAX_VALUE
+        }
+        val tempo = getTempoStream()?.tempo ?: 1.0
+        val remainingFrames = ((stream.length - stream.position) / tempo).toInt() / BYTES_PER_FRAME
+        // Leave a beat to reach the beat the crossfade starts on
+        val fadeOutFrames = getCrossfadeFrames() + getBeatFrames()
+        return max(remainingFrames - fadeOutFrames, 0) * BYTES_PER_FRAME
+    }
+
+    // Frames in a beat of the playing audio, or 0 if nothing is playing
+    private fun getBeatFrames(): Int {
+        val bpm = getCurrentBpm() ?: return 0
+        return 60 * SAMPLE_RATE / max(bpm, 1)
     }
 
-    // Write the next buffers from the currently playing song into the AudioTrack API
-    private fun writeNextBuffers(numBuffers: Int = 1) {
-        val currentlyPlaying = this.currentSong ?: return
-        for (i in 1..numBuffers) {
-            val bytesRemaining = currentlyPlaying.samples.size - curWritingIndex
-            if (bytesRemaining <= 0) {
+    // Frames the next song set's song fades in over, at the tempo of the playing audio
+    private fun getCrossfadeFrames(): Int {
+        return crossfadeBeats * getBeatFrames()
+    }
+
+    // Index in the current song of its next beat from the audio written so far, or of the audio
+    // written so far if its beats are not known
+    private fun getNextBeatIndex(): Int {
+        val song = this.currentSong ?: return curWritingIndex
+        val beatGrid = beatGridCache.get(song) ?: return curWritingIndex
+        val beat = beatGrid.getNextBeat((curWritingIndex + BYTES_PER_FRAME - 1) / BYTES_PER_FRAME)
+        return if (beat >= 0) beatGrid.getBeatFrame(beat) * BYTES_PER_FRAME else curWritingIndex
+    }
+
+    // Discards the input stream's audio before the first beat of its song, if its beats are known,
+    // so that the song fades in from its first beat. Stops early if the stream has not decoded that
+    // far yet.
+    private fun skipToFirstBeat(stream: SongStream) {
+        val beatGrid = beatGridCache.get(stream.song) ?: return
+        if (beatGrid.beatCount == 0) {
+            return
+        }
+        skipTo(stream, beatGrid.getBeatFrame(0) * BYTES_PER_FRAME)
+    }
+
+    // Discards the input stream's audio before index. Stops early if the stream has not decoded
+    // that far yet.
+    private fun skipTo(stream: SongStream, index: Int) {
+        while (stream.position < index) {
+            val buffer = stream.read(index - stream.position) ?: return
+            if (!buffer.hasRemaining()) {
                 return
             }
+        }
+    }
 
-            val sizeWritten = audioTrack?.write(
-                currentlyPlaying.samples,
-                curWritingIndex,
-                min(bytesRemaining, BUFFER_SIZE_BYTES)
-            )
-            Log.d(TAG, "Written $sizeWritten bytes at ${currentlyPlaying.bpm} BPM")
-            curWritingIndex += BUFFER_SIZE_BYTES
-            lastAudioTrackIndex += BUFFER_SIZE_BYTES
+    // Counts the start of a run of writes for which the input stream had nothing decoded
+    private fun onStreamUnderrun(stream: SongStream) {
+        if (!isStreamStarved) {
+            isStreamStarved = true
+            streamUnderrunCount++
+            Log.w(TAG, "Stream of ${stream.song.name} at ${stream.song.bpm} BPM ran dry at ${stream.position}")
         }
     }
 
-    // Periodically called when the AudioTrack API is playing back audio
-    private fun onPeriodicPlayback(track: AudioTrack) {
-        bufferMutex.lock()
-        try {
-            val currentlyPlaying = this@CadenceAudioPlayerService.currentSong
-                ?: throw IllegalStateException("currentlyPlaying is null on callback.")
-            val bytesRemaining =
-                currentlyPlaying.samples.size - this@CadenceAudioPlayerService.curWritingIndex
-            Log.d(
-                TAG,
-                "${currentlyPlaying.samples.size} ${this@CadenceAudioPlayerService.curWritingIndex} ${bytesRemaining}"
-            )
-            if (bytesRemaining <= 0) {
-                val newSongSet = loadAndAssignNextSong(currentlyPlaying.bpm)
-                this@CadenceAudioPlayerService.currentSong =
-                    getAppropriateLoadedTrack(newSongSet, currentlyPlaying.bpm)
-                reset()
+    // Writes bytes of silence to audioTrack in place of song audio. The silence is not part of any
+    // song, so it is left out of playbackMap.
+    private fun writeSilence(bytes: Int) {
+        val buffer = getSilenceBuffer(bytes)
+        buffer.limit(bytes)
+        lastAudioTrackIndex += writeToTrack(buffer)
+    }
+
+    private fun getSilenceBuffer(size: Int): ByteBuffer {
+        val buffer = silenceBuffer
+        if (buffer != null && buffer.capacity() >= size) {
+            buffer.clear()
+            return buffer
+        }
+        val newBuffer = ByteBuffer.allocateDirect(size)
+        silenceBuffer = newBuffer
+        return newBuffer
+    }
+
+    // Writes all of buffer, read from a song, to audioTrack through outputResampler, blocking until
+    // there is room. Returns the number of bytes written to audioTrack.
+    private fun writeToTrack(buffer: ByteBuffer): Int {
+        val output = outputResampler.process(buffer, phaseLock.rateCorrection)
+        val size = output.remaining()
+        audioTrack?.write(output, size, AudioTrack.WRITE_BLOCKING)
+        return size
+    }
+
+    // Advances the write indices past sizeWritten bytes written to audioTrack from stream, which was
+    // read from startPosition, and records which part of the song they hold
+    private fun onBufferWritten(stream: SongStream, startPosition: Int, sizeWritten: Int) {
+        playbackMap.add(
+            lastAudioTrackIndex / BYTES_PER_FRAME,
+            sizeWritten / BYTES_PER_FRAME,
+            stream.song,
+            startPosition / BYTES_PER_FRAME,
+            stream.position / BYTES_PER_FRAME
+        )
+        curWritingIndex = stream.position
+        lastAudioTrackIndex += sizeWritten
+    }
+
+    // Called on the audio feeder when a step is taken at stepTimeNs on the System.nanoTime clock.
+    // The beat being heard at that moment is found through the AudioTrack's timestamp and the
+    // playback map, and the playback rate is corrected towards the footfall. Steps are ignored
+    // until the playing song's beats are known.
+    private fun stepTaken(stepTimeNs: Long) {
+        val track = audioTrack ?: return
+        if (track.playState != AudioTrack.PLAYSTATE_PLAYING || !track.getTimestamp(audioTimestamp)) {
+            return
+        }
+        val heardTimeNs = stepTimeNs - getOutputLatencyNs(track)
+        val trackFrame = audioTimestamp.framePosition +
+                ((heardTimeNs - audioTimestamp.nanoTime) * track.sampleRate / 1e9).toLong()
+        val position = playbackMap.lookup(trackFrame.toInt()) ?: return
+        val beatGrid = beatGridCache.get(position.song) ?: return
+        val beat = beatGrid.getPreviousBeat(position.frame)
+        if (beat < 0 || beat + 1 >= beatGrid.beatCount) {
+            return
+        }
+        val beatStart = beatGrid.getBeatFrame(beat)
+        val beatPhase = (position.frame - beatStart).toDouble() / (beatGrid.getBeatFrame(beat + 1) - beatStart)
+        // The correction applies to the audio written from now on, through outputResampler
+        phaseLock.onStep(beatPhase)
+        Log.d(
+            TAG,
+            "Step phase error ${phaseLock.lastPhaseError} beats, mean ${phaseLock.meanAbsolutePhaseError}, rate correction ${phaseLock.rateCorrection}"
+        )
+    }
+
+    // Time from a frame's AudioTrack timestamp to it being heard. Bluetooth A2DP devices buffer
+    // and encode audio after that point, which timestamps do not account for on every device.
+    private fun getOutputLatencyNs(track: AudioTrack): Long {
+        val latencyMs = outputLatencyMs
+            ?: if (track.routedDevice?.type == AudioDeviceInfo.TYPE_BLUETOOTH_A2DP) BLUETOOTH_OUTPUT_LATENCY_MS else 0
+        return latencyMs * 1000000L
+    }
+
+    // Called repeatedly on the audio feeder thread. Writes the next block of the current stream
+    // while audioTrack is playing, blocking until it has room, and returns whether anything was
+    // written. Changes posted to the feeder run between blocks, so they take effect within a block.
+    private fun feedAudio(): Boolean {
+        val offload = offloadPlayer
+        if (offload != null) {
+            return feedOffload(offload)
+        }
+        val track = audioTrack ?: return false
+        if (track.playState != AudioTrack.PLAYSTATE_PLAYING || currentStream == null) {
+            return false
+        }
+        val now = SystemClock.uptimeMillis()
+        if (now - lastPlaybackCheckTime >= PLAYBACK_CHECK_INTERVAL_MS) {
+            lastPlaybackCheckTime = now
+            onPlaybackCheck(track, now)
+        }
+        val queuedFrames = lastAudioTrackIndex / BYTES_PER_FRAME - track.playbackHeadPosition
+        bufferController.onWrite(queuedFrames * 1000 / track.sampleRate, now)
+        return writeNextBuffers(bufferController.blockBytes)
+    }
+
+    // Called every PLAYBACK_CHECK_INTERVAL_MS while audioTrack is being fed
+    private fun onPlaybackCheck(track: AudioTrack, now: Long) {
+        val samplesLeft = lastAudioTrackIndex - track.playbackHeadPosition * BYTES_PER_FRAME
+        Log.d(TAG, "${currentSong?.name} $curWritingIndex $samplesLeft")
+        postPrefetchHint(samplesLeft.toLong() / BYTES_PER_FRAME * 1000 / track.sampleRate)
+        recordPlayedFrames(track)
+        if (bufferController.onCheck(track, now)) {
+            controlLoop.post(ControlCommand.PlaybackChanged)
+        }
+        if (canOffload(now)) {
+            requestOffload()
+        }
+    }
+
+    // Whether the current song has followed the cadence at its own tempo for OFFLOAD_STEADY_MS,
+    // with beats close enough to the footfalls that the phase lock can be paused
+    private fun canOffload(now: Long): Boolean {
+        val since = playableAsIsSince
+        return isOffloadEnabled && state == PlayerState.PLAYING && since != 0L &&
+                now - since >= OFFLOAD_STEADY_MS && currentStream !is CrossfadeSongStream &&
+                currentSong != unoffloadableSong && scheduledChange == null && !isOffloadRequested &&
+                abs(phaseLock.rateCorrection) <= OFFLOAD_MAX_RATE_CORRECTION
+    }
+
+    // Asks the control thread to open the current song for offloaded playback from
+    // OFFLOAD_HANDOVER_LEAD_MS past the audio written so far, up to OFFLOAD_END_MARGIN_MS before
+    // the next song fades in. Runs on the audio feeder.
+    private fun requestOffload() {
+        val stream = this.currentStream ?: return
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || stream.length < 0) {
+            return
+        }
+        val bytesUntilCrossfade = getBytesUntilCrossfade(stream)
+        val fadeIndex = if (bytesUntilCrossfade == Int.MAX_VALUE) {
+            stream.length
+        } else {
+            min(stream.length, curWritingIndex + bytesUntilCrossfade)
+        }
+        val startIndex = curWritingIndex + OFFLOAD_HANDOVER_LEAD_MS * BYTES_PER_SECOND / 1000
+        val endIndex = fadeIndex - OFFLOAD_END_MARGIN_MS * BYTES_PER_SECOND / 1000
+        if (endIndex - startIndex < OFFLOAD_MIN_MS * BYTES_PER_SECOND / 1000) {
+            return
+        }
+        isOffloadRequested = true
+        controlLoop.post(ControlCommand.EnterOffload(stream.song, startIndex, endIndex))
+    }
+
+    // Opens song for offloaded playback from startIndex up to endIndex, and has the audio feeder
+    // hand over to it once it has written up to the first offloaded frame. Offloading is disabled
+    // if the device cannot offload MP3 at all, and the song is skipped if it cannot be offloaded
+    // itself, e.g. for lack of a frame index. Runs on the control thread.
+    private fun enterOffload(song: LoadedSong, startIndex: Int, endIndex: Int) {
+        if (Build.VERSION.SDK_INT < Build.VERSION_CODES.Q || currentSong != song || state != PlayerState.PLAYING) {
+            isOffloadRequested = false
+            return
+        }
+        if (!OffloadPlayer.isSupported(audioAttributes)) {
+            Log.w(TAG, "Offloaded playback is not supported, disabling it")
+            isOffloadEnabled = false
+            isOffloadRequested = false
+            return
+        }
+        val offload = try {
+            OffloadPlayer.open(resources, frameIndexCache, audioAttributes, song, startIndex, endIndex, audioFeeder::wake)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to open ${song.name} for offloaded playback", e)
+            null
+        }
+        if (offload == null) {
+            Log.d(TAG, "Cannot offload ${song.name}, playing it on the PCM engine")
+            unoffloadableSong = song
+            isOffloadRequested = false
+            return
+        }
+        audioFeeder.post { scheduleOffload(offload) }
+    }
+
+    // Schedules the hand over of the current song to offload for when the current stream has been
+    // written up to the frame offload starts at. The audio queued in audioTrack then plays out
+    // before offload starts. offload is dropped if the song changed, or was written past that
+    // frame, while offload was being opened. Runs on the audio feeder.
+    private fun scheduleOffload(offload: OffloadPlayer) {
+        isOffloadRequested = false
+        val stream = this.currentStream
+        if (stream == null || stream.song != offload.song || curWritingIndex > offload.startIndex ||
+            scheduledChange != null || offloadPlayer != null
+        ) {
+            offload.release()
+            return
+        }
+        scheduleChange(ScheduledChange(stream, offload.startIndex, true, {
+            val track = audioTrack
+            if (track == null) {
+                offload.release()
+            } else {
+                val queuedFrames = lastAudioTrackIndex / BYTES_PER_FRAME - track.playbackHeadPosition
+                offloadHandoverTimeNs = System.nanoTime() + queuedFrames * 1000000000L / track.sampleRate
+                offloadPlayer = offload
             }
-            val samplesLeft = lastAudioTrackIndex - track.playbackHeadPosition * 4
-            if (samplesLeft > BUFFER_SIZE_BYTES) {
-                return
+        }) { offload.release() })
+    }
+
+    // Called repeatedly on the audio feeder thread while offloadPlayer is in use. Starts it once the
+    // audio queued in audioTrack has played, keeps it fed, and hands back to the PCM engine near
+    // the end of the audio it was opened for. Returns whether anything was written.
+    private fun feedOffload(offload: OffloadPlayer): Boolean {
+        if (offloadHandoverTimeNs != 0L) {
+            val waitNs = offloadHandoverTimeNs - System.nanoTime()
+            if (waitNs > 0) {
+                // Fill the offloaded AudioTrack while audioTrack plays out. Posted actions wake
+                // the feeder early.
+                var isWriting = offload.feed()
+                while (isWriting) {
+                    isWriting = offload.feed()
+                }
+                LockSupport.parkNanos(waitNs)
+                return true
             }
-            writeNextBuffers()
-        } finally {
-            bufferMutex.unlock()
+            audioTrack?.pause()
+            offload.play()
+            offloadHandoverTimeNs = 0
+            if (state == PlayerState.PLAYING) {
+                playbackModeStats.onModeChanged(PlaybackMode.OFFLOAD)
+            }
+            controlLoop.post(ControlCommand.PlaybackChanged)
+            Log.d(TAG, "Offloaded ${offload.song.name} from ${offload.startIndex} to ${offload.endIndex}")
+        }
+        val now = SystemClock.uptimeMillis()
+        if (now - lastPlaybackCheckTime >= PLAYBACK_CHECK_INTERVAL_MS) {
+            lastPlaybackCheckTime = now
+            postPrefetchHint(0, offload.playedIndex)
+            if (offload.remainingMs < OFFLOAD_LEAVE_MS) {
+                controlLoop.post(ControlCommand.LeaveOffload)
+            }
+        }
+        return offload.feed()
+    }
+
+    // Hands playback back from offloadPlayer to the PCM engine. The PCM stream is prepared here,
+    // from OFFLOAD_HANDBACK_LEAD_MS past the frame being played, while offloadPlayer keeps playing,
+    // and the audio feeder then swaps over without a gap. Runs on the control thread.
+    private fun leaveOffload() {
+        val offload = offloadPlayer ?: return
+        if (audioFeeder.post { cancelOffloadHandover(offload) }.get()) {
+            return
+        }
+        val leadBytes = OFFLOAD_HANDBACK_LEAD_MS * BYTES_PER_SECOND / 1000
+        val index = PcmUtils.alignToFrame(min(offload.playedIndex + leadBytes, offload.endIndex))
+        val stream = prepareStream(offload.song, index, getTempoStream()?.tempo ?: 1.0)
+        audioFeeder.post { swapFromOffload(offload, stream) }.get()
+    }
+
+    // Drops offload if it has not taken over from audioTrack yet, in which case audioTrack is
+    // still playing and the current stream continues where offload would have started. Returns
+    // false if offload is playing and has to be handed back. Runs on the audio feeder.
+    private fun cancelOffloadHandover(offload: OffloadPlayer): Boolean {
+        if (offloadPlayer !== offload) {
+            return true
+        }
+        if (offloadHandoverTimeNs == 0L) {
+            return false
+        }
+        offloadPlayer = null
+        offloadHandoverTimeNs = 0
+        offload.release()
+        return true
+    }
+
+    // Continues the offloaded song on audioTrack from stream, which was prepared from a frame
+    // offload has not played yet. audioTrack is filled with a block of stream while offload keeps
+    // playing, and takes over once offload reaches the block's first frame. If offload has already
+    // played past it, the stream is skipped ahead to the frame being played. Runs on the audio
+    // feeder.
+    private fun swapFromOffload(offload: OffloadPlayer, stream: SongStream) {
+        if (offloadPlayer !== offload) {
+            stream.close()
+            return
+        }
+        skipTo(stream, PcmUtils.alignToFrame(offload.playedIndex))
+        flush()
+        currentStream?.close()
+        currentStream = stream
+        this.curWritingIndex = stream.position
+        val index = stream.position
+        writeNextBuffers(bufferController.blockBytes)
+        val deadlineNs = System.nanoTime() + OFFLOAD_HANDBACK_LEAD_MS * 2 * 1000000L
+        var bytesToPlay = index - offload.playedIndex
+        while (bytesToPlay > 0 && System.nanoTime() < deadlineNs) {
+            // Posted actions wake the feeder early, and wait for the swap
+            LockSupport.parkNanos(bytesToPlay.toLong() * 1000000000L / BYTES_PER_SECOND)
+            bytesToPlay = index - offload.playedIndex
+        }
+        offloadPlayer = null
+        offload.release()
+        audioTrack?.play()
+        if (state == PlayerState.PLAYING || state == PlayerState.SWITCHING) {
+            playbackModeStats.onModeChanged(PlaybackMode.PCM)
+        }
+        controlLoop.post(ControlCommand.PlaybackChanged)
+        Log.d(TAG, "Resumed ${stream.song.name} from $index on the PCM engine")
+    }
+
+    // Asks the control thread to prefetch the song set predicted to follow the current song once
+    // the current song is about to end. Opening the prefetched stream may block, so it is not done
+    // here. queuedMs is the audio written to audioTrack that is not yet played, and position the
+    // index in the song it is followed by, the current stream's position unless it is offloaded.
+    // Runs on the audio feeder.
+    private fun postPrefetchHint(queuedMs: Long, position: Int? = null) {
+        val stream = this.currentStream ?: return
+        if (stream.length < 0 || nextSongSet.get()?.previous == currentSongSet) {
+            return
+        }
+        val tempo = getTempoStream()?.tempo ?: 1.0
+        val remainingMs = ((stream.length - (position ?: stream.position)) / tempo).toLong() * 1000 / BYTES_PER_SECOND +
+                max(queuedMs, 0)
+        if (remainingMs <= SECONDS_TO_LOAD_SONG_SET * 1000) {
+            controlLoop.post(ControlCommand.UpdatePrefetch(remainingMs))
+        }
+    }
+
+    // Prefetches the song set predicted to follow the current song, which has remainingMs left to
+    // play, and prepares it NEXT_SONG_SET_PREPARE_MS before the end. Runs on the control thread.
+    private fun updatePrefetch(remainingMs: Long) {
+        val song = this.currentSong ?: return
+        if (nextSongSet.get()?.previous == currentSongSet) {
+            return
+        }
+        val predictedBpm = cadenceTrend.predict(System.currentTimeMillis() + remainingMs) ?: song.bpm
+        songPrefetcher.update(predictedBpm)
+        if (remainingMs <= NEXT_SONG_SET_PREPARE_MS) {
+            prepareNextSongSet()
         }
     }
 
@@ -532,24 +1679,50 @@ class CadenceAudioPlayerService : Service() {
     private fun broadcastState() {
         sendBroadcast(Intent(ACTION_AUDIO_STATE_UPDATED).also {
             it.putExtra("CURRENT_TRACK_NAME", currentSong?.name)
-            it.putExtra("CURRENT_TRACK_BPM", currentSong?.bpm)
+            it.putExtra("CURRENT_TRACK_BPM", getCurrentBpm())
             it.putExtra("AUDIO_SESSION_ID", audioTrack?.audioSessionId)
-            it.putExtra("IS_PAUSED", audioTrack?.playState == AudioTrack.PLAYSTATE_PAUSED)
-            it.putExtra("IS_LOADING", isLoading)
+            // audioTrack is also paused while offloadPlayer plays, so the state is what counts
+            it.putExtra("IS_PAUSED", state == PlayerState.PAUSED)
+            it.putExtra("PLAYER_STATE", state.name)
+            it.putExtra("PLAYBACK_MODE", playbackModeStats.mode?.name)
+            it.putExtra("IS_LOADING", state == PlayerState.LOADING || state == PlayerState.SWITCHING)
+            it.putExtra("UNDERRUN_COUNT", audioTrack?.underrunCount)
+            it.putExtra("STREAM_UNDERRUN_COUNT", streamUnderrunCount)
+            it.putExtra("TRACK_BUFFER_MS", bufferController.targetMs)
+            it.putExtra("BEAT_PHASE_ERROR", phaseLock.lastPhaseError)
+            it.putExtra("MEAN_BEAT_PHASE_ERROR", phaseLock.meanAbsolutePhaseError)
         })
     }
 
+    // BPM of the playing audio, which differs from the song's when its tempo is processed
+    private fun getCurrentBpm(): Int? {
+        val song = currentSong ?: return null
+        val tempo = getTempoStream()?.tempo ?: 1.0
+        return (song.bpm * tempo).roundToInt()
+    }
+
+    // The current stream's tempo processing stage, or null if its tempo is not processed. During a
+    // crossfade, this is the incoming stream's.
+    private fun getTempoStream(): TempoSongStream? {
+        val stream = currentStream
+        return (if (stream is CrossfadeSongStream) stream.incoming else stream) as? TempoSongStream
+    }
+
     @SuppressLint("DefaultLocale")
+    // Name of the song from its resource name, without the BPM the name may end in
     private fun getSongName(id: Int): String {
-        return resources.getResourceEntryName(id)
+        val words = resources.getResourceEntryName(id)
             .split(".")[0]
             .split("_")
-            .dropLast(1).joinToString(separator = " ") {
-                it.capitalize()
-            }
+        val hasBpm = words.size > 1 && words.last().toIntOrNull() != null
+        return (if (hasBpm) words.dropLast(1) else words).joinToString(separator = " ") {
+            it.capitalize()
+        }
     }
 
     companion object {
         private const val TAG = "CadenceAudioPlayerSvc"
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+        private const val VARIANT_CROSSFADE_FRAMES = SAMPLE_RATE * VARIANT_CROSSFADE_MS / 1000
     }
 }
@@ -0,0 +1,61 @@
+package com.cs4347.cadence.audio
+
+// CadenceTrend tracks recently received steps per minute and extrapolates them linearly, so that
+// the cadence at the end of the current song can be predicted.
+class CadenceTrend {
+    private val timesMs = LongArray(CADENCE_TREND_SAMPLES)
+    private val bpms = IntArray(CADENCE_TREND_SAMPLES)
+    private var count = 0
+    private var nextIndex = 0
+
+    @Synchronized
+    fun add(bpm: Int, timeMs: Long = System.currentTimeMillis()) {
+        timesMs[nextIndex] = timeMs
+        bpms[nextIndex] = bpm
+        nextIndex = (nextIndex + 1) % timesMs.size
+        count = minOf(count + 1, timesMs.size)
+    }
+
+    // Most recently received cadence, or null if none was received
+    @Synchronized
+    fun latest(): Int? {
+        if (count == 0) {
+            return null
+        }
+        return bpms[(nextIndex - 1 + timesMs.size) % timesMs.size]
+    }
+
+    // Predicts the cadence at the input time using a least squares fit of the recent samples.
+    @Synchronized
+    fun predict(timeMs: Long): Int? {
+        val latest = latest() ?: return null
+        if (count < 2) {
+            return latest
+        }
+        val originMs = timesMs[(nextIndex - 1 + timesMs.size) % timesMs.size]
+        var sumX = 0.0
+        var sumY = 0.0
+        var sumXX = 0.0
+        var sumXY = 0.0
+        for (i in 0 until count) {
+            val x = (timesMs[i] - originMs) / 1000.0
+            val y = bpms[i].toDouble()
+            sumX += x
+            sumY += y
+            sumXX += x * x
+            sumXY += x * y
+        }
+        val denominator = count * sumXX - sumX * sumX
+        if (denominator == 0.0) {
+            return latest
+        }
+        val slope = (count * sumXY - sumX * sumY) / denominator
+        val intercept = (sumY - slope * sumX) / count
+        val predicted = intercept + slope * (timeMs - originMs) / 1000.0
+        // Extrapolation is only trusted for small changes
+        return predicted.coerceIn(
+            (latest - MAX_PREDICTED_BPM_CHANGE).toDouble(),
+            (latest + MAX_PREDICTED_BPM_CHANGE).toDouble()
+        ).toInt()
+    }
+}
@@ -0,0 +1,33 @@
+package com.cs4347.cadence.audio
+
+// Commands handled by the audio player's control thread
+sealed class ControlCommand {
+    // The user's cadence changed to bpm steps per minute. A later BpmChanged supersedes it.
+    class BpmChanged(val bpm: Int, val trace: LatencyTrace) : ControlCommand()
+
+    object Pause : ControlCommand()
+
+    object Resume : ControlCommand()
+
+    // The audio feeder changed the playing song or saw playback stall, so the state is rebroadcast
+    object PlaybackChanged : ControlCommand()
+
+    // The current song has remainingMs left to play, so the song set predicted to follow it is
+    // prefetched. A later UpdatePrefetch supersedes it.
+    class UpdatePrefetch(val remainingMs: Long) : ControlCommand()
+
+    // The current song nears its end, so the stream of the next song set is prepared
+    object PrepareNextSongSet : ControlCommand()
+
+    // The current song has played steadily, so it is opened for offloaded playback from startIndex
+    // up to endIndex
+    class EnterOffload(val song: LoadedSong, val startIndex: Int, val endIndex: Int) : ControlCommand()
+
+    // The offloaded audio is about to run out, so playback is handed back to the PCM engine
+    object LeaveOffload : ControlCommand()
+
+    // Whether this command makes an earlier queued one redundant
+    open fun supersedes(other: ControlCommand): Boolean {
+        return other.javaClass == javaClass
+    }
+}
@@ -0,0 +1,74 @@
+package com.cs4347.cadence.audio
+
+import android.util.Log
+import java.util.concurrent.ConcurrentLinkedQueue
+import java.util.concurrent.locks.LockSupport
+
+// ControlLoop is the audio player's control thread. Commands posted from any thread go through a
+// lock-free queue and are handled one at a time, in order, so the state they change is only ever
+// touched from this thread. Commands queued while an earlier one was being handled are coalesced:
+// of those that supersede one another, e.g. repeated cadence updates, only the last is handled.
+class ControlLoop(
+    private val handle: (ControlCommand) -> Unit,
+    // Called on this thread with each command dropped in favour of a later one
+    private val onSuperseded: (ControlCommand) -> Unit
+) : Thread(THREAD_NAME) {
+    private val queue = ConcurrentLinkedQueue<ControlCommand>()
+
+    // Commands taken from the queue in one pass, reused between passes
+    private val pending = ArrayList<ControlCommand>()
+
+    // Whether quit was called, so that long running commands can give up early
+    @Volatile
+    var isQuitting = false
+        private set
+
+    fun post(command: ControlCommand) {
+        queue.offer(command)
+        LockSupport.unpark(this)
+    }
+
+    // Returns the last queued command matching predicate, or null if there is none. Lets a long
+    // running command check whether it is still wanted.
+    fun findLatest(predicate: (ControlCommand) -> Boolean): ControlCommand? {
+        return queue.lastOrNull(predicate)
+    }
+
+    // Stops the thread after the command being handled
+    fun quit() {
+        isQuitting = true
+        LockSupport.unpark(this)
+    }
+
+    override fun run() {
+        while (!isQuitting) {
+            var command = queue.poll()
+            if (command == null) {
+                LockSupport.park(this)
+                continue
+            }
+            while (command != null) {
+                pending.add(command)
+                command = queue.poll()
+            }
+            for (i in pending.indices) {
+                val next = pending[i]
+                if ((i + 1 until pending.size).any { pending[it].supersedes(next) }) {
+                    onSuperseded(next)
+                    continue
+                }
+                try {
+                    handle(next)
+                } catch (e: Exception) {
+                    Log.e(TAG, "Failed to handle ${next.javaClass.simpleName}", e)
+                }
+            }
+            pending.clear()
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceControlLoop"
+        private const val THREAD_NAME = "CadenceControl"
+    }
+}
@@ -0,0 +1,114 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.min
+import kotlin.math.sin
+
+// CrossfadeSongStream mixes the rest of an outgoing stream into the start of an incoming stream
+// with an equal-power crossfade over fadeFrames, then plays the incoming stream alone. While
+// fading, audio is mixed in blocks of at most BLOCK_FRAMES into buffers allocated up front.
+// Positions and lengths are those of the incoming stream.
+class CrossfadeSongStream(
+    private val outgoing: SongStream,
+    val incoming: SongStream,
+    private val fadeFrames: Int
+) : SongStream {
+    override val song: LoadedSong
+        get() = incoming.song
+
+    override val position: Int
+        get() = incoming.position
+
+    override val length: Int
+        get() = incoming.length
+
+    private var fadedFrames = 0
+
+    private val incomingSamples = ShortArray(BLOCK_FRAMES * NUM_CHANNELS)
+    private val outgoingSamples = ShortArray(BLOCK_FRAMES * NUM_CHANNELS)
+    private val mixBuffer =
+        ByteBuffer.allocateDirect(BLOCK_FRAMES * BYTES_PER_FRAME).order(ByteOrder.LITTLE_ENDIAN)
+    private val mixSamples = mixBuffer.asShortBuffer()
+
+    // Whether the crossfade is over, after which reads go straight to the incoming stream
+    fun isFadeComplete(): Boolean {
+        return fadedFrames >= fadeFrames
+    }
+
+    override fun awaitPrebuffered(timeoutMs: Long): Boolean {
+        return incoming.awaitPrebuffered(timeoutMs)
+    }
+
+    override fun read(length: Int): ByteBuffer? {
+        if (isFadeComplete()) {
+            return incoming.read(length)
+        }
+        val frames = min(min(length / BYTES_PER_FRAME, BLOCK_FRAMES), fadeFrames - fadedFrames)
+        val incomingFrames = readFrames(incoming, incomingSamples, frames)
+        if (incomingFrames < 0) {
+            // The incoming song is already over, so there is nothing to fade into
+            fadedFrames = fadeFrames
+            outgoing.close()
+            return null
+        }
+        // The outgoing stream is read in step with the incoming one, and is silent once it ends
+        val outgoingFrames = readFrames(outgoing, outgoingSamples, incomingFrames)
+        outgoingSamples.fill(0, NUM_CHANNELS * if (outgoingFrames < 0) 0 else outgoingFrames)
+        mix(incomingFrames)
+        fadedFrames += incomingFrames
+        if (isFadeComplete()) {
+            outgoing.close()
+        }
+        mixBuffer.clear()
+        mixBuffer.limit(incomingFrames * BYTES_PER_FRAME)
+        return mixBuffer
+    }
+
+    override fun isFinished(): Boolean {
+        return incoming.isFinished()
+    }
+
+    override fun close() {
+        outgoing.close()
+        incoming.close()
+    }
+
+    // Mixes the first frames of both sample buffers into mixBuffer
+    private fun mix(frames: Int) {
+        for (frame in 0 until frames) {
+            val progress = (fadedFrames + frame).toDouble() / fadeFrames
+            val incomingGain = sin(progress * PI / 2)
+            val outgoingGain = cos(progress * PI / 2)
+            for (channel in 0 until NUM_CHANNELS) {
+                val i = frame * NUM_CHANNELS + channel
+                val sample = incomingSamples[i] * incomingGain + outgoingSamples[i] * outgoingGain
+                mixSamples.put(i, sample.coerceIn(-32768.0, 32767.0).toInt().toShort())
+            }
+        }
+    }
+
+    // Reads up to frames frames from stream into samples. Returns the number of frames read,
+    // which is less if the stream has not decoded further yet, or -1 if the stream has ended.
+    private fun readFrames(stream: SongStream, samples: ShortArray, frames: Int): Int {
+        var framesRead = 0
+        while (framesRead < frames) {
+            val buffer = stream.read((frames - framesRead) * BYTES_PER_FRAME)
+                ?: return if (framesRead == 0) -1 else framesRead
+            val bufferFrames = buffer.remaining() / BYTES_PER_FRAME
+            if (bufferFrames == 0) {
+                break
+            }
+            PcmUtils.getSamples(buffer, samples, framesRead * NUM_CHANNELS, bufferFrames * NUM_CHANNELS)
+            framesRead += bufferFrames
+        }
+        return framesRead
+    }
+
+    companion object {
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+        private const val BLOCK_FRAMES = 4096
+    }
+}
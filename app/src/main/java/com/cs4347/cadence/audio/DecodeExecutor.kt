@@ -0,0 +1,94 @@
+package com.cs4347.cadence.audio
+
+import java.util.concurrent.PriorityBlockingQueue
+import java.util.concurrent.ThreadFactory
+import java.util.concurrent.ThreadPoolExecutor
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+// DecodeExecutor runs decoding and analysis as prioritized, cancellable DecodeJobs on a bounded
+// pool of threads sized to the device's cores, separate from the threads on the playback path.
+// This covers the streams being played as well as background work. One core is left free for the
+// thread feeding the AudioTrack. Queued jobs run highest priority first, so work for the playing
+// song overtakes speculative work queued before it. A job that has to wait on something other than
+// the CPU, e.g. a stream waiting for its audio to be played, does so through managedBlock, which
+// lets another thread into the pool meanwhile so that queued jobs are not held up.
+class DecodeExecutor : ThreadPoolExecutor(
+    THREAD_COUNT,
+    THREAD_COUNT,
+    KEEP_ALIVE_SECONDS,
+    TimeUnit.SECONDS,
+    PriorityBlockingQueue<Runnable>(),
+    DecodeThreadFactory()
+) {
+    private val sequence = AtomicLong()
+
+    // Number of jobs waiting in managedBlock, each of which adds a thread to the pool
+    private var blockedJobs = 0
+
+    init {
+        allowCoreThreadTimeOut(true)
+    }
+
+    // Queues task at the input priority. The task is passed its job to check for cancellation.
+    fun schedule(priority: JobPriority, task: (DecodeJob) -> Unit): DecodeJob {
+        val job = DecodeJob(priority, sequence.getAndIncrement(), task)
+        execute(job)
+        return job
+    }
+
+    // Cancels the input job. Returns true if it had not started, in which case it never will.
+    fun cancel(job: DecodeJob): Boolean {
+        job.cancel()
+        return remove(job)
+    }
+
+    // Runs action, which waits on something other than the CPU, on the calling job's thread, with an
+    // extra thread allowed in the pool until it returns
+    fun <T> managedBlock(action: () -> T): T {
+        addBlockedJobs(1)
+        try {
+            return action()
+        } finally {
+            addBlockedJobs(-1)
+        }
+    }
+
+    // The maximum is raised before the core size and lowered after it, since it may never be
+    // below the core size. Raising the core size starts a thread if jobs are queued.
+    @Synchronized
+    private fun addBlockedJobs(count: Int) {
+        blockedJobs += count
+        val threadCount = THREAD_COUNT + blockedJobs
+        if (count > 0) {
+            maximumPoolSize = threadCount
+            corePoolSize = threadCount
+        } else {
+            corePoolSize = threadCount
+            maximumPoolSize = threadCount
+        }
+    }
+
+    // Runnables that are not jobs are queued as speculative jobs, since the queue orders jobs only
+    override fun execute(command: Runnable) {
+        super.execute(
+            command as? DecodeJob
+                ?: DecodeJob(JobPriority.SPECULATIVE, sequence.getAndIncrement()) { command.run() }
+        )
+    }
+
+    private class DecodeThreadFactory : ThreadFactory {
+        private val threadNumber = AtomicInteger()
+
+        override fun newThread(runnable: Runnable): Thread {
+            return Thread(runnable, "CadenceDecode-${threadNumber.incrementAndGet()}")
+        }
+    }
+
+    companion object {
+        val THREAD_COUNT = max(1, Runtime.getRuntime().availableProcessors() - 1)
+        private const val KEEP_ALIVE_SECONDS = 30L
+    }
+}
@@ -0,0 +1,41 @@
+package com.cs4347.cadence.audio
+
+import android.os.Process
+
+// Priorities of background decode and analysis work, highest first
+enum class JobPriority(val threadPriority: Int) {
+    // Needed by the song being played or about to be played
+    PLAYING(Process.THREAD_PRIORITY_DEFAULT),
+
+    // Needed by a likely next switch, e.g. the other variants of the playing song set
+    NEXT(Process.THREAD_PRIORITY_BACKGROUND),
+
+    // May never be needed, e.g. tempo analysis of the library
+    SPECULATIVE(Process.THREAD_PRIORITY_BACKGROUND)
+}
+
+// DecodeJob is a unit of work scheduled on a DecodeExecutor. Jobs run in order of priority, then
+// of scheduling. Cancellation is cooperative: a task checks isCancelled before starting and
+// between codec buffers, and stops early. DecodeExecutor.cancel also drops a queued job outright.
+class DecodeJob(
+    val priority: JobPriority,
+    private val sequence: Long,
+    private val task: (DecodeJob) -> Unit
+) : Runnable, Comparable<DecodeJob> {
+    @Volatile
+    var isCancelled = false
+        private set
+
+    fun cancel() {
+        isCancelled = true
+    }
+
+    override fun run() {
+        Process.setThreadPriority(priority.threadPriority)
+        task(this)
+    }
+
+    override fun compareTo(other: DecodeJob): Int {
+        return compareValuesBy(this, other, { it.priority }, { it.sequence })
+    }
+}
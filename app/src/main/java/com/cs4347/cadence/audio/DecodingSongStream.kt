@@ -0,0 +1,153 @@
+package com.cs4347.cadence.audio
+
+import android.os.Process
+import android.util.Log
+import java.io.IOException
+import java.nio.ByteBuffer
+
+// DecodingSongStream decodes a song variant as a DecodeJob into a bounded PcmRingBuffer, starting
+// from an arbitrary byte index of the decoded PCM. Only the audio that is about to be
+// played is ever held in memory. A stream decoding a song from its start also writes the PCM to
+// pcmCache, so that the song is memory-mapped instead of decoded the next time it is played.
+// The ring buffer's storage is a direct slab borrowed from bufferPool for the life of the stream.
+// Closing the stream cancels the job, which stops after its current buffer if it has started.
+class DecodingSongStream(
+    private val decoder: AudioDecoder,
+    override val song: LoadedSong,
+    private val startIndex: Int,
+    private val pcmCache: PcmCache,
+    private val bufferPool: PcmBufferPool,
+    private val executor: DecodeExecutor,
+    priority: JobPriority
+) : SongStream, PcmSink {
+    private val slab = bufferPool.acquire()
+
+    private val ringBuffer = PcmRingBuffer(slab)
+
+    // Job decoding the song, once started
+    private var job: DecodeJob? = null
+
+    // Scheduling priority of the decode, raised once a prefetched stream is played. A queued job is
+    // requeued at the new priority, and a running one has its thread's priority changed.
+    @Volatile
+    var priority = priority
+        @Synchronized
+        set(value) {
+            field = value
+            val job = this.job ?: return
+            if (job.priority != value && !isClosed && executor.remove(job)) {
+                this.job = executor.schedule(value, this::decode)
+                return
+            }
+            val tid = decoderTid
+            if (tid != 0) {
+                Process.setThreadPriority(tid, value.threadPriority)
+            }
+        }
+
+    // Linux thread ID of the thread running the decode, while it runs
+    @Volatile
+    private var decoderTid = 0
+
+    // Number of bytes returned by the last read, which are freed on the next read
+    private var lastReadSize = 0
+
+    private var isClosed = false
+
+    // Writer for the decoded PCM, if the whole song is being decoded
+    private var cacheWriter: PcmCache.Writer? = null
+
+    override var position = startIndex
+        private set
+
+    // Estimated from the duration reported by the extractor
+    @Volatile
+    override var length = -1
+        private set
+
+    @Synchronized
+    fun start(): DecodingSongStream {
+        job = executor.schedule(priority, this::decode)
+        return this
+    }
+
+    override fun awaitPrebuffered(timeoutMs: Long): Boolean {
+        return ringBuffer.awaitAvailable(PREBUFFER_BYTES, timeoutMs)
+    }
+
+    override fun read(length: Int): ByteBuffer? {
+        ringBuffer.consume(lastReadSize)
+        lastReadSize = 0
+        val view = ringBuffer.peek(length) ?: return null
+        lastReadSize = view.remaining()
+        position += lastReadSize
+        return view
+    }
+
+    override fun isFinished(): Boolean {
+        return ringBuffer.isDrained()
+    }
+
+    @Synchronized
+    override fun close() {
+        if (isClosed) {
+            return
+        }
+        isClosed = true
+        job?.let { executor.cancel(it) }
+        ringBuffer.close()
+        bufferPool.release(slab)
+    }
+
+    override fun onLengthKnown(length: Int) {
+        this.length = length
+    }
+
+    override fun write(buffer: ByteBuffer): Boolean {
+        writeToCache(buffer.duplicate())
+        if (ringBuffer.remainingCapacity() >= buffer.remaining()) {
+            return ringBuffer.write(buffer)
+        }
+        // Waiting for the audio to be played would otherwise hold a decode thread for most of the
+        // song
+        return executor.managedBlock { ringBuffer.write(buffer) }
+    }
+
+    private fun decode(job: DecodeJob) {
+        if (job.isCancelled) {
+            return
+        }
+        decoderTid = Process.myTid()
+        Process.setThreadPriority(priority.threadPriority)
+        if (startIndex == 0) {
+            cacheWriter = pcmCache.newWriter(song.resourceId)
+        }
+        try {
+            if (decoder.decode(song, startIndex, this)) {
+                cacheWriter?.commit()
+            }
+        } catch (e: Exception) {
+            Log.e(TAG, "Failed to decode ${song.name} at ${song.bpm} BPM", e)
+        } finally {
+            decoderTid = 0
+            cacheWriter?.close()
+            ringBuffer.markEndOfStream()
+        }
+    }
+
+    // Caching is abandoned on IO errors, since playback does not depend on it
+    private fun writeToCache(buffer: ByteBuffer) {
+        val writer = cacheWriter ?: return
+        try {
+            writer.write(buffer)
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to cache ${song.name} at ${song.bpm} BPM", e)
+            writer.close()
+            cacheWriter = null
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceSongStream"
+    }
+}
@@ -0,0 +1,158 @@
+package com.cs4347.cadence.audio
+
+import android.content.res.Resources
+import android.util.Log
+import fr.delthas.javamp3.Sound
+import java.io.BufferedInputStream
+import java.io.ByteArrayInputStream
+import java.io.IOException
+import java.io.InputStream
+import java.io.SequenceInputStream
+import java.nio.ByteBuffer
+import kotlin.math.min
+
+// JavaMp3AudioDecoder decodes song variants on the JVM with javamp3 instead of MediaCodec. It does
+// not depend on any Android APIs apart from opening the resource, so it also runs in host tests.
+class JavaMp3AudioDecoder(
+    private val resources: Resources,
+    private val frameIndexCache: Mp3FrameIndexCache
+) : AudioDecoder {
+    override fun decode(song: LoadedSong, startIndex: Int, sink: PcmSink): Boolean {
+        val input = resources.openRawResource(song.resourceId)
+        val frameIndex = frameIndexCache.get(song.resourceId)
+        if (frameIndex == null) {
+            Log.w(TAG, "No frame index for ${song.name} at ${song.bpm} BPM, decoding from start")
+            return decodeStream(input, startIndex, sink)
+        }
+        return decodeIndexedStream(input, frameIndex, startIndex, sink)
+    }
+
+    companion object {
+        private const val TAG = "CadenceJavaMp3"
+
+        // Size of the blocks read from javamp3 and passed to the sink
+        private const val READ_SIZE_BYTES = 16 * 1024
+
+        // Decodes the MP3 in input from the input byte index of its PCM, starting at the frame
+        // before startIndex given by frameIndex instead of at the start of the file. The PCM is
+        // aligned with frameIndex, so it does not include the silence of the Xing or Info frame.
+        fun decodeIndexedStream(
+            input: InputStream,
+            frameIndex: Mp3FrameIndex,
+            startIndex: Int,
+            sink: PcmSink
+        ): Boolean {
+            sink.onLengthKnown(frameIndex.length)
+            // javamp3 only starts decoding at a frame that borrows no main data from the frames
+            // before it, which in practice is only the first audio frame. So the first frame is
+            // decoded first to fill the bit reservoir, followed by the frames from a preroll frame
+            // that borrows no more than the first frame provides.
+            var frame = frameIndex.getPrerollFrame(startIndex)
+            while (frame > 1 && frameIndex.getMainDataBegin(frame) > frameIndex.getMainDataSize(0)) {
+                frame--
+            }
+            val firstFrameOffset = frameIndex.getFrameOffset(0)
+            // A song of a single frame is always decoded from its start, so has no second frame
+            val firstFrameEnd = if (frameIndex.frameCount > 1) frameIndex.getFrameOffset(1) else firstFrameOffset
+            val firstFrame = ByteArray(firstFrameEnd - firstFrameOffset)
+            try {
+                skipFully(input, firstFrameOffset)
+                if (frame <= 1) {
+                    return decodeStream(input, startIndex, sink)
+                }
+                readFully(input, firstFrame)
+                skipFully(input, frameIndex.getFrameOffset(frame) - frameIndex.getFrameOffset(1))
+            } catch (e: IOException) {
+                input.close()
+                throw e
+            }
+            return decodeStream(
+                SequenceInputStream(ByteArrayInputStream(firstFrame), input),
+                startIndex - frameIndex.getFrameStartIndex(frame) + frameIndex.getFrameStartIndex(1),
+                sink
+            )
+        }
+
+        // Decodes the MP3 in input from the input byte index of its PCM. The input stream is
+        // closed once decoding stops.
+        fun decodeStream(input: InputStream, startIndex: Int, sink: PcmSink): Boolean {
+            Sound(BufferedInputStream(input)).use { sound ->
+                if (sound.samplingFrequency != SAMPLE_RATE) {
+                    throw IllegalStateException("Unsupported sample rate ${sound.samplingFrequency}")
+                }
+                // javamp3 outputs 16-bit little endian PCM with the channel count of the file
+                val isStereo = sound.isStereo
+                val readBuffer = ByteArray(READ_SIZE_BYTES)
+
+                // Sound.skip skips MP3 bytes rather than PCM, so the PCM before startIndex is
+                // decoded and discarded instead.
+                var bytesToSkip = if (isStereo) startIndex else startIndex / 2
+                while (bytesToSkip > 0) {
+                    val sizeRead = sound.read(readBuffer, 0, min(bytesToSkip, readBuffer.size))
+                    if (sizeRead < 0) {
+                        return true
+                    }
+                    bytesToSkip -= sizeRead
+                }
+
+                val stereoBuffer = if (isStereo) readBuffer else ByteArray(READ_SIZE_BYTES * 2)
+                val output = ByteBuffer.wrap(stereoBuffer)
+                while (true) {
+                    val sizeRead = sound.read(readBuffer)
+                    if (sizeRead < 0) {
+                        return true
+                    }
+                    var outputSize = sizeRead
+                    if (!isStereo) {
+                        outputSize = upmixToStereo(readBuffer, sizeRead, stereoBuffer)
+                    }
+                    output.clear()
+                    output.limit(outputSize)
+                    if (!sink.write(output)) {
+                        return false
+                    }
+                }
+            }
+        }
+
+        // Skips count bytes of input. Throws IOException if it ends first.
+        fun skipFully(input: InputStream, count: Int) {
+            var remaining = count.toLong()
+            while (remaining > 0) {
+                val skipped = input.skip(remaining)
+                if (skipped <= 0) {
+                    if (input.read() < 0) {
+                        throw IOException("Unexpected end of MP3 data")
+                    }
+                    remaining--
+                } else {
+                    remaining -= skipped
+                }
+            }
+        }
+
+        private fun readFully(input: InputStream, buffer: ByteArray) {
+            var offset = 0
+            while (offset < buffer.size) {
+                val sizeRead = input.read(buffer, offset, buffer.size - offset)
+                if (sizeRead < 0) {
+                    throw IOException("Unexpected end of MP3 data")
+                }
+                offset += sizeRead
+            }
+        }
+
+        // Duplicates each 16-bit mono sample into both channels. Returns the output size.
+        private fun upmixToStereo(mono: ByteArray, size: Int, stereo: ByteArray): Int {
+            var i = 0
+            while (i + 1 < size) {
+                stereo[2 * i] = mono[i]
+                stereo[2 * i + 1] = mono[i + 1]
+                stereo[2 * i + 2] = mono[i]
+                stereo[2 * i + 3] = mono[i + 1]
+                i += 2
+            }
+            return 2 * (size / 2 * 2)
+        }
+    }
+}
@@ -0,0 +1,71 @@
+package com.cs4347.cadence.audio
+
+import java.io.PrintWriter
+import kotlin.math.max
+
+// LatencyHistogram counts latencies in buckets whose width doubles from 1 ms, which covers the
+// range from sub-millisecond handoffs to multi-second buffers in a few dozen buckets
+class LatencyHistogram(val name: String) {
+    // Bucket 0 counts latencies under 1 ms, and bucket i those from 2^(i - 1) up to 2^i ms
+    private val counts = LongArray(BUCKET_COUNT)
+
+    private var count = 0L
+    private var totalNs = 0L
+    private var maxNs = 0L
+
+    @Synchronized
+    fun record(latencyNs: Long) {
+        val latency = max(latencyNs, 0)
+        val latencyMs = latency / 1000000
+        val bucket = if (latencyMs == 0L) 0 else 64 - java.lang.Long.numberOfLeadingZeros(latencyMs)
+        counts[minOf(bucket, BUCKET_COUNT - 1)]++
+        count++
+        totalNs += latency
+        maxNs = max(maxNs, latency)
+    }
+
+    // Upper bound in ms of the bucket holding the input fraction of latencies, or 0 if none
+    @Synchronized
+    fun getPercentileMs(fraction: Double): Long {
+        var remaining = (count * fraction).toLong()
+        for (bucket in counts.indices) {
+            remaining -= counts[bucket]
+            if (remaining < 0) {
+                return 1L shl bucket
+            }
+        }
+        return if (count == 0L) 0 else 1L shl (BUCKET_COUNT - 1)
+    }
+
+    @Synchronized
+    fun dump(writer: PrintWriter) {
+        if (count == 0L) {
+            writer.println("$name: no samples")
+            return
+        }
+        writer.println(
+            "$name: n=$count mean=${totalNs / count / 1000000} ms p50<${getPercentileMs(0.5)} ms " +
+                    "p90<${getPercentileMs(0.9)} ms p99<${getPercentileMs(0.99)} ms max=${maxNs / 1000000} ms"
+        )
+        for (bucket in counts.indices) {
+            if (counts[bucket] == 0L) {
+                continue
+            }
+            val lowerMs = if (bucket == 0) 0 else 1L shl (bucket - 1)
+            writer.println("  [$lowerMs, ${1L shl bucket}) ms: ${counts[bucket]}")
+        }
+    }
+
+    @Synchronized
+    fun reset() {
+        counts.fill(0)
+        count = 0
+        totalNs = 0
+        maxNs = 0
+    }
+
+    companion object {
+        // Up to 2^20 ms, about 17 minutes
+        private const val BUCKET_COUNT = 21
+    }
+}
@@ -1,11 +1,33 @@
 package com.cs4347.cadence.audio
 
-import kotlin.math.round
+import kotlin.math.abs
+import kotlin.math.min
 
 data class LoadedTimeShiftedSongSet(val slow: LoadedSong, val original: LoadedSong, val fast: LoadedSong) {
     fun getAverageDifference(): Int {
         return (original.bpm - slow.bpm + fast.bpm - original.bpm) / 2
     }
+
+    // Get the song out of this song set that best matches the input bpm.
+    fun getClosestTrack(bpm: Int): LoadedSong {
+        return getTracksByDistance(bpm).first()
+    }
+
+    // Get the songs of this song set ordered from the best to the worst match for the input bpm.
+    // Variants are decoded lazily in this order.
+    fun getTracksByDistance(bpm: Int): List<LoadedSong> {
+        return listOf(slow, original, fast).sortedBy {
+            min(abs(it.bpm - bpm), abs(it.bpm - 2 * bpm))
+        }
+    }
+
+    // Get the tempo at which the original song matches the input bpm, or twice the input bpm if
+    // that is closer, limited to the range that time-stretching renders cleanly.
+    fun getTempo(bpm: Int): Double {
+        val targetBpm = if (abs(original.bpm - 2 * bpm) < abs(original.bpm - bpm)) 2 * bpm else bpm
+        return (targetBpm.toDouble() / original.bpm).coerceIn(MIN_TEMPO, MAX_TEMPO)
+    }
 }
 
-data class LoadedSong(val name: String, val bpm: Int, val samples: ByteArray)
\ No newline at end of file
+// A song variant that is decoded from its raw resource on demand through a SongStream
+data class LoadedSong(val name: String, val bpm: Int, val resourceId: Int)
@@ -0,0 +1,29 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+
+// MappedSongCache keeps the memory mappings of the variants of recently played song sets' PCM from
+// the PcmCache, evicted in least recently used order. Revisiting a song set, e.g. when the cadence
+// oscillates around a BPM boundary, then reuses a mapping instead of opening and mapping the file
+// again. A mapping only costs address space, and its pages are backed by the file, so the kernel
+// reclaims them under memory pressure whether or not they are mapped. The cache is therefore
+// bounded by the number of songs rather than their size. Songs still being decoded are not in it.
+class MappedSongCache(private val maxSongs: Int) {
+    // Access ordered, so iteration starts at the least recently used song
+    private val songs = LinkedHashMap<LoadedSong, ByteBuffer>(16, 0.75f, true)
+
+    @Synchronized
+    fun get(song: LoadedSong): ByteBuffer? {
+        return songs[song]
+    }
+
+    @Synchronized
+    fun put(song: LoadedSong, samples: ByteBuffer) {
+        songs[song] = samples
+        val iterator = songs.entries.iterator()
+        while (songs.size > maxSongs && iterator.hasNext()) {
+            iterator.next()
+            iterator.remove()
+        }
+    }
+}
@@ -0,0 +1,245 @@
+package com.cs4347.cadence.audio
+
+import android.content.res.AssetFileDescriptor
+import android.content.res.Resources
+import android.media.MediaCodec
+import android.media.MediaExtractor
+import android.media.MediaFormat
+import android.os.Handler
+import android.os.HandlerThread
+import android.os.Process
+import android.os.SystemClock
+import android.util.Log
+import java.nio.ByteBuffer
+import java.util.concurrent.CountDownLatch
+import java.util.concurrent.TimeUnit
+import kotlin.math.max
+import kotlin.math.min
+
+// MediaCodecAudioDecoder decodes the raw MP3 resource of a song variant into 16-bit PCM with the
+// platform's MediaCodec. The codec runs in asynchronous mode, with its callbacks on a HandlerThread
+// per decode, while the calling thread waits for the decode to finish or stall.
+class MediaCodecAudioDecoder(
+    private val resources: Resources,
+    private val frameIndexCache: Mp3FrameIndexCache
+) : AudioDecoder {
+    override fun decode(song: LoadedSong, startIndex: Int, sink: PcmSink): Boolean {
+        val assetFileDescriptor: AssetFileDescriptor =
+            resources.openRawResourceFd(song.resourceId)
+        val mediaExtractor = MediaExtractor()
+        var codec: MediaCodec? = null
+        var callbackThread: HandlerThread? = null
+        var session: DecodeSession? = null
+        try {
+            val frameIndex = frameIndexCache.get(song.resourceId)
+            // Index in the song of the first byte decoded from the data source
+            var baseIndex = 0
+            if (frameIndex != null) {
+                // Start the data source at the frame to decode from, so that MediaExtractor does
+                // not have to estimate the position of the seek from the bitrate
+                val frame = frameIndex.getPrerollFrame(startIndex)
+                val frameOffset = frameIndex.getFrameOffset(frame)
+                baseIndex = frameIndex.getFrameStartIndex(frame)
+                mediaExtractor.setDataSource(
+                    assetFileDescriptor.fileDescriptor,
+                    assetFileDescriptor.startOffset + frameOffset,
+                    assetFileDescriptor.length - frameOffset
+                )
+            } else {
+                mediaExtractor.setDataSource(assetFileDescriptor)
+            }
+            val format = mediaExtractor.getTrackFormat(0)
+            val mime = format.getString(MediaFormat.KEY_MIME)
+                ?: throw IllegalStateException("KEY_MIME is null")
+            mediaExtractor.selectTrack(0)
+            if (frameIndex != null) {
+                sink.onLengthKnown(frameIndex.length)
+            } else {
+                if (format.containsKey(MediaFormat.KEY_DURATION)) {
+                    sink.onLengthKnown(PcmUtils.usToBytes(format.getLong(MediaFormat.KEY_DURATION)))
+                }
+                if (startIndex > 0) {
+                    mediaExtractor.seekTo(
+                        PcmUtils.bytesToUs(startIndex),
+                        MediaExtractor.SEEK_TO_PREVIOUS_SYNC
+                    )
+                }
+            }
+            val newCodec = MediaCodec.createDecoderByType(mime)
+            codec = newCodec
+            // Callbacks run at the priority of the calling thread, so background decodes stay in
+            // the background
+            val newCallbackThread = HandlerThread(
+                "CadenceCodec-${song.resourceId}",
+                Process.getThreadPriority(Process.myTid())
+            )
+            callbackThread = newCallbackThread
+            newCallbackThread.start()
+            val newSession = DecodeSession(mediaExtractor, baseIndex, startIndex, sink)
+            session = newSession
+            newCodec.setCallback(newSession, Handler(newCallbackThread.looper))
+            newCodec.configure(format, null /* surface */, null /* crypto */, 0 /* flags */)
+            newCodec.start()
+            return newSession.await()
+        } finally {
+            session?.stop()
+            codec?.stop()
+            // Let callbacks that were already posted return before the extractor they read from is
+            // released
+            callbackThread?.quitSafely()
+            callbackThread?.join()
+            codec?.release()
+            mediaExtractor.release()
+            assetFileDescriptor.close()
+        }
+    }
+
+    // DecodeSession feeds the codec from the extractor and passes its output to the sink from the
+    // codec's callbacks. Every input buffer the codec offers is filled immediately, so the codec
+    // always has as many buffers in flight as it can take.
+    private class DecodeSession(
+        private val mediaExtractor: MediaExtractor,
+        private val baseIndex: Int,
+        private val startIndex: Int,
+        private val sink: PcmSink
+    ) : MediaCodec.Callback() {
+        private val finished = CountDownLatch(1)
+
+        // Whether the end of the song was reached, valid once finished
+        @Volatile
+        private var isComplete = false
+
+        @Volatile
+        private var error: Exception? = null
+
+        // Set once the session completes or fails, after which callbacks are ignored
+        @Volatile
+        private var isStopped = false
+
+        private var inputEndOfFile = false
+
+        // Index in the song of the first byte of the next output buffer. Unknown until the first
+        // output buffer is received.
+        private var decodedIndex = -1
+
+        // Time of the last callback, used to detect a stalled codec
+        @Volatile
+        private var lastProgressTime = SystemClock.elapsedRealtime()
+
+        // Whether a callback is blocked writing to the sink, which is waiting on playback rather
+        // than a stall
+        @Volatile
+        private var isWritingToSink = false
+
+        // Waits for decoding to stop. Returns true if the end of the song was reached, and false if
+        // the sink stopped decoding early. Throws if the codec fails or makes no progress for
+        // CODEC_STALL_TIMEOUT_MS.
+        fun await(): Boolean {
+            while (!finished.await(CODEC_STALL_TIMEOUT_MS, TimeUnit.MILLISECONDS)) {
+                val idleTime = SystemClock.elapsedRealtime() - lastProgressTime
+                if (!isWritingToSink && idleTime >= CODEC_STALL_TIMEOUT_MS) {
+                    throw IllegalStateException("MediaCodec made no progress for $idleTime ms")
+                }
+            }
+            error?.let { throw it }
+            return isComplete
+        }
+
+        // Makes later callbacks return without touching the codec or the extractor
+        fun stop() {
+            isStopped = true
+        }
+
+        override fun onInputBufferAvailable(codec: MediaCodec, index: Int) {
+            if (isStopped || inputEndOfFile) {
+                return
+            }
+            lastProgressTime = SystemClock.elapsedRealtime()
+            runSafely {
+                val inputBuffer = codec.getInputBuffer(index)
+                    ?: throw IllegalArgumentException("Input buffer index invalid")
+                val size = mediaExtractor.readSampleData(inputBuffer, 0)
+                if (size < 0) {
+                    codec.queueInputBuffer(index, 0, 0, 0, MediaCodec.BUFFER_FLAG_END_OF_STREAM)
+                    inputEndOfFile = true
+                } else {
+                    codec.queueInputBuffer(index, 0, size, mediaExtractor.sampleTime, 0)
+                    mediaExtractor.advance()
+                }
+            }
+        }
+
+        override fun onOutputBufferAvailable(
+            codec: MediaCodec,
+            index: Int,
+            info: MediaCodec.BufferInfo
+        ) {
+            if (isStopped) {
+                return
+            }
+            lastProgressTime = SystemClock.elapsedRealtime()
+            runSafely {
+                val buf: ByteBuffer = codec.getOutputBuffer(index)
+                    ?: throw IllegalArgumentException("Output buffer index invalid")
+                if (decodedIndex < 0) {
+                    decodedIndex = baseIndex + PcmUtils.usToBytes(info.presentationTimeUs)
+                }
+                // Drop audio preceding the requested start index, since decoding starts at an
+                // earlier frame.
+                val skip = min(max(startIndex - decodedIndex, 0), info.size)
+                buf.limit(info.offset + info.size)
+                buf.position(info.offset + skip)
+                decodedIndex += info.size
+                isWritingToSink = true
+                val isWritten = try {
+                    !buf.hasRemaining() || sink.write(buf)
+                } finally {
+                    isWritingToSink = false
+                    lastProgressTime = SystemClock.elapsedRealtime()
+                }
+                buf.clear() // ** MUST DO!!! OTHERWISE THE NEXT TIME YOU GET THIS SAME BUFFER BAD THINGS WILL HAPPEN
+                codec.releaseOutputBuffer(index, false /* render */)
+                if (!isWritten) {
+                    finish(false)
+                } else if (info.flags and MediaCodec.BUFFER_FLAG_END_OF_STREAM != 0) {
+                    finish(true)
+                }
+            }
+        }
+
+        override fun onOutputFormatChanged(codec: MediaCodec, format: MediaFormat) {
+            Log.d(TAG, "Format changed $format")
+        }
+
+        override fun onError(codec: MediaCodec, e: MediaCodec.CodecException) {
+            fail(e)
+        }
+
+        // Runs a callback body, failing the session instead of throwing on the callback thread
+        private inline fun runSafely(block: () -> Unit) {
+            try {
+                block()
+            } catch (e: Exception) {
+                fail(e)
+            }
+        }
+
+        private fun finish(isComplete: Boolean) {
+            this.isComplete = isComplete
+            isStopped = true
+            finished.countDown()
+        }
+
+        private fun fail(e: Exception) {
+            if (!isStopped) {
+                error = e
+                isStopped = true
+            }
+            finished.countDown()
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceMediaCodec"
+    }
+}
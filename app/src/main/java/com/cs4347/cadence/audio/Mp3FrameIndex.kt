@@ -0,0 +1,198 @@
+package com.cs4347.cadence.audio
+
+import kotlin.math.max
+import kotlin.math.min
+
+// Mp3FrameIndex holds the byte offset of every audio frame of an MP3 file, so that decoding can
+// start at the frame containing an arbitrary sample instead of at the start of the file.
+class Mp3FrameIndex private constructor(
+    val sampleRate: Int,
+    val samplesPerFrame: Int,
+    private val frameOffsets: IntArray,
+    private val mainDataBegins: IntArray,
+    private val mainDataSizes: IntArray
+) {
+    val frameCount: Int
+        get() = frameOffsets.size
+
+    // Length in bytes of the decoded 16-bit stereo PCM
+    val length: Int
+        get() = frameCount * samplesPerFrame * BYTES_PER_FRAME
+
+    // Offset in the MP3 file of the input frame
+    fun getFrameOffset(frame: Int): Int {
+        return frameOffsets[frame]
+    }
+
+    // Index in the decoded PCM of the first byte of the input frame
+    fun getFrameStartIndex(frame: Int): Int {
+        return frame * samplesPerFrame * BYTES_PER_FRAME
+    }
+
+    // Number of bytes of main data the input frame borrows from the frames before it
+    fun getMainDataBegin(frame: Int): Int {
+        return mainDataBegins[frame]
+    }
+
+    // Number of bytes after the side information of the input frame, which later frames can borrow
+    fun getMainDataSize(frame: Int): Int {
+        return mainDataSizes[frame]
+    }
+
+    // Frame to start decoding from so that the PCM at startIndex is decoded correctly. Layer III
+    // frames can borrow bits from previous frames, so decoding starts PREROLL_FRAMES early.
+    fun getPrerollFrame(startIndex: Int): Int {
+        val frame = startIndex / (samplesPerFrame * BYTES_PER_FRAME)
+        return max(0, min(frame, frameCount - 1) - PREROLL_FRAMES)
+    }
+
+    companion object {
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+        private const val PREROLL_FRAMES = 2
+        private const val ID3V2_HEADER_SIZE = 10
+        private const val FRAME_HEADER_SIZE = 4
+
+        private val MPEG1_BITRATES =
+            intArrayOf(0, 32, 40, 48, 56, 64, 80, 96, 112, 128, 160, 192, 224, 256, 320)
+        private val MPEG2_BITRATES =
+            intArrayOf(0, 8, 16, 24, 32, 40, 48, 56, 64, 80, 96, 112, 128, 144, 160)
+        private val MPEG1_SAMPLE_RATES = intArrayOf(44100, 48000, 32000)
+
+        // Scans the frame headers of an MPEG Layer III file. Throws IllegalArgumentException if no
+        // frames are found.
+        fun scan(data: ByteArray): Mp3FrameIndex {
+            val offsets = ArrayList<Int>()
+            val mainDataBegins = ArrayList<Int>()
+            val mainDataSizes = ArrayList<Int>()
+            var sampleRate = 0
+            var samplesPerFrame = 0
+            var offset = skipId3v2Tag(data)
+            while (offset + FRAME_HEADER_SIZE <= data.size) {
+                val header = readHeader(data, offset)
+                val frameLength = getFrameLength(header)
+                // Require the next frame to follow, so that sync bits inside audio data are skipped
+                val nextOffset = offset + frameLength
+                if (frameLength <= 0 || (nextOffset + FRAME_HEADER_SIZE <= data.size &&
+                            getFrameLength(readHeader(data, nextOffset)) <= 0)
+                ) {
+                    offset++
+                    continue
+                }
+                if (offsets.isEmpty() && sampleRate == 0) {
+                    sampleRate = getSampleRate(header)
+                    samplesPerFrame = getSamplesPerFrame(header)
+                    if (isInfoFrame(data, offset, header)) {
+                        // The Xing or Info frame holds metadata and produces no audio
+                        offset = nextOffset
+                        continue
+                    }
+                }
+                val sideInfoOffset = offset + FRAME_HEADER_SIZE + getCrcSize(header)
+                if (sideInfoOffset + 2 > data.size) {
+                    break
+                }
+                offsets.add(offset)
+                mainDataBegins.add(readMainDataBegin(data, sideInfoOffset, header))
+                mainDataSizes.add(nextOffset - sideInfoOffset - getSideInfoSize(header))
+                offset = nextOffset
+            }
+            if (offsets.isEmpty()) {
+                throw IllegalArgumentException("No MP3 frames found")
+            }
+            return Mp3FrameIndex(
+                sampleRate,
+                samplesPerFrame,
+                offsets.toIntArray(),
+                mainDataBegins.toIntArray(),
+                mainDataSizes.toIntArray()
+            )
+        }
+
+        private fun skipId3v2Tag(data: ByteArray): Int {
+            if (data.size < ID3V2_HEADER_SIZE || data[0] != 'I'.toByte() ||
+                data[1] != 'D'.toByte() || data[2] != '3'.toByte()
+            ) {
+                return 0
+            }
+            // The tag size is stored as a 28-bit synchsafe integer
+            var size = 0
+            for (i in 6..9) {
+                size = (size shl 7) or (data[i].toInt() and 0x7F)
+            }
+            val hasFooter = data[5].toInt() and 0x10 != 0
+            return ID3V2_HEADER_SIZE + size + if (hasFooter) ID3V2_HEADER_SIZE else 0
+        }
+
+        private fun readHeader(data: ByteArray, offset: Int): Int {
+            return ((data[offset].toInt() and 0xFF) shl 24) or
+                    ((data[offset + 1].toInt() and 0xFF) shl 16) or
+                    ((data[offset + 2].toInt() and 0xFF) shl 8) or
+                    (data[offset + 3].toInt() and 0xFF)
+        }
+
+        private fun getVersionBits(header: Int) = (header ushr 19) and 0x3
+
+        private fun isMpeg1(header: Int) = getVersionBits(header) == 0x3
+
+        private fun getSampleRate(header: Int): Int {
+            val sampleRate = MPEG1_SAMPLE_RATES[(header ushr 10) and 0x3]
+            return when (getVersionBits(header)) {
+                0x3 -> sampleRate
+                0x2 -> sampleRate / 2
+                else -> sampleRate / 4
+            }
+        }
+
+        private fun getSamplesPerFrame(header: Int) = if (isMpeg1(header)) 1152 else 576
+
+        // Returns the length in bytes of the Layer III frame with the input header, or -1 if the
+        // header is invalid.
+        private fun getFrameLength(header: Int): Int {
+            val isSynced = (header ushr 21) and 0x7FF == 0x7FF
+            val isLayer3 = (header ushr 17) and 0x3 == 0x1
+            val bitrateIndex = (header ushr 12) and 0xF
+            val sampleRateIndex = (header ushr 10) and 0x3
+            if (!isSynced || !isLayer3 || getVersionBits(header) == 0x1 ||
+                bitrateIndex == 0 || bitrateIndex == 0xF || sampleRateIndex == 0x3
+            ) {
+                return -1
+            }
+            val bitrate = (if (isMpeg1(header)) MPEG1_BITRATES else MPEG2_BITRATES)[bitrateIndex]
+            val padding = (header ushr 9) and 0x1
+            return getSamplesPerFrame(header) / 8 * bitrate * 1000 / getSampleRate(header) + padding
+        }
+
+        // A cleared protection bit means a 16-bit CRC follows the header
+        private fun getCrcSize(header: Int) = if ((header ushr 16) and 0x1 == 0) 2 else 0
+
+        private fun getSideInfoSize(header: Int): Int {
+            val isMono = (header ushr 6) and 0x3 == 0x3
+            return if (isMpeg1(header)) {
+                if (isMono) 17 else 32
+            } else {
+                if (isMono) 9 else 17
+            }
+        }
+
+        // main_data_begin is the first 9 bits of the side information in MPEG-1, and the first 8
+        // bits in MPEG-2
+        private fun readMainDataBegin(data: ByteArray, sideInfoOffset: Int, header: Int): Int {
+            val first = data[sideInfoOffset].toInt() and 0xFF
+            return if (isMpeg1(header)) {
+                (first shl 1) or ((data[sideInfoOffset + 1].toInt() and 0xFF) ushr 7)
+            } else {
+                first
+            }
+        }
+
+        private fun isInfoFrame(data: ByteArray, offset: Int, header: Int): Boolean {
+            val tagOffset =
+                offset + FRAME_HEADER_SIZE + getCrcSize(header) + getSideInfoSize(header)
+            if (tagOffset + 4 > data.size) {
+                return false
+            }
+            val tag = String(data, tagOffset, 4, Charsets.US_ASCII)
+            return tag == "Xing" || tag == "Info"
+        }
+    }
+}
@@ -0,0 +1,47 @@
+package com.cs4347.cadence.audio
+
+import android.content.res.Resources
+import android.util.Log
+
+// Mp3FrameIndexCache scans the raw MP3 resource of a song variant into an Mp3FrameIndex the first
+// time the variant is decoded, and keeps the index for later seeks. An index takes a few bytes per
+// frame, so the indices of every variant are kept.
+class Mp3FrameIndexCache(private val resources: Resources) {
+    private val frameIndices = HashMap<Int, Mp3FrameIndex?>()
+
+    // Returns the frame index of the input resource, or null if the resource cannot be scanned
+    fun get(resourceId: Int): Mp3FrameIndex? {
+        synchronized(frameIndices) {
+            if (frameIndices.containsKey(resourceId)) {
+                return frameIndices[resourceId]
+            }
+        }
+        // Scanned outside the lock, so that decoders of different variants do not wait on each
+        // other. Two decoders of the same variant may both scan it, which is harmless.
+        val frameIndex = scan(resourceId)
+        synchronized(frameIndices) {
+            frameIndices[resourceId] = frameIndex
+        }
+        return frameIndex
+    }
+
+    private fun scan(resourceId: Int): Mp3FrameIndex? {
+        val startTime = System.currentTimeMillis()
+        return try {
+            val data = resources.openRawResource(resourceId).use { it.readBytes() }
+            val frameIndex = Mp3FrameIndex.scan(data)
+            Log.d(
+                TAG,
+                "Indexed ${frameIndex.frameCount} frames of $resourceId in ${System.currentTimeMillis() - startTime} ms"
+            )
+            frameIndex
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to index $resourceId", e)
+            null
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceFrameIndex"
+    }
+}
@@ -0,0 +1,170 @@
+package com.cs4347.cadence.audio
+
+import android.content.res.Resources
+import android.media.AudioAttributes
+import android.media.AudioFormat
+import android.media.AudioManager
+import android.media.AudioTrack
+import android.os.Build
+import android.util.Log
+import androidx.annotation.RequiresApi
+import java.io.IOException
+import java.io.InputStream
+import java.util.concurrent.Executor
+import kotlin.math.min
+
+// OffloadPlayer plays part of a song variant's MP3 as it is through an offloaded AudioTrack, so
+// that it is decoded by the audio DSP while the CPU sleeps. The MP3 frames from startIndex up to
+// endIndex of the song's PCM are written in non-blocking writes, and the AudioTrack asks for more
+// through its stream event callback. Its tempo and playback rate cannot be changed, so it is only
+// used while the song needs no processing to follow the cadence. Opened on the control thread, and
+// only used on the audio feeder after that.
+class OffloadPlayer private constructor(
+    val song: LoadedSong,
+    // Index in the song's PCM of the first frame played
+    val startIndex: Int,
+    // Index in the song's PCM at which the MP3 written stops
+    val endIndex: Int,
+    private val track: AudioTrack,
+    private val input: InputStream,
+    // Bytes of MP3 left to read from input
+    private var bytesLeft: Int
+) {
+    private val buffer = ByteArray(READ_SIZE_BYTES)
+
+    // Part of buffer read from input that has not been written yet
+    private var bufferStart = 0
+    private var bufferEnd = 0
+
+    // Index in the song's PCM of the frame being played
+    val playedIndex: Int
+        get() = startIndex + track.playbackHeadPosition * BYTES_PER_FRAME
+
+    // Audio written that has not been played yet, in ms
+    val remainingMs: Int
+        get() = ((endIndex - playedIndex).toLong() * 1000 / BYTES_PER_SECOND).toInt()
+
+    // Writes MP3 data to the AudioTrack without blocking. Returns false if the AudioTrack is full
+    // or everything up to endIndex has been written.
+    fun feed(): Boolean {
+        if (bufferStart == bufferEnd) {
+            val sizeRead = if (bytesLeft > 0) input.read(buffer, 0, min(buffer.size, bytesLeft)) else -1
+            if (sizeRead <= 0) {
+                bytesLeft = 0
+                return false
+            }
+            bufferStart = 0
+            bufferEnd = sizeRead
+            bytesLeft -= sizeRead
+        }
+        val sizeWritten = track.write(buffer, bufferStart, bufferEnd - bufferStart, AudioTrack.WRITE_NON_BLOCKING)
+        if (sizeWritten < 0) {
+            Log.w(TAG, "Offloaded write of ${song.name} failed with $sizeWritten")
+            bytesLeft = 0
+            bufferStart = bufferEnd
+            return false
+        }
+        bufferStart += sizeWritten
+        return sizeWritten > 0
+    }
+
+    fun play() {
+        track.play()
+    }
+
+    // Stops playback and frees the AudioTrack
+    fun release() {
+        track.pause()
+        track.flush()
+        track.release()
+        input.close()
+    }
+
+    companion object {
+        private const val TAG = "CadenceOffloadPlayer"
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+        private const val READ_SIZE_BYTES = 16 * 1024
+
+        // Size of the offloaded AudioTrack's buffer. The DSP keeps its own, larger buffer on top.
+        private const val OFFLOAD_BUFFER_BYTES = 64 * 1024
+
+        // MP3 frames searched past startIndex for one the DSP can decode on its own
+        private const val MAX_SYNC_SEARCH_FRAMES = 40
+
+        // Whether the device can offload the songs' MP3 at all
+        @RequiresApi(Build.VERSION_CODES.Q)
+        fun isSupported(attributes: AudioAttributes): Boolean {
+            return AudioManager.isOffloadedPlaybackSupported(getFormat(SAMPLE_RATE), attributes)
+        }
+
+        @RequiresApi(Build.VERSION_CODES.Q)
+        private fun getFormat(sampleRate: Int): AudioFormat {
+            return AudioFormat.Builder()
+                .setEncoding(AudioFormat.ENCODING_MP3)
+                .setSampleRate(sampleRate)
+                .setChannelMask(AudioFormat.CHANNEL_OUT_STEREO)
+                .build()
+        }
+
+        // Opens song for offloaded playback of its PCM from startIndex up to endIndex. Playback
+        // starts from the first MP3 frame at or after startIndex that borrows no main data from
+        // the frames before it, so that it decodes cleanly, and the frame's startIndex tells where
+        // that is. onDataRequest is called on an arbitrary thread when the AudioTrack wants more.
+        // Returns null if the song cannot be offloaded, because it cannot be indexed, is not at
+        // SAMPLE_RATE, or has no frame the DSP can start from before endIndex.
+        @RequiresApi(Build.VERSION_CODES.Q)
+        fun open(
+            resources: Resources,
+            frameIndexCache: Mp3FrameIndexCache,
+            attributes: AudioAttributes,
+            song: LoadedSong,
+            startIndex: Int,
+            endIndex: Int,
+            onDataRequest: () -> Unit
+        ): OffloadPlayer? {
+            val frameIndex = frameIndexCache.get(song.resourceId) ?: return null
+            if (frameIndex.sampleRate != SAMPLE_RATE) {
+                return null
+            }
+            val frameBytes = frameIndex.samplesPerFrame * BYTES_PER_FRAME
+            val lastFrame = min(endIndex / frameBytes, frameIndex.frameCount)
+            var frame = (startIndex + frameBytes - 1) / frameBytes
+            val searchEnd = min(frame + MAX_SYNC_SEARCH_FRAMES, lastFrame)
+            while (frame < searchEnd && frameIndex.getMainDataBegin(frame) > 0) {
+                frame++
+            }
+            if (frame >= lastFrame) {
+                return null
+            }
+            val endOffset = if (lastFrame < frameIndex.frameCount) frameIndex.getFrameOffset(lastFrame) else Int.MAX_VALUE
+            val input = resources.openRawResource(song.resourceId)
+            try {
+                JavaMp3AudioDecoder.skipFully(input, frameIndex.getFrameOffset(frame))
+            } catch (e: IOException) {
+                input.close()
+                throw e
+            }
+            val track = AudioTrack.Builder()
+                .setAudioAttributes(attributes)
+                .setAudioFormat(getFormat(frameIndex.sampleRate))
+                .setBufferSizeInBytes(OFFLOAD_BUFFER_BYTES)
+                .setTransferMode(AudioTrack.MODE_STREAM)
+                .setOffloadedPlayback(true)
+                .build()
+            track.registerStreamEventCallback(Executor { it.run() }, object : AudioTrack.StreamEventCallback() {
+                override fun onDataRequest(track: AudioTrack, sizeInFrames: Int) {
+                    onDataRequest()
+                }
+            })
+            Log.d(TAG, "Offloading ${song.name} at ${song.bpm} BPM from frame $frame to $lastFrame")
+            return OffloadPlayer(
+                song,
+                frameIndex.getFrameStartIndex(frame),
+                frameIndex.getFrameStartIndex(lastFrame),
+                track,
+                input,
+                endOffset - frameIndex.getFrameOffset(frame)
+            )
+        }
+    }
+}
@@ -0,0 +1,62 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ShortBuffer
+import kotlin.math.ln
+import kotlin.math.max
+
+// OnsetEnvelope computes how strongly notes start in each 10 ms hop of 16-bit stereo PCM, as the
+// half-wave rectified increase in log energy of the differenced mono signal, which emphasises
+// drums. PCM can be added in pieces of any size, e.g. as it is decoded.
+class OnsetEnvelope {
+    private var onsets = FloatArray(INITIAL_CAPACITY)
+
+    // Number of complete hops added so far
+    var hopCount = 0
+        private set
+
+    private var previousSample = 0
+    private var previousEnergy = 0.0
+
+    // Energy and frame count of the hop being added
+    private var hopEnergy = 0.0
+    private var hopFrames = 0
+
+    // Adds the interleaved stereo samples remaining in samples, without consuming them
+    fun add(samples: ShortBuffer) {
+        var index = samples.position()
+        val end = samples.limit() - NUM_CHANNELS + 1
+        while (index < end) {
+            val sample = samples.get(index) + samples.get(index + 1)
+            val difference = (sample - previousSample).toDouble()
+            hopEnergy += difference * difference
+            previousSample = sample
+            index += NUM_CHANNELS
+            if (++hopFrames == HOP_FRAMES) {
+                addHop()
+            }
+        }
+    }
+
+    fun toArray(): FloatArray {
+        return onsets.copyOf(hopCount)
+    }
+
+    private fun addHop() {
+        val logEnergy = ln(1 + hopEnergy / HOP_FRAMES)
+        if (hopCount == onsets.size) {
+            onsets = onsets.copyOf(onsets.size * 2)
+        }
+        onsets[hopCount++] = max(0.0, logEnergy - previousEnergy).toFloat()
+        previousEnergy = logEnergy
+        hopEnergy = 0.0
+        hopFrames = 0
+    }
+
+    companion object {
+        // Frames per onset envelope value, 10 ms
+        const val HOP_FRAMES = SAMPLE_RATE / 100
+
+        // Enough for a four minute song
+        private const val INITIAL_CAPACITY = 100 * 240
+    }
+}
@@ -0,0 +1,24 @@
+package com.cs4347.cadence.audio
+
+import android.media.AudioManager
+
+// Sample rate and burst size the device mixes its output at. Audio played at the native sample
+// rate skips the system mixer's resampler, and with a buffer of whole bursts can take the
+// low-latency fast track.
+data class OutputFormat(val sampleRate: Int, val framesPerBurst: Int) {
+    companion object {
+        // Frames per burst assumed when the device does not report it
+        private const val DEFAULT_FRAMES_PER_BURST = 256
+
+        // Reads the native output format, falling back to SAMPLE_RATE if it is not reported
+        fun query(audioManager: AudioManager): OutputFormat {
+            val sampleRate = audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_SAMPLE_RATE)?.toIntOrNull()
+            val framesPerBurst =
+                audioManager.getProperty(AudioManager.PROPERTY_OUTPUT_FRAMES_PER_BUFFER)?.toIntOrNull()
+            return OutputFormat(
+                if (sampleRate != null && sampleRate > 0) sampleRate else SAMPLE_RATE,
+                if (framesPerBurst != null && framesPerBurst > 0) framesPerBurst else DEFAULT_FRAMES_PER_BURST
+            )
+        }
+    }
+}
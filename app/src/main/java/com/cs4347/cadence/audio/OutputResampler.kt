@@ -0,0 +1,206 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.PI
+import kotlin.math.ceil
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sin
+import kotlin.math.sqrt
+
+// OutputResampler converts the PCM of songs, at SAMPLE_RATE, to the sample rate the AudioTrack
+// plays at, so that the system mixer does not have to. It also applies the beat phase lock's rate
+// correction, which would otherwise move the AudioTrack off the native sample rate. Every block
+// goes through it, so unlike VarispeedResampler it uses a long Kaiser-windowed sinc filter whose
+// response barely changes with the fractional position it interpolates at, and it interpolates
+// between the tabulated phases rather than rounding to one. When the two rates are equal and there
+// is no correction, frames are copied through untouched.
+class OutputResampler(val sampleRate: Int) {
+    // Cut off below the Nyquist frequency of the lower of the two rates
+    private val filter = createFilter(min(sampleRate.toDouble() / SAMPLE_RATE, 1.0) * CUTOFF)
+
+    // Interleaved input, starting with the frames before inputPosition that the filter still needs
+    private var input = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+    private var inputFrames = HALF_TAPS - 1
+
+    // Fractional frame of input at which the next output frame is interpolated
+    private var inputPosition = (HALF_TAPS - 1).toDouble()
+
+    // Interleaved output of the current call
+    private var output = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+
+    // Direct buffer the resampled audio is returned in, and its samples, reused across calls
+    private var outputBuffer: ByteBuffer? = null
+    private var outputSamples: ShortBuffer? = null
+
+    // Resamples all of input, played faster by rateCorrection, and returns the frames resampled so
+    // far. The returned buffer is only valid until the next call.
+    fun process(input: ByteBuffer, rateCorrection: Double): ByteBuffer {
+        val step = SAMPLE_RATE * (1 + rateCorrection) / sampleRate
+        val frames = input.remaining() / BYTES_PER_FRAME
+        ensureInputCapacity(inputFrames + frames)
+        PcmUtils.getSamples(input, this.input, inputFrames * NUM_CHANNELS, frames * NUM_CHANNELS)
+        inputFrames += frames
+        val outputFrames = if (step == 1.0) copy() else resample(step)
+        discardConsumedInput()
+        val buffer = getOutputBuffer(outputFrames * BYTES_PER_FRAME)
+        val samples = outputSamples ?: return buffer
+        samples.clear()
+        samples.put(output, 0, outputFrames * NUM_CHANNELS)
+        buffer.limit(outputFrames * BYTES_PER_FRAME)
+        return buffer
+    }
+
+    // Drops the audio held for the filter, e.g. when the AudioTrack is flushed
+    fun reset() {
+        inputFrames = HALF_TAPS - 1
+        input.fill(0, 0, inputFrames * NUM_CHANNELS)
+        inputPosition = (HALF_TAPS - 1).toDouble()
+    }
+
+    // Copies the input from the next whole frame on to output unchanged. The frames before it stay
+    // behind as the filter's history, so resampling can pick up from there. Returns the number of
+    // frames copied.
+    private fun copy(): Int {
+        val start = min(ceil(inputPosition).toInt(), inputFrames)
+        val frames = inputFrames - start
+        ensureOutputCapacity(frames)
+        System.arraycopy(input, start * NUM_CHANNELS, output, 0, frames * NUM_CHANNELS)
+        inputPosition = inputFrames.toDouble()
+        return frames
+    }
+
+    // Interpolates output frames, step input frames apart, until the filter runs out of input.
+    // Returns the number of frames interpolated.
+    private fun resample(step: Double): Int {
+        ensureOutputCapacity(max(((inputFrames - inputPosition) / step).toInt() + 1, 0))
+        var outputFrames = 0
+        var position = inputPosition
+        while (position.toInt() + HALF_TAPS < inputFrames) {
+            val frame = position.toInt()
+            val phasePosition = (position - frame) * PHASES
+            val phase = phasePosition.toInt()
+            val weight = (phasePosition - phase).toFloat()
+            val coefficientOffset = phase * TAPS
+            var left = 0f
+            var right = 0f
+            var sampleIndex = (frame - HALF_TAPS + 1) * NUM_CHANNELS
+            for (tap in 0 until TAPS) {
+                val lower = filter[coefficientOffset + tap]
+                val coefficient = lower + weight * (filter[coefficientOffset + TAPS + tap] - lower)
+                left += coefficient * input[sampleIndex]
+                right += coefficient * input[sampleIndex + 1]
+                sampleIndex += NUM_CHANNELS
+            }
+            output[outputFrames * NUM_CHANNELS] = clip(left)
+            output[outputFrames * NUM_CHANNELS + 1] = clip(right)
+            outputFrames++
+            position += step
+        }
+        inputPosition = position
+        return outputFrames
+    }
+
+    // Keeps the HALF_TAPS - 1 frames before inputPosition, which the filter reads as history
+    private fun discardConsumedInput() {
+        val discardedFrames = min(inputPosition.toInt() - (HALF_TAPS - 1), inputFrames)
+        if (discardedFrames <= 0) {
+            return
+        }
+        System.arraycopy(
+            input, discardedFrames * NUM_CHANNELS,
+            input, 0,
+            (inputFrames - discardedFrames) * NUM_CHANNELS
+        )
+        inputFrames -= discardedFrames
+        inputPosition -= discardedFrames
+    }
+
+    private fun ensureInputCapacity(frames: Int) {
+        if (frames * NUM_CHANNELS > input.size) {
+            input = input.copyOf(max(frames * NUM_CHANNELS, input.size * 2))
+        }
+    }
+
+    private fun ensureOutputCapacity(frames: Int) {
+        if (frames * NUM_CHANNELS > output.size) {
+            output = ShortArray(max(frames * NUM_CHANNELS, output.size * 2))
+        }
+    }
+
+    private fun getOutputBuffer(size: Int): ByteBuffer {
+        val buffer = outputBuffer
+        if (buffer != null && buffer.capacity() >= size) {
+            buffer.clear()
+            return buffer
+        }
+        val newBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN)
+        outputBuffer = newBuffer
+        outputSamples = newBuffer.asShortBuffer()
+        return newBuffer
+    }
+
+    private fun clip(sample: Float): Short {
+        return sample.coerceIn(Short.MIN_VALUE.toFloat(), Short.MAX_VALUE.toFloat()).toInt().toShort()
+    }
+
+    companion object {
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+
+        // Taps of the filter for each output sample, centred on the interpolated position
+        private const val TAPS = 64
+        private const val HALF_TAPS = TAPS / 2
+
+        // Number of fractional positions between two input frames the filter is tabulated for
+        private const val PHASES = 256
+        private const val INITIAL_CAPACITY_FRAMES = 8192
+
+        // Cutoff as a fraction of the lower Nyquist frequency, leaving room for the transition band
+        private const val CUTOFF = 0.91
+
+        // Shape of the Kaiser window, trading the width of the transition band for stopband
+        // attenuation of about 90 dB
+        private const val KAISER_BETA = 9.0
+
+        // Tabulates the filter with the input cutoff, as a fraction of the input's Nyquist
+        // frequency. Tap t of phase p weighs the input frame t - HALF_TAPS + 1 frames from the
+        // interpolated frame, offset by p / PHASES of a frame. There is one more phase than
+        // PHASES, a frame on from the first, to interpolate the last phase towards.
+        private fun createFilter(cutoff: Double): FloatArray {
+            val filter = FloatArray((PHASES + 1) * TAPS)
+            for (phase in 0..PHASES) {
+                val fraction = phase.toDouble() / PHASES
+                var sum = 0.0
+                for (tap in 0 until TAPS) {
+                    val x = tap - HALF_TAPS + 1 - fraction
+                    val sinc = if (x == 0.0) cutoff else sin(PI * cutoff * x) / (PI * x)
+                    val r = x / HALF_TAPS
+                    val window = besselI0(KAISER_BETA * sqrt(max(1 - r * r, 0.0))) / besselI0(KAISER_BETA)
+                    filter[phase * TAPS + tap] = (sinc * window).toFloat()
+                    sum += sinc * window
+                }
+                // Normalise each phase to unity gain so that there is no ripple at DC
+                for (tap in 0 until TAPS) {
+                    filter[phase * TAPS + tap] = (filter[phase * TAPS + tap] / sum).toFloat()
+                }
+            }
+            return filter
+        }
+
+        // Zeroth order modified Bessel function of the first kind, by its power series
+        private fun besselI0(x: Double): Double {
+            var sum = 1.0
+            var term = 1.0
+            var k = 1
+            while (term > sum * 1e-12) {
+                val half = x / (2 * k)
+                term *= half * half
+                sum += term
+                k++
+            }
+            return sum
+        }
+    }
+}
@@ -0,0 +1,28 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+// PcmBufferPool recycles fixed-size direct ByteBuffer slabs between song streams, so that PCM is
+// held off the Java heap and no new slabs are allocated when the song set changes.
+class PcmBufferPool(private val slabSize: Int, private val maxPooledSlabs: Int) {
+    private val slabs = ArrayList<ByteBuffer>()
+
+    @Synchronized
+    fun acquire(): ByteBuffer {
+        if (slabs.isEmpty()) {
+            return ByteBuffer.allocateDirect(slabSize).order(ByteOrder.LITTLE_ENDIAN)
+        }
+        val slab = slabs.removeAt(slabs.size - 1)
+        slab.clear()
+        return slab
+    }
+
+    // Returns a slab to the pool. The slab must not be used by the caller afterwards.
+    @Synchronized
+    fun release(slab: ByteBuffer) {
+        if (slabs.size < maxPooledSlabs && slab.capacity() == slabSize) {
+            slabs.add(slab)
+        }
+    }
+}
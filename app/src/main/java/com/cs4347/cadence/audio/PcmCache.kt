@@ -0,0 +1,133 @@
+package com.cs4347.cadence.audio
+
+import android.content.Context
+import android.util.Log
+import java.io.Closeable
+import java.io.File
+import java.io.FileOutputStream
+import java.io.IOException
+import java.io.RandomAccessFile
+import java.nio.ByteBuffer
+import java.nio.MappedByteBuffer
+import java.nio.channels.FileChannel
+
+// PcmCache persists the fully decoded PCM of song variants in app-private cache files, keyed by
+// resource ID and APK version. Cached variants are memory-mapped instead of decoded again.
+class PcmCache(context: Context) {
+    private val directory = File(context.cacheDir, CACHE_DIRECTORY_NAME)
+
+    // Resource IDs are only stable within a single build of the APK
+    private val version: String = getApkVersion(context)
+
+    // Called with the resource ID of each variant whose PCM is committed, on the committing thread
+    @Volatile
+    var onCommitted: ((Int) -> Unit)? = null
+
+    init {
+        directory.mkdirs()
+        // Files written by other versions of the APK can never be read again
+        directory.listFiles()
+            ?.filter { !it.name.endsWith("_$version$CACHE_FILE_SUFFIX") }
+            ?.forEach { it.delete() }
+    }
+
+    // Returns a read-only mapping of the cached PCM of the input resource, or null if the
+    // resource has not been cached.
+    fun map(resourceId: Int): MappedByteBuffer? {
+        val file = getFile(resourceId)
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            RandomAccessFile(file, "r").use {
+                val mapped = it.channel.map(FileChannel.MapMode.READ_ONLY, 0, it.length())
+                file.setLastModified(System.currentTimeMillis())
+                mapped
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to map ${file.name}", e)
+            null
+        }
+    }
+
+    fun contains(resourceId: Int): Boolean {
+        return getFile(resourceId).exists()
+    }
+
+    // Creates a writer for the PCM of the input resource. The cached file only becomes visible
+    // to map once the writer is committed.
+    fun newWriter(resourceId: Int): Writer {
+        return Writer(resourceId)
+    }
+
+    private fun getFile(resourceId: Int): File {
+        return File(directory, "${resourceId}_$version$CACHE_FILE_SUFFIX")
+    }
+
+    // Deletes the least recently used files until the cache fits within PCM_CACHE_MAX_BYTES
+    @Synchronized
+    private fun trim() {
+        val files = directory.listFiles()
+            ?.filter { it.name.endsWith(CACHE_FILE_SUFFIX) }
+            ?.sortedBy { it.lastModified() }
+            ?: return
+        var totalBytes = files.map { it.length() }.sum()
+        for (file in files) {
+            if (totalBytes <= PCM_CACHE_MAX_BYTES) {
+                return
+            }
+            totalBytes -= file.length()
+            file.delete()
+        }
+    }
+
+    inner class Writer(private val resourceId: Int) : Closeable {
+        private val tempFile = File.createTempFile("${resourceId}_", TEMP_FILE_SUFFIX, directory)
+        private val outputStream = FileOutputStream(tempFile)
+        private var isOpen = true
+
+        fun write(buffer: ByteBuffer) {
+            while (buffer.hasRemaining()) {
+                outputStream.channel.write(buffer)
+            }
+        }
+
+        // Publishes the written PCM under the resource's cache file
+        fun commit() {
+            if (!isOpen) {
+                return
+            }
+            isOpen = false
+            outputStream.close()
+            if (!tempFile.renameTo(getFile(resourceId))) {
+                tempFile.delete()
+                return
+            }
+            trim()
+            onCommitted?.invoke(resourceId)
+        }
+
+        // Discards the written PCM unless the writer was committed
+        override fun close() {
+            if (!isOpen) {
+                return
+            }
+            isOpen = false
+            outputStream.close()
+            tempFile.delete()
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadencePcmCache"
+        private const val CACHE_DIRECTORY_NAME = "pcm"
+        private const val CACHE_FILE_SUFFIX = ".pcm"
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+
+        @Suppress("DEPRECATION")
+        fun getApkVersion(context: Context): String {
+            val packageInfo = context.packageManager.getPackageInfo(context.packageName, 0)
+            return "${packageInfo.versionCode}_${packageInfo.lastUpdateTime}"
+        }
+    }
+}
@@ -0,0 +1,116 @@
+package com.cs4347.cadence.audio
+
+import android.util.Log
+import java.nio.ByteBuffer
+import java.util.concurrent.atomic.AtomicInteger
+import java.util.concurrent.atomic.AtomicLong
+import kotlin.math.max
+
+// PcmCacheWarmer decodes song variants that are not playing into the PcmCache in the background,
+// so that switching to one later only has to memory-map its PCM. Variants are decoded in parallel
+// on a DecodeExecutor, each with its own MediaCodec instance.
+class PcmCacheWarmer(
+    decoder: AudioDecoder,
+    private val pcmCache: PcmCache,
+    private val executor: DecodeExecutor,
+    // Called on the decoding thread once a song has been cached
+    private val onCached: (LoadedSong) -> Unit
+) {
+    // Backend used for decodes started after it is set
+    @Volatile
+    var decoder = decoder
+
+    // Jobs of the songs queued or being decoded, by resource ID
+    private val pendingSongs = HashMap<Int, DecodeJob>()
+
+    // Queues the input songs for decoding in order, unless they are cached or already queued.
+    // The time taken to decode the whole batch is logged against the time the decodes would have
+    // taken one after another.
+    @Synchronized
+    fun warm(songs: List<LoadedSong>) {
+        val newSongs = songs.filter {
+            !pendingSongs.containsKey(it.resourceId) && !pcmCache.contains(it.resourceId)
+        }
+        val batchStartTime = System.currentTimeMillis()
+        val remainingSongs = AtomicInteger(newSongs.size)
+        val totalDecodeTime = AtomicLong()
+        for (song in newSongs) {
+            pendingSongs[song.resourceId] = executor.schedule(JobPriority.NEXT) { job ->
+                val startTime = System.currentTimeMillis()
+                try {
+                    if (!job.isCancelled) {
+                        decodeToCache(song, job)
+                    }
+                } finally {
+                    onFinished(song)
+                    totalDecodeTime.addAndGet(System.currentTimeMillis() - startTime)
+                    if (remainingSongs.decrementAndGet() == 0) {
+                        logBatchTime(newSongs.size, batchStartTime, totalDecodeTime.get())
+                    }
+                }
+            }
+        }
+    }
+
+    // Cancels the queued and running decodes of all songs other than the input ones
+    @Synchronized
+    fun retainOnly(songs: List<LoadedSong>) {
+        val resourceIds = songs.map { it.resourceId }
+        pendingSongs.keys.filter { !resourceIds.contains(it) }.forEach(this::cancel)
+    }
+
+    @Synchronized
+    fun cancelAll() {
+        pendingSongs.keys.toList().forEach(this::cancel)
+    }
+
+    // Queued decodes are dropped straight away, and running ones stop after their current buffer
+    private fun cancel(resourceId: Int) {
+        val job = pendingSongs[resourceId] ?: return
+        if (executor.cancel(job)) {
+            pendingSongs.remove(resourceId)
+        }
+    }
+
+    private fun logBatchTime(songCount: Int, startTime: Long, totalDecodeTime: Long) {
+        val elapsedTime = System.currentTimeMillis() - startTime
+        Log.d(
+            TAG,
+            "Decoded $songCount variants in $elapsedTime ms on ${DecodeExecutor.THREAD_COUNT} threads, " +
+                    "$totalDecodeTime ms sequentially, speedup ${totalDecodeTime.toDouble() / max(elapsedTime, 1)}"
+        )
+    }
+
+    @Synchronized
+    private fun onFinished(song: LoadedSong) {
+        pendingSongs.remove(song.resourceId)
+    }
+
+    private fun decodeToCache(song: LoadedSong, job: DecodeJob) {
+        val startTime = System.currentTimeMillis()
+        pcmCache.newWriter(song.resourceId).use { writer ->
+            try {
+                val isComplete = decoder.decode(song, 0, object : PcmSink {
+                    override fun write(buffer: ByteBuffer): Boolean {
+                        writer.write(buffer)
+                        return !job.isCancelled
+                    }
+                })
+                if (isComplete) {
+                    writer.commit()
+                    onCached(song)
+                    Log.d(
+                        TAG,
+                        "Cached ${song.name} at ${song.bpm} BPM in ${System.currentTimeMillis() - startTime} ms"
+                    )
+                }
+            } catch (e: Exception) {
+                Log.w(TAG, "Failed to cache ${song.name} at ${song.bpm} BPM", e)
+            }
+        }
+    }
+
+    companion object {
+        private const val TAG = "CadenceCacheWarmer"
+    }
+}
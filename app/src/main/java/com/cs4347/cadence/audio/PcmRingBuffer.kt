@@ -0,0 +1,138 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.util.concurrent.TimeUnit
+import java.util.concurrent.locks.ReentrantLock
+import kotlin.concurrent.withLock
+import kotlin.math.min
+
+// PcmRingBuffer is a bounded single-producer single-consumer queue of PCM bytes between a decoder
+// and the AudioTrack writer. The producer blocks while the buffer is full, so the memory used by a
+// stream is fixed no matter how long the song is. The consumer reads views of the storage itself,
+// which can be passed to AudioTrack.write without copying.
+class PcmRingBuffer(private val storage: ByteBuffer) {
+    private val capacity = storage.capacity()
+
+    // Views of storage used only by the producer and the consumer respectively
+    private val writeView = storage.duplicate()
+    private val readView = storage.duplicate()
+
+    private val lock = ReentrantLock()
+    private val notFull = lock.newCondition()
+    private val notEmpty = lock.newCondition()
+
+    // Index in storage of the next byte to be read
+    private var readIndex = 0
+
+    // Number of bytes currently stored
+    private var size = 0
+
+    // Whether the producer has written its last byte
+    private var isEndOfStream = false
+
+    // Whether the consumer has abandoned this buffer
+    private var isClosed = false
+
+    // Number of bytes that can currently be read without waiting
+    fun available(): Int = lock.withLock { size }
+
+    // Number of bytes that can currently be written without waiting
+    fun remainingCapacity(): Int = lock.withLock { capacity - size }
+
+    // Whether the producer has finished and every byte has been read
+    fun isDrained(): Boolean = lock.withLock { isEndOfStream && size == 0 }
+
+    fun isClosed(): Boolean = lock.withLock { isClosed }
+
+    // Copies the remaining bytes of src into the buffer, blocking while the buffer is full.
+    // Returns false if the buffer was closed before everything could be written.
+    fun write(src: ByteBuffer): Boolean {
+        lock.withLock {
+            while (src.hasRemaining()) {
+                while (size == capacity && !isClosed) {
+                    notFull.await()
+                }
+                if (isClosed) {
+                    return false
+                }
+                val writeIndex = (readIndex + size) % capacity
+                val length = min(src.remaining(), min(capacity - size, capacity - writeIndex))
+                val srcLimit = src.limit()
+                src.limit(src.position() + length)
+                writeView.clear()
+                writeView.position(writeIndex)
+                writeView.put(src)
+                src.limit(srcLimit)
+                size += length
+                notEmpty.signalAll()
+            }
+            return true
+        }
+    }
+
+    // Returns a view of up to length of the next contiguous bytes, without waiting for more to be
+    // written, so the view is empty if the producer has fallen behind. The bytes stay in the buffer
+    // until consume is called. Reads never wrap around as long as the capacity is a multiple of the
+    // length read. Returns null if the stream is drained or closed.
+    fun peek(length: Int): ByteBuffer? {
+        lock.withLock {
+            if (isClosed || (isEndOfStream && size == 0)) {
+                return null
+            }
+            readView.clear()
+            readView.position(readIndex)
+            readView.limit(readIndex + min(length, min(size, capacity - readIndex)))
+            return readView
+        }
+    }
+
+    // Frees the first count bytes of the buffer for the producer
+    fun consume(count: Int) {
+        lock.withLock {
+            if (isClosed) {
+                return
+            }
+            readIndex = (readIndex + count) % capacity
+            size -= count
+            notFull.signalAll()
+        }
+    }
+
+    // Waits at most timeoutMs until the given number of bytes can be read or the stream has ended.
+    // Returns true if the wait was satisfied before the timeout.
+    fun awaitAvailable(bytes: Int, timeoutMs: Long): Boolean {
+        lock.withLock {
+            return awaitLocked(min(bytes, capacity), timeoutMs)
+        }
+    }
+
+    // Called by the producer after its last write.
+    fun markEndOfStream() {
+        lock.withLock {
+            isEndOfStream = true
+            notEmpty.signalAll()
+        }
+    }
+
+    // Called by the consumer to release a blocked producer and discard any buffered bytes. The
+    // storage is never touched by this buffer after close returns.
+    fun close() {
+        lock.withLock {
+            isClosed = true
+            size = 0
+            notFull.signalAll()
+            notEmpty.signalAll()
+        }
+    }
+
+    private fun awaitLocked(bytes: Int, timeoutMs: Long): Boolean {
+        var nanosLeft = TimeUnit.MILLISECONDS.toNanos(timeoutMs)
+        while (size < bytes && !isEndOfStream && !isClosed) {
+            if (nanosLeft <= 0) {
+                return false
+            }
+            nanosLeft = notEmpty.awaitNanos(nanosLeft)
+        }
+        return true
+    }
+}
@@ -0,0 +1,33 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+// Conversions between presentation time and byte offsets in 16-bit interleaved PCM
+object PcmUtils {
+    private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+
+    fun usToBytes(timeUs: Long): Int {
+        return (timeUs * SAMPLE_RATE / 1_000_000L).toInt() * BYTES_PER_FRAME
+    }
+
+    fun bytesToUs(bytes: Int): Long {
+        return (bytes / BYTES_PER_FRAME).toLong() * 1_000_000L / SAMPLE_RATE
+    }
+
+    // Rounds a byte offset down to the start of a frame
+    fun alignToFrame(bytes: Int): Int {
+        return bytes / BYTES_PER_FRAME * BYTES_PER_FRAME
+    }
+
+    // Copies count samples of the little-endian PCM in buffer into samples from offset, and moves
+    // the buffer's position past them. Unlike reading through asShortBuffer, this allocates nothing.
+    fun getSamples(buffer: ByteBuffer, samples: ShortArray, offset: Int, count: Int) {
+        buffer.order(ByteOrder.LITTLE_ENDIAN)
+        val start = buffer.position()
+        for (i in 0 until count) {
+            samples[offset + i] = buffer.getShort(start + i * BYTES_PER_SAMPLE)
+        }
+        buffer.position(start + count * BYTES_PER_SAMPLE)
+    }
+}
@@ -0,0 +1,63 @@
+package com.cs4347.cadence.audio
+
+// Position in a song being played
+data class SongPosition(val song: LoadedSong, val frame: Int)
+
+// PlaybackMap remembers which frames of which song were written to each range of AudioTrack
+// frames, so that the frame being heard can be traced back to its song. Frames of the song are
+// assumed to be spread evenly over the range, which holds for audio played through a
+// TempoProcessor or OutputResampler too. Only the most recent CAPACITY writes are kept. Only used
+// on the audio feeder thread, so it is not synchronized.
+class PlaybackMap {
+    private val trackFrames = IntArray(CAPACITY)
+    private val trackFrameCounts = IntArray(CAPACITY)
+    private val songs = arrayOfNulls<LoadedSong>(CAPACITY)
+    private val songStartFrames = IntArray(CAPACITY)
+    private val songEndFrames = IntArray(CAPACITY)
+
+    // Index of the next write to record, and number of writes recorded
+    private var next = 0
+    private var count = 0
+
+    // Records that frames from songStartFrame up to songEndFrame of song were written as
+    // trackFrameCount frames from trackFrame
+    fun add(trackFrame: Int, trackFrameCount: Int, song: LoadedSong, songStartFrame: Int, songEndFrame: Int) {
+        if (trackFrameCount <= 0) {
+            return
+        }
+        trackFrames[next] = trackFrame
+        trackFrameCounts[next] = trackFrameCount
+        songs[next] = song
+        songStartFrames[next] = songStartFrame
+        songEndFrames[next] = songEndFrame
+        next = (next + 1) % CAPACITY
+        count = minOf(count + 1, CAPACITY)
+    }
+
+    // Returns the song position written to trackFrame, or null if it is not recorded
+    fun lookup(trackFrame: Int): SongPosition? {
+        for (i in 1..count) {
+            val index = (next - i + CAPACITY) % CAPACITY
+            val offset = trackFrame - trackFrames[index]
+            if (offset < 0 || offset >= trackFrameCounts[index]) {
+                continue
+            }
+            val song = songs[index] ?: return null
+            val songFrames = songEndFrames[index] - songStartFrames[index]
+            val frame = songStartFrames[index] + (offset.toLong() * songFrames / trackFrameCounts[index]).toInt()
+            return SongPosition(song, frame)
+        }
+        return null
+    }
+
+    // Forgets all writes, e.g. once the AudioTrack's frame count restarts
+    fun clear() {
+        songs.fill(null)
+        next = 0
+        count = 0
+    }
+
+    companion object {
+        private const val CAPACITY = 64
+    }
+}
@@ -0,0 +1,111 @@
+package com.cs4347.cadence.audio
+
+import android.os.BatteryManager
+import android.os.Process
+import android.os.SystemClock
+import java.io.PrintWriter
+
+// Engines audio can be played with
+enum class PlaybackMode {
+    // Decoded and processed on the CPU, and written to the AudioTrack as PCM
+    PCM,
+
+    // Written to an offloaded AudioTrack as MP3, and decoded by the audio DSP
+    OFFLOAD
+}
+
+// PlaybackModeStats measures the CPU time and battery charge used while playing in each
+// PlaybackMode, so that the modes can be compared through dumpsys. CPU time is the whole
+// process's, including background decodes. Charge is read from the battery's coulomb counter and
+// covers the whole device, so it is only meaningful with the screen off and the device unplugged.
+class PlaybackModeStats(private val batteryManager: BatteryManager) {
+    // Mode being played, or null while nothing plays
+    @Volatile
+    var mode: PlaybackMode? = null
+        private set
+
+    private val elapsedMs = LongArray(PlaybackMode.values().size)
+    private val cpuMs = LongArray(PlaybackMode.values().size)
+    private val chargeUah = LongArray(PlaybackMode.values().size)
+
+    // Time over which chargeUah was measured, which excludes intervals without a charge counter
+    private val chargeElapsedMs = LongArray(PlaybackMode.values().size)
+
+    // Readings at the start of the current mode
+    private var startTime = 0L
+    private var startCpuMs = 0L
+    private var startChargeUah = 0L
+
+    // Called when playback switches to mode, or stops if mode is null
+    @Synchronized
+    fun onModeChanged(mode: PlaybackMode?) {
+        if (mode == this.mode) {
+            return
+        }
+        accumulate()
+        this.mode = mode
+    }
+
+    @Synchronized
+    fun dump(writer: PrintWriter) {
+        accumulate()
+        writer.println("Playback modes:")
+        for (mode in PlaybackMode.values()) {
+            val elapsed = elapsedMs[mode.ordinal]
+            if (elapsed == 0L) {
+                writer.println("  $mode: not played")
+                continue
+            }
+            val chargeElapsed = chargeElapsedMs[mode.ordinal]
+            val drain = if (chargeElapsed == 0L) {
+                "unknown"
+            } else {
+                // uAh over ms, as mA
+                "${chargeUah[mode.ordinal] * 3600 / chargeElapsed} mA"
+            }
+            writer.println(
+                "  $mode: ${elapsed / 1000} s, CPU ${cpuMs[mode.ordinal] * 100 / elapsed}%, battery drain $drain"
+            )
+        }
+    }
+
+    @Synchronized
+    fun reset() {
+        elapsedMs.fill(0)
+        cpuMs.fill(0)
+        chargeUah.fill(0)
+        chargeElapsedMs.fill(0)
+        startTime = SystemClock.elapsedRealtime()
+        startCpuMs = Process.getElapsedCpuTime()
+        startChargeUah = readChargeUah()
+    }
+
+    // Adds the readings since the start of the current mode to its totals, and restarts them
+    private fun accumulate() {
+        val now = SystemClock.elapsedRealtime()
+        val cpu = Process.getElapsedCpuTime()
+        val charge = readChargeUah()
+        val mode = this.mode
+        if (mode != null) {
+            elapsedMs[mode.ordinal] += now - startTime
+            cpuMs[mode.ordinal] += cpu - startCpuMs
+            if (charge != NO_CHARGE && startChargeUah != NO_CHARGE) {
+                chargeUah[mode.ordinal] += startChargeUah - charge
+                chargeElapsedMs[mode.ordinal] += now - startTime
+            }
+        }
+        startTime = now
+        startCpuMs = cpu
+        startChargeUah = charge
+    }
+
+    // Remaining battery charge in uAh, or NO_CHARGE if the device does not report it
+    private fun readChargeUah(): Long {
+        val charge = batteryManager.getLongProperty(BatteryManager.BATTERY_PROPERTY_CHARGE_COUNTER)
+        return if (charge <= 0) NO_CHARGE else charge
+    }
+
+    companion object {
+        private const val NO_CHARGE = -1L
+    }
+}
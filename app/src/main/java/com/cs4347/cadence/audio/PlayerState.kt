@@ -0,0 +1,15 @@
+package com.cs4347.cadence.audio
+
+// States of the audio player's control plane
+enum class PlayerState {
+    // No song has been started yet
+    IDLE,
+
+    // Loading the first song, or a song set replacing the current one outright
+    LOADING,
+    PLAYING,
+    PAUSED,
+
+    // Preparing a song set that fades in over the playing song
+    SWITCHING
+}
@@ -0,0 +1,9 @@
+package com.cs4347.cadence.audio
+
+// The stream of the song set to follow previous, prepared on the control thread ahead of the song
+// boundary so that the audio feeder can switch to it without waiting for a decoder
+class PreparedSongSet(
+    val previous: LoadedTimeShiftedSongSet,
+    val songSet: LoadedTimeShiftedSongSet,
+    val stream: SongStream
+)
@@ -0,0 +1,14 @@
+package com.cs4347.cadence.audio
+
+// A change to what is played that the audio feeder makes once it has written stream up to index,
+// e.g. a switch on a beat. Until then the feeder keeps writing a block at a time, so other actions
+// are not held up while it gets there.
+class ScheduledChange(
+    val stream: SongStream,
+    val index: Int,
+    // Whether the change hands playback over to an OffloadPlayer
+    val isOffload: Boolean,
+    val apply: () -> Unit,
+    // Called instead of apply if the change is dropped, to free what it would have played
+    val discard: () -> Unit
+)
@@ -0,0 +1,73 @@
+package com.cs4347.cadence.audio
+
+import android.util.Log
+import com.cs4347.cadence.musicPlayer.SongSelector
+import com.cs4347.cadence.musicPlayer.TimeShiftedSong
+
+// SongSetPrefetcher opens the stream of the song expected to follow the current one before the
+// current song ends, so the swap at the song boundary does not wait for the decoder.
+class SongSetPrefetcher(
+    private val songLibrary: SongSelector,
+    private val createSongSet: (TimeShiftedSong) -> LoadedTimeShiftedSongSet,
+    private val selectTrack: (LoadedTimeShiftedSongSet, Int) -> LoadedSong,
+    private val openStream: (LoadedSong) -> SongStream
+) {
+    private var prefetchedStream: SongStream? = null
+
+    // The cadence the current prefetch was made for, or null if nothing was prefetched for a
+    // prediction. The next song set should be selected for this cadence so the prefetch is used.
+    @Volatile
+    var predictedBpm: Int? = null
+        private set
+
+    // Prefetches the song that will be selected for the predicted cadence at the song boundary.
+    // A prefetch for a different song, e.g. one from another BPM bucket, is cancelled.
+    @Synchronized
+    fun update(predictedBpm: Int) {
+        val nextSongSet = createSongSet(songLibrary.peekNextSong(predictedBpm))
+        val nextSong = selectTrack(nextSongSet, predictedBpm)
+        if (prefetchedStream?.song == nextSong) {
+            this.predictedBpm = predictedBpm
+            return
+        }
+        cancel()
+        this.predictedBpm = predictedBpm
+        Log.d(TAG, "Prefetching ${nextSong.name} at ${nextSong.bpm} BPM")
+        prefetchedStream = openStream(nextSong)
+    }
+
+    // Keeps the input stream, e.g. of a load that was abandoned, in case its song is wanted next.
+    // Any other prefetch is cancelled.
+    @Synchronized
+    fun offer(stream: SongStream) {
+        if (prefetchedStream !== stream) {
+            cancel()
+            prefetchedStream = stream
+        }
+        predictedBpm = null
+    }
+
+    // Returns the prefetched stream if it is for the input song. Any other prefetch is cancelled.
+    @Synchronized
+    fun take(song: LoadedSong): SongStream? {
+        val stream = prefetchedStream
+        prefetchedStream = null
+        predictedBpm = null
+        if (stream?.song == song) {
+            return stream
+        }
+        stream?.close()
+        return null
+    }
+
+    @Synchronized
+    fun cancel() {
+        prefetchedStream?.close()
+        prefetchedStream = null
+        predictedBpm = null
+    }
+
+    companion object {
+        private const val TAG = "CadencePrefetcher"
+    }
+}
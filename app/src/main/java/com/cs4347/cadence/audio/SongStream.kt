@@ -0,0 +1,27 @@
+package com.cs4347.cadence.audio
+
+import java.io.Closeable
+import java.nio.ByteBuffer
+
+// SongStream supplies the decoded PCM of a song variant sequentially from a start index.
+interface SongStream : Closeable {
+    val song: LoadedSong
+
+    // Index in the song of the next byte returned by read
+    val position: Int
+
+    // Length of the song in bytes, or -1 if it is not known yet
+    val length: Int
+
+    // Blocks for at most timeoutMs until enough audio is available to start playback. Returns
+    // false on timeout.
+    fun awaitPrebuffered(timeoutMs: Long = PREBUFFER_TIMEOUT_MS): Boolean
+
+    // Returns a view of up to length of the next bytes of the song without waiting for them to be
+    // decoded, so the view is empty if none are ready yet, or null once the end of the song is
+    // reached. The view is only valid until the next call to read.
+    fun read(length: Int): ByteBuffer?
+
+    // Whether every byte of the song has been read
+    fun isFinished(): Boolean
+}
@@ -0,0 +1,148 @@
+package com.cs4347.cadence.audio
+
+import android.content.Context
+import android.util.Log
+import java.io.DataInputStream
+import java.io.DataOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.FileOutputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.security.MessageDigest
+
+// SongTempoAnalyzer estimates the tempo of library songs from their audio on the DecodeExecutor,
+// so that several songs are analyzed at once on separate cores. Analyses are speculative, so they
+// give way to decoding for playback. Estimates are cached in
+// app-private files keyed by a hash of the song's raw data, so that each recording is only
+// analyzed once however it is named, and survive APK updates.
+class SongTempoAnalyzer(
+    private val context: Context,
+    decoder: AudioDecoder,
+    private val executor: DecodeExecutor,
+    // Called on the analyzing thread with the resource ID and tempo estimate of each song
+    private val onAnalyzed: (Int, TempoEstimate) -> Unit
+) {
+    private val directory = File(context.cacheDir, CACHE_DIRECTORY_NAME)
+
+    // Backend used for analyses started after it is set
+    @Volatile
+    var decoder = decoder
+
+    init {
+        directory.mkdirs()
+    }
+
+    // Queues the input songs for analysis. Songs analyzed before are read from the cache.
+    fun analyze(resourceIds: List<Int>) {
+        for (resourceId in resourceIds) {
+            executor.schedule(JobPriority.SPECULATIVE) { analyzeSong(resourceId, it) }
+        }
+    }
+
+    private fun analyzeSong(resourceId: Int, job: DecodeJob) {
+        if (job.isCancelled) {
+            return
+        }
+        val name = context.resources.getResourceEntryName(resourceId)
+        try {
+            val file = File(directory, getContentHash(resourceId) + CACHE_FILE_SUFFIX)
+            val estimate = read(file) ?: estimate(LoadedSong(name, 0, resourceId), file, job) ?: return
+            onAnalyzed(resourceId, estimate)
+        } catch (e: Exception) {
+            Log.w(TAG, "Failed to estimate the tempo of $name", e)
+        }
+    }
+
+    private fun read(file: File): TempoEstimate? {
+        if (!file.exists()) {
+            return null
+        }
+        return try {
+            DataInputStream(FileInputStream(file).buffered()).use { input ->
+                val version = input.readInt()
+                if (version != FORMAT_VERSION) {
+                    throw IOException("Unsupported tempo estimate version $version")
+                }
+                TempoEstimate(input.readDouble(), input.readDouble())
+            }
+        } catch (e: IOException) {
+            Log.w(TAG, "Failed to read ${file.name}", e)
+            file.delete()
+            null
+        }
+    }
+
+    // Decodes up to the first ANALYSIS_SECONDS of the song into an onset envelope, and caches the
+    // tempo estimated from it in file. Returns null if the job is cancelled first.
+    private fun estimate(song: LoadedSong, file: File, job: DecodeJob): TempoEstimate? {
+        val startTime = System.currentTimeMillis()
+        val envelope = OnsetEnvelope()
+        var bytesDecoded = 0
+        decoder.decode(song, 0, object : PcmSink {
+            override fun write(buffer: ByteBuffer): Boolean {
+                bytesDecoded += buffer.remaining()
+                envelope.add(buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer())
+                return bytesDecoded < ANALYSIS_SECONDS * BYTES_PER_SECOND && !job.isCancelled
+            }
+        })
+        if (job.isCancelled) {
+            return null
+        }
+        val estimate = TempoEstimator.estimate(envelope.toArray())
+        Log.d(
+            TAG,
+            "Estimated ${song.name} at ${estimate.bpm} BPM with confidence ${estimate.confidence} in ${System.currentTimeMillis() - startTime} ms"
+        )
+        val tempFile = File.createTempFile("${song.resourceId}_", TEMP_FILE_SUFFIX, directory)
+        try {
+            DataOutputStream(FileOutputStream(tempFile).buffered()).use { output ->
+                output.writeInt(FORMAT_VERSION)
+                output.writeDouble(estimate.bpm)
+                output.writeDouble(estimate.confidence)
+            }
+            tempFile.renameTo(file)
+        } finally {
+            tempFile.delete()
+        }
+        return estimate
+    }
+
+    // Hex SHA-1 of the song's length and the start of its raw data, which tells songs apart
+    // without reading each song in full on every launch
+    private fun getContentHash(resourceId: Int): String {
+        val digest = MessageDigest.getInstance("SHA-1")
+        context.resources.openRawResourceFd(resourceId).use { afd ->
+            digest.update(afd.length.toString().toByteArray())
+        }
+        context.resources.openRawResource(resourceId).use { input ->
+            val buffer = ByteArray(HASHED_BYTES)
+            var size = 0
+            while (size < buffer.size) {
+                val sizeRead = input.read(buffer, size, buffer.size - size)
+                if (sizeRead < 0) {
+                    break
+                }
+                size += sizeRead
+            }
+            digest.update(buffer, 0, size)
+        }
+        return digest.digest().joinToString("") { String.format("%02x", it) }
+    }
+
+    companion object {
+        private const val TAG = "CadenceTempoAnalyzer"
+        private const val CACHE_DIRECTORY_NAME = "tempo"
+        private const val CACHE_FILE_SUFFIX = ".tempo"
+        private const val TEMP_FILE_SUFFIX = ".tmp"
+
+        // Raised whenever TempoEstimator changes, so that cached estimates are made again
+        private const val FORMAT_VERSION = 2
+
+        // Enough of a song for its tempo to stand out
+        private const val ANALYSIS_SECONDS = 120
+
+        private const val HASHED_BYTES = 64 * 1024
+    }
+}
@@ -0,0 +1,122 @@
+package com.cs4347.cadence.audio
+
+import java.io.PrintWriter
+
+// Stages a cadence update passes through between a footfall and the music following it
+enum class LatencyStage(val label: String) {
+    // The footfall that completed the cadence update, as timestamped by the step sensor
+    STEP("step"),
+    RECEIVED("broadcast received"),
+    // Taken from the command queue by the control thread and past the bpmChanged throttle
+    ACCEPTED("throttle passed"),
+    // Any song the change needs is open and prebuffered
+    PREPARED("song prepared"),
+    // The audio feeder started applying the change between blocks
+    HANDED_OVER("feeder reached"),
+    // The new tempo, variant or song is in place for the next frame written
+    APPLIED("change applied"),
+    // The first frame written after the change is heard
+    AUDIBLE("change audible")
+}
+
+// Times at which one cadence update reached each stage, on the System.nanoTime clock
+class LatencyTrace(stepTimeNs: Long) {
+    private val times = LongArray(LatencyStage.values().size)
+
+    init {
+        times[LatencyStage.STEP.ordinal] = stepTimeNs
+    }
+
+    fun mark(stage: LatencyStage, timeNs: Long = System.nanoTime()) {
+        times[stage.ordinal] = timeNs
+    }
+
+    fun getTime(stage: LatencyStage): Long {
+        return times[stage.ordinal]
+    }
+}
+
+// StepLatencyRecorder collects the time each cadence update spends in each stage into
+// histograms. A trace is complete once AudioTrack timestamps show that the first frame written
+// after its change has been played.
+class StepLatencyRecorder {
+    // Histograms of the time from each stage to the next, then of the whole path
+    private val stageHistograms = LatencyStage.values().drop(1).map {
+        LatencyHistogram("${LatencyStage.values()[it.ordinal - 1].label} -> ${it.label}")
+    }
+    private val totalHistogram =
+        LatencyHistogram("${LatencyStage.STEP.label} -> ${LatencyStage.AUDIBLE.label}")
+
+    // How long cadence updates dropped by the throttle went without a later one being applied
+    private val throttledHistogram = LatencyHistogram("throttled update -> next accepted update")
+
+    // Applied traces waiting to be heard, with the AudioTrack frame their change starts at
+    private val pendingTraces = ArrayList<LatencyTrace>()
+    private val pendingFrames = ArrayList<Long>()
+
+    @Synchronized
+    fun onChangeApplied(trace: LatencyTrace, firstFrame: Long) {
+        trace.mark(LatencyStage.APPLIED)
+        if (pendingTraces.size == MAX_PENDING_TRACES) {
+            pendingTraces.removeAt(0)
+            pendingFrames.removeAt(0)
+        }
+        pendingTraces.add(trace)
+        pendingFrames.add(firstFrame)
+    }
+
+    // Records that a cadence update that arrived at receivedTimeNs was dropped, and was
+    // superseded by one accepted at acceptedTimeNs
+    fun onThrottled(receivedTimeNs: Long, acceptedTimeNs: Long) {
+        throttledHistogram.record(acceptedTimeNs - receivedTimeNs)
+    }
+
+    // Completes the traces whose first frame had been played by the input AudioTrack timestamp.
+    // framesPerSecond is the playback rate, and outputLatencyNs the time from a frame being
+    // timestamped to it being heard.
+    @Synchronized
+    fun onTimestamp(framePosition: Long, nanoTime: Long, framesPerSecond: Double, outputLatencyNs: Long) {
+        while (pendingTraces.isNotEmpty() && pendingFrames[0] <= framePosition) {
+            val trace = pendingTraces.removeAt(0)
+            val frame = pendingFrames.removeAt(0)
+            val playedTimeNs = nanoTime - ((framePosition - frame) * 1e9 / framesPerSecond).toLong()
+            trace.mark(LatencyStage.AUDIBLE, playedTimeNs + outputLatencyNs)
+            record(trace)
+        }
+    }
+
+    // Drops the traces waiting to be heard, e.g. when queued audio is flushed
+    @Synchronized
+    fun clearPending() {
+        pendingTraces.clear()
+        pendingFrames.clear()
+    }
+
+    fun dump(writer: PrintWriter) {
+        writer.println("Step to music latency:")
+        stageHistograms.forEach { it.dump(writer) }
+        totalHistogram.dump(writer)
+        throttledHistogram.dump(writer)
+    }
+
+    fun reset() {
+        stageHistograms.forEach { it.reset() }
+        totalHistogram.reset()
+        throttledHistogram.reset()
+    }
+
+    private fun record(trace: LatencyTrace) {
+        for (histogram in stageHistograms.indices) {
+            val stage = LatencyStage.values()[histogram + 1]
+            val previousStage = LatencyStage.values()[histogram]
+            stageHistograms[histogram].record(trace.getTime(stage) - trace.getTime(previousStage))
+        }
+        totalHistogram.record(
+            trace.getTime(LatencyStage.AUDIBLE) - trace.getTime(LatencyStage.STEP)
+        )
+    }
+
+    companion object {
+        private const val MAX_PENDING_TRACES = 16
+    }
+}
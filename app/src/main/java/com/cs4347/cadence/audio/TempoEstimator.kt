@@ -0,0 +1,148 @@
+package com.cs4347.cadence.audio
+
+import kotlin.math.abs
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+
+// Estimated tempo of a song, with a confidence from 0, when no tempo stands out, to 1
+data class TempoEstimate(val bpm: Double, val confidence: Double)
+
+// TempoEstimator estimates the tempo of a song from its onset envelope. The envelope is
+// autocorrelated, and each candidate tempo is scored by a comb filter summing the autocorrelation
+// at the first few multiples of its beat period, so that a tempo whose beats repeat throughout
+// the song scores highest. Whether a song is at one tempo or half of it cannot be told reliably
+// this way, so candidates span the single octave of running tempos, and SongSelector matches
+// slower cadences against double time. Within the octave, a song with a triplet feel can score
+// as high at 2:3 of its tempo as at the tempo itself, so the confidence is lowered by how
+// strongly the beats of a tempo at 3:2 or 2:3 of the estimate fall between its beats.
+object TempoEstimator {
+    private const val MIN_BPM = 100.0
+    private const val MAX_BPM = 200.0
+    private const val BPM_STEP = 0.25
+
+    // Beat period multiples summed by the comb filter
+    private const val COMB_TEETH = 4
+
+    private const val HOPS_PER_MINUTE = 60.0 * SAMPLE_RATE / OnsetEnvelope.HOP_FRAMES
+
+    // Ratios to the estimate of the tempos most easily mistaken for it within the octave
+    private val RELATED_TEMPO_RATIOS = doubleArrayOf(3.0 / 2, 2.0 / 3)
+
+    // Fraction of a related tempo within which the peak of its evidence is searched for
+    private const val RELATED_TEMPO_TOLERANCE = 0.02
+
+    // Fraction of a beat within which a beat of a related tempo coincides with a beat of the
+    // estimate, so says nothing about which of the two the song is at
+    private const val BEAT_TOLERANCE = 0.1
+
+    fun estimate(onsets: FloatArray): TempoEstimate {
+        val maxLag = (COMB_TEETH * HOPS_PER_MINUTE / MIN_BPM).toInt() + 2
+        val autocorrelation = autocorrelate(onsets, maxLag)
+        val candidateCount = ((MAX_BPM - MIN_BPM) / BPM_STEP).toInt()
+        var bestBpm = MIN_BPM
+        var bestScore = 0.0
+        var totalScore = 0.0
+        for (i in 0 until candidateCount) {
+            val bpm = MIN_BPM + i * BPM_STEP
+            val score = getCombScore(autocorrelation, HOPS_PER_MINUTE / bpm)
+            totalScore += score
+            if (score > bestScore) {
+                bestScore = score
+                bestBpm = bpm
+            }
+        }
+        if (bestScore <= 0) {
+            return TempoEstimate(bestBpm, 0.0)
+        }
+        // How far the best tempo stands out from the average candidate, and from the tempos it
+        // is most easily mistaken for
+        val confidence = (1 - totalScore / candidateCount / bestScore) *
+                (1 - getAmbiguity(autocorrelation, bestBpm, bestScore))
+        return TempoEstimate(bestBpm, max(confidence, 0.0))
+    }
+
+    // Returns the strongest evidence for a related tempo of the input tempo, relative to the
+    // score of the tempo, from 0 when there is none to 1
+    private fun getAmbiguity(autocorrelation: DoubleArray, bpm: Double, score: Double): Double {
+        val period = HOPS_PER_MINUTE / bpm
+        // Eighth notes account for autocorrelation half way between beats
+        val halfBeatCorrelation = max(0.0, interpolate(autocorrelation, period / 2))
+        var ambiguity = 0.0
+        for (ratio in RELATED_TEMPO_RATIOS) {
+            val relatedBpm = bpm * ratio
+            var candidateBpm = max(relatedBpm * (1 - RELATED_TEMPO_TOLERANCE), MIN_BPM)
+            val maxBpm = min(relatedBpm * (1 + RELATED_TEMPO_TOLERANCE), MAX_BPM)
+            while (candidateBpm <= maxBpm) {
+                val evidence = getOffBeatScore(
+                    autocorrelation, HOPS_PER_MINUTE / candidateBpm, period, halfBeatCorrelation
+                )
+                ambiguity = max(ambiguity, evidence / score)
+                candidateBpm += BPM_STEP
+            }
+        }
+        return min(ambiguity, 1.0)
+    }
+
+    // Mean autocorrelation, beyond halfBeatCorrelation, at the multiples of relatedPeriod that
+    // fall between the beats of period. Multiples on a beat of period are skipped.
+    private fun getOffBeatScore(
+        autocorrelation: DoubleArray,
+        relatedPeriod: Double,
+        period: Double,
+        halfBeatCorrelation: Double
+    ): Double {
+        var score = 0.0
+        var count = 0
+        for (tooth in 1..COMB_TEETH) {
+            val beats = tooth * relatedPeriod / period
+            if (abs(beats - beats.roundToInt()) < BEAT_TOLERANCE) {
+                continue
+            }
+            score += max(0.0, interpolate(autocorrelation, tooth * relatedPeriod) - halfBeatCorrelation)
+            count++
+        }
+        return if (count == 0) 0.0 else score / count
+    }
+
+    // Autocorrelation of the mean-removed onsets for lags up to maxLag, normalised by the
+    // correlation at lag 0 and by the number of products summed at each lag
+    private fun autocorrelate(onsets: FloatArray, maxLag: Int): DoubleArray {
+        val result = DoubleArray(maxLag + 1)
+        if (onsets.size <= maxLag) {
+            return result
+        }
+        val mean = onsets.average()
+        val centered = DoubleArray(onsets.size) { onsets[it] - mean }
+        for (lag in 0..maxLag) {
+            var sum = 0.0
+            for (i in 0 until centered.size - lag) {
+                sum += centered[i] * centered[i + lag]
+            }
+            result[lag] = sum / (centered.size - lag)
+        }
+        if (result[0] <= 0) {
+            return DoubleArray(maxLag + 1)
+        }
+        val energy = result[0]
+        for (lag in result.indices) {
+            result[lag] /= energy
+        }
+        return result
+    }
+
+    // Sum of the positive autocorrelation at multiples of the input beat period in hops
+    private fun getCombScore(autocorrelation: DoubleArray, period: Double): Double {
+        var score = 0.0
+        for (tooth in 1..COMB_TEETH) {
+            score += max(0.0, interpolate(autocorrelation, tooth * period))
+        }
+        return score / COMB_TEETH
+    }
+
+    private fun interpolate(values: DoubleArray, position: Double): Double {
+        val index = min(position.toInt(), values.size - 2)
+        val fraction = position - index
+        return values[index] * (1 - fraction) + values[index + 1] * fraction
+    }
+}
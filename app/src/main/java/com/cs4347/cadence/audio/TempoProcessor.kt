@@ -0,0 +1,48 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ShortBuffer
+
+// TempoProcessor changes the tempo of a stream of 16-bit stereo PCM. Input is queued with putInput
+// and the processed audio is pulled with receiveOutput.
+interface TempoProcessor {
+    // Ratio of the output tempo to the input tempo. Changes apply to input processed afterwards.
+    var tempo: Double
+
+    // Number of output frames ready to be received
+    val availableFrames: Int
+
+    // Approximate number of queued input frames whose output has not been received yet
+    val queuedInputFrames: Int
+
+    // Queues the remaining 16-bit little-endian samples of input
+    fun putInput(input: ByteBuffer)
+
+    // Moves up to output.remaining() samples of processed audio into output. Returns the number of
+    // frames received.
+    fun receiveOutput(output: ShortBuffer): Int
+
+    // Processes the queued input that is left once the end of the input is reached
+    fun flush()
+}
+
+// Ways of matching the tempo of a song set to the cadence
+enum class TempoMode {
+    // Switch between the pre-rendered variants of the song set
+    VARIANTS,
+
+    // Time-stretch the original variant with WSOLA, which preserves its pitch
+    TIME_STRETCH,
+
+    // Resample the original variant, which shifts its pitch with the tempo but needs much less CPU
+    VARISPEED;
+
+    // Returns null if the mode plays the variants as they are
+    fun createProcessor(): TempoProcessor? {
+        return when (this) {
+            VARIANTS -> null
+            TIME_STRETCH -> WsolaTimeStretcher()
+            VARISPEED -> VarispeedResampler()
+        }
+    }
+}
@@ -0,0 +1,96 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.max
+
+// TempoSongStream plays a song stream through a TempoProcessor, so that the tempo of the song can
+// follow the cadence while it plays instead of switching to another variant. Positions and
+// lengths are those of the source song.
+class TempoSongStream(
+    private val source: SongStream,
+    private val processor: TempoProcessor,
+    tempo: Double
+) : SongStream {
+    override val song: LoadedSong
+        get() = source.song
+
+    // Ratio of the playback tempo to the song's own tempo
+    var tempo: Double
+        get() = processor.tempo
+        set(value) {
+            processor.tempo = value
+        }
+
+    override val position: Int
+        get() = max(0, source.position - processor.queuedInputFrames * BYTES_PER_FRAME)
+
+    override val length: Int
+        get() = source.length
+
+    // Direct buffer the processed audio is returned in, and its samples, reused across reads
+    private var outputBuffer: ByteBuffer? = null
+    private var outputSamples: ShortBuffer? = null
+
+    private var isSourceFinished = false
+
+    init {
+        processor.tempo = tempo
+    }
+
+    override fun awaitPrebuffered(timeoutMs: Long): Boolean {
+        return source.awaitPrebuffered(timeoutMs)
+    }
+
+    override fun read(length: Int): ByteBuffer? {
+        val frames = length / BYTES_PER_FRAME
+        while (processor.availableFrames < frames && !isSourceFinished) {
+            val input = source.read(length)
+            if (input == null) {
+                isSourceFinished = true
+                processor.flush()
+                break
+            }
+            if (!input.hasRemaining()) {
+                // The source is still decoding, so return what has been processed so far
+                break
+            }
+            processor.putInput(input)
+        }
+        if (isFinished()) {
+            return null
+        }
+        val output = getOutputBuffer(frames * BYTES_PER_FRAME)
+        val samples = outputSamples ?: return null
+        samples.clear()
+        samples.limit(frames * NUM_CHANNELS)
+        val framesReceived = processor.receiveOutput(samples)
+        output.limit(framesReceived * BYTES_PER_FRAME)
+        return output
+    }
+
+    override fun isFinished(): Boolean {
+        return isSourceFinished && processor.availableFrames == 0
+    }
+
+    override fun close() {
+        source.close()
+    }
+
+    private fun getOutputBuffer(size: Int): ByteBuffer {
+        val buffer = outputBuffer
+        if (buffer != null && buffer.capacity() >= size) {
+            buffer.clear()
+            return buffer
+        }
+        val newBuffer = ByteBuffer.allocateDirect(size).order(ByteOrder.LITTLE_ENDIAN)
+        outputBuffer = newBuffer
+        outputSamples = newBuffer.asShortBuffer()
+        return newBuffer
+    }
+
+    companion object {
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+    }
+}
@@ -0,0 +1,86 @@
+package com.cs4347.cadence.audio
+
+import kotlin.math.abs
+import kotlin.math.roundToInt
+
+// VariantAlignment maps positions in one variant of a song to the same musical position in another
+// variant. The beats of the two variants are matched, and positions between two beats are
+// interpolated linearly, so the mapping follows any unevenness in how the variants were stretched.
+class VariantAlignment private constructor(
+    private val from: BeatGrid,
+    private val to: BeatGrid,
+    // Ratio of positions in to over positions in from if the variants were stretched evenly
+    private val scale: Double,
+    // Number added to a beat of from to get the matching beat of to
+    private val beatOffset: Int
+) {
+    // Returns the byte index of the first beat of from at or after index, or -1 if there is none
+    fun getNextBeatIndex(index: Int): Int {
+        val frame = (index + BYTES_PER_FRAME - 1) / BYTES_PER_FRAME
+        val beat = from.getNextBeat(frame)
+        return if (beat < 0) -1 else from.getBeatFrame(beat) * BYTES_PER_FRAME
+    }
+
+    // Maps a byte index in from to the byte index of the same position in to
+    fun map(index: Int): Int {
+        val frame = index / BYTES_PER_FRAME
+        val beat = from.getPreviousBeat(frame)
+        val matchingBeat = beat + beatOffset
+        if (beat < 0 || beat + 1 >= from.beatCount || matchingBeat < 0 ||
+            matchingBeat + 1 >= to.beatCount
+        ) {
+            // Before the first or after the last matched beat, fall back to an even stretch
+            return (frame * scale).roundToInt() * BYTES_PER_FRAME
+        }
+        val beatStart = from.getBeatFrame(beat)
+        val fraction = (frame - beatStart).toDouble() / (from.getBeatFrame(beat + 1) - beatStart)
+        val matchingStart = to.getBeatFrame(matchingBeat)
+        val matchingLength = to.getBeatFrame(matchingBeat + 1) - matchingStart
+        return (matchingStart + fraction * matchingLength).roundToInt() * BYTES_PER_FRAME
+    }
+
+    companion object {
+        private const val BYTES_PER_FRAME = NUM_CHANNELS * BYTES_PER_SAMPLE
+
+        // Beats the first beats of two variants may be apart, e.g. when an intro beat was missed
+        private const val MAX_BEAT_OFFSET = 4
+
+        // Creates the alignment from the variant played at fromBpm to the variant played at
+        // toBpm. Returns null if the beats of the variants do not match up, in which case the
+        // beat grids are not reliable enough to switch on.
+        fun create(from: BeatGrid, fromBpm: Int, to: BeatGrid, toBpm: Int): VariantAlignment? {
+            val scale = fromBpm.toDouble() / toBpm
+            var bestOffset = 0
+            var bestError = Double.MAX_VALUE
+            for (offset in -MAX_BEAT_OFFSET..MAX_BEAT_OFFSET) {
+                val error = getMeanError(from, to, scale, offset)
+                if (error < bestError) {
+                    bestError = error
+                    bestOffset = offset
+                }
+            }
+            // Matched beats must on average be closer than a quarter of a beat in to
+            val beatFrames = 60.0 * SAMPLE_RATE / toBpm
+            if (bestError > beatFrames / 4) {
+                return null
+            }
+            return VariantAlignment(from, to, scale, bestOffset)
+        }
+
+        // Mean distance in frames between the beats of to and the evenly stretched beats of from
+        // matched with them
+        private fun getMeanError(from: BeatGrid, to: BeatGrid, scale: Double, offset: Int): Double {
+            var totalError = 0.0
+            var count = 0
+            for (beat in 0 until from.beatCount) {
+                val matchingBeat = beat + offset
+                if (matchingBeat < 0 || matchingBeat >= to.beatCount) {
+                    continue
+                }
+                totalError += abs(from.getBeatFrame(beat) * scale - to.getBeatFrame(matchingBeat))
+                count++
+            }
+            return if (count == 0) Double.MAX_VALUE else totalError / count
+        }
+    }
+}
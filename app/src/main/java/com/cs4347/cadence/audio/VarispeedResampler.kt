@@ -0,0 +1,182 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ShortBuffer
+import kotlin.math.PI
+import kotlin.math.cos
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.sin
+
+// VarispeedResampler changes the tempo of stereo PCM by resampling it, like playing a record
+// faster or slower, so the pitch follows the tempo. It costs a few multiply-adds per sample, far
+// less than time-stretching, and allocates nothing once its buffers have grown to the block size.
+// Output samples are interpolated with a polyphase windowed-sinc filter whose cutoff is low enough
+// to avoid aliasing at MAX_TEMPO.
+class VarispeedResampler : TempoProcessor {
+    @Volatile
+    override var tempo = 1.0
+
+    // Interleaved input, starting with the frames before inputPosition that the filter still needs
+    private var input = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+    private var inputFrames = HALF_TAPS - 1
+
+    // Fractional frame of input at which the next output frame is interpolated
+    private var inputPosition = (HALF_TAPS - 1).toDouble()
+
+    // Interleaved output, of which outputFrames frames from outputStart have not been received
+    private var output = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+    private var outputStart = 0
+    private var outputFrames = 0
+
+    override val availableFrames: Int
+        get() = outputFrames
+
+    override val queuedInputFrames: Int
+        get() = (inputFrames - inputPosition + outputFrames * tempo).toInt()
+
+    override fun putInput(input: ByteBuffer) {
+        val frames = input.remaining() / (NUM_CHANNELS * BYTES_PER_SAMPLE)
+        ensureInputCapacity(inputFrames + frames)
+        PcmUtils.getSamples(input, this.input, inputFrames * NUM_CHANNELS, frames * NUM_CHANNELS)
+        inputFrames += frames
+        resample(inputFrames)
+    }
+
+    override fun receiveOutput(output: ShortBuffer): Int {
+        val frames = min(outputFrames, output.remaining() / NUM_CHANNELS)
+        output.put(this.output, outputStart * NUM_CHANNELS, frames * NUM_CHANNELS)
+        outputStart += frames
+        outputFrames -= frames
+        if (outputFrames == 0) {
+            outputStart = 0
+        }
+        return frames
+    }
+
+    override fun flush() {
+        // Pad the input with silence so that the filter reaches the last queued frame
+        val inputEnd = inputFrames
+        ensureInputCapacity(inputFrames + HALF_TAPS)
+        input.fill(0, inputFrames * NUM_CHANNELS, (inputFrames + HALF_TAPS) * NUM_CHANNELS)
+        inputFrames += HALF_TAPS
+        resample(inputEnd)
+        inputFrames = HALF_TAPS - 1
+        input.fill(0, 0, inputFrames * NUM_CHANNELS)
+        inputPosition = (HALF_TAPS - 1).toDouble()
+    }
+
+    // Interpolates output frames until inputPosition reaches inputEnd or the filter runs out of
+    // input, then discards the input that is no longer needed
+    private fun resample(inputEnd: Int) {
+        val tempo = this.tempo
+        val maxFrames = ((inputEnd - inputPosition) / tempo).toInt() + 1
+        ensureOutputCapacity(max(maxFrames, 0))
+        var outputOffset = (outputStart + outputFrames) * NUM_CHANNELS
+        var position = inputPosition
+        while (position < inputEnd && position.toInt() + HALF_TAPS < inputFrames) {
+            val frame = position.toInt()
+            val phase = ((position - frame) * PHASES).toInt()
+            val coefficientOffset = phase * TAPS
+            var left = 0f
+            var right = 0f
+            var sampleIndex = (frame - HALF_TAPS + 1) * NUM_CHANNELS
+            for (tap in 0 until TAPS) {
+                val coefficient = FILTER[coefficientOffset + tap]
+                left += coefficient * input[sampleIndex]
+                right += coefficient * input[sampleIndex + 1]
+                sampleIndex += NUM_CHANNELS
+            }
+            output[outputOffset] = clip(left)
+            output[outputOffset + 1] = clip(right)
+            outputOffset += NUM_CHANNELS
+            outputFrames++
+            position += tempo
+        }
+        inputPosition = position
+        discardConsumedInput()
+    }
+
+    // Keeps the HALF_TAPS - 1 frames before inputPosition, which the filter reads as history
+    private fun discardConsumedInput() {
+        val discardedFrames = min(inputPosition.toInt() - (HALF_TAPS - 1), inputFrames)
+        if (discardedFrames <= 0) {
+            return
+        }
+        System.arraycopy(
+            input, discardedFrames * NUM_CHANNELS,
+            input, 0,
+            (inputFrames - discardedFrames) * NUM_CHANNELS
+        )
+        inputFrames -= discardedFrames
+        inputPosition -= discardedFrames
+    }
+
+    private fun ensureInputCapacity(frames: Int) {
+        if (frames * NUM_CHANNELS > input.size) {
+            input = input.copyOf(max(frames * NUM_CHANNELS, input.size * 2))
+        }
+    }
+
+    // Makes room for the input number of frames after the output that has not been received
+    private fun ensureOutputCapacity(frames: Int) {
+        val requiredSize = (outputFrames + frames) * NUM_CHANNELS
+        if ((outputStart + outputFrames + frames) * NUM_CHANNELS <= output.size) {
+            return
+        }
+        val newOutput = if (requiredSize > output.size) {
+            ShortArray(max(requiredSize, output.size * 2))
+        } else {
+            output
+        }
+        System.arraycopy(
+            output, outputStart * NUM_CHANNELS,
+            newOutput, 0,
+            outputFrames * NUM_CHANNELS
+        )
+        output = newOutput
+        outputStart = 0
+    }
+
+    private fun clip(sample: Float): Short {
+        return sample.coerceIn(Short.MIN_VALUE.toFloat(), Short.MAX_VALUE.toFloat()).toInt().toShort()
+    }
+
+    companion object {
+        // Taps of the filter for each output sample, centred on the interpolated position
+        private const val TAPS = 8
+        private const val HALF_TAPS = TAPS / 2
+
+        // Number of fractional positions between two input frames the filter is tabulated for
+        private const val PHASES = 128
+        private const val INITIAL_CAPACITY_FRAMES = SAMPLE_RATE
+
+        // Filter coefficients by phase, TAPS per phase. Tap t of phase p weighs the input frame
+        // t - HALF_TAPS + 1 frames from the interpolated frame, offset by p / PHASES of a frame.
+        private val FILTER = createFilter()
+
+        private fun createFilter(): FloatArray {
+            // Cut off below the Nyquist frequency of the input resampled at MAX_TEMPO
+            val cutoff = 1 / MAX_TEMPO
+            val filter = FloatArray(PHASES * TAPS)
+            for (phase in 0 until PHASES) {
+                val fraction = phase.toDouble() / PHASES
+                var sum = 0.0
+                for (tap in 0 until TAPS) {
+                    val x = tap - HALF_TAPS + 1 - fraction
+                    val sinc = if (x == 0.0) cutoff else sin(PI * cutoff * x) / (PI * x)
+                    // Blackman window over the span of the taps
+                    val w = 2 * PI * (x + HALF_TAPS) / TAPS
+                    val window = 0.42 - 0.5 * cos(w) + 0.08 * cos(2 * w)
+                    filter[phase * TAPS + tap] = (sinc * window).toFloat()
+                    sum += sinc * window
+                }
+                // Normalise each phase to unity gain so that there is no ripple at DC
+                for (tap in 0 until TAPS) {
+                    filter[phase * TAPS + tap] = (filter[phase * TAPS + tap] / sum).toFloat()
+                }
+            }
+            return filter
+        }
+    }
+}
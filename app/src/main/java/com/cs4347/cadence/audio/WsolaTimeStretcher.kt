@@ -0,0 +1,236 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ShortBuffer
+import kotlin.math.max
+import kotlin.math.min
+import kotlin.math.roundToInt
+import kotlin.math.sqrt
+
+// WsolaTimeStretcher changes the tempo of stereo PCM without changing its pitch using WSOLA
+// (waveform similarity overlap-add). The input is cut into overlapping segments that are played at
+// their original speed, and the tempo changes by stepping through the input faster or slower than
+// through the output. Each segment starts at the offset within a short seek window whose waveform
+// best continues the previous segment, so that cross-fading the two does not cancel them out.
+class WsolaTimeStretcher : TempoProcessor {
+    @Volatile
+    override var tempo = 1.0
+
+    // Interleaved input that has not been consumed by a segment yet
+    private var input = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+    private var inputFrames = 0
+
+    // Frame of input at which the seek window of the next segment starts
+    private var inputPosition = 0.0
+
+    // Interleaved output, of which outputFrames frames from outputStart have not been received
+    private var output = ShortArray(INITIAL_CAPACITY_FRAMES * NUM_CHANNELS)
+    private var outputStart = 0
+    private var outputFrames = 0
+
+    // End of the previous segment, which is cross-faded with the start of the next segment
+    private val overlap = ShortArray(OVERLAP_FRAMES * NUM_CHANNELS)
+
+    // Mono mix of overlap that candidate segment starts are compared against
+    private val overlapMono = FloatArray(OVERLAP_FRAMES)
+    private var hasOverlap = false
+
+    override val availableFrames: Int
+        get() = outputFrames
+
+    override val queuedInputFrames: Int
+        get() {
+            val overlapFrames = if (hasOverlap) OVERLAP_FRAMES else 0
+            return (inputFrames - inputPosition + (outputFrames + overlapFrames) * tempo).toInt()
+        }
+
+    override fun putInput(input: ByteBuffer) {
+        val frames = input.remaining() / (NUM_CHANNELS * BYTES_PER_SAMPLE)
+        ensureInputCapacity(inputFrames + frames)
+        PcmUtils.getSamples(input, this.input, inputFrames * NUM_CHANNELS, frames * NUM_CHANNELS)
+        inputFrames += frames
+        while (canProcessSegment()) {
+            processSegment()
+        }
+        discardConsumedInput()
+    }
+
+    override fun receiveOutput(output: ShortBuffer): Int {
+        val frames = min(outputFrames, output.remaining() / NUM_CHANNELS)
+        output.put(this.output, outputStart * NUM_CHANNELS, frames * NUM_CHANNELS)
+        outputStart += frames
+        outputFrames -= frames
+        if (outputFrames == 0) {
+            outputStart = 0
+        }
+        return frames
+    }
+
+    override fun flush() {
+        // Pad the input with silence so that the last queued frames fall within a segment
+        val inputEnd = inputFrames
+        // The output received so far covers the input up to inputPosition
+        val outputEnd = outputFrames + max(0.0, (inputEnd - inputPosition) / tempo).roundToInt()
+        val paddingFrames = SEEK_FRAMES + SEGMENT_FRAMES
+        ensureInputCapacity(inputFrames + paddingFrames)
+        input.fill(0, inputFrames * NUM_CHANNELS, (inputFrames + paddingFrames) * NUM_CHANNELS)
+        inputFrames += paddingFrames
+        while (inputPosition < inputEnd && canProcessSegment()) {
+            processSegment()
+        }
+        if (hasOverlap) {
+            ensureOutputCapacity(OVERLAP_FRAMES)
+            System.arraycopy(
+                overlap, 0,
+                output, (outputStart + outputFrames) * NUM_CHANNELS,
+                OVERLAP_FRAMES * NUM_CHANNELS
+            )
+            outputFrames += OVERLAP_FRAMES
+            hasOverlap = false
+        }
+        // The last segment runs past the end of the input into the padding, which would otherwise
+        // lengthen the output by up to a segment
+        outputFrames = min(outputFrames, outputEnd)
+        inputFrames = 0
+        inputPosition = 0.0
+    }
+
+    private fun canProcessSegment(): Boolean {
+        return inputPosition.toInt() + SEEK_FRAMES + SEGMENT_FRAMES <= inputFrames
+    }
+
+    // Appends the next segment to the output and advances the input by the output's length
+    // scaled by the tempo
+    private fun processSegment() {
+        val searchStart = inputPosition.toInt()
+        val segmentStart = searchStart + if (hasOverlap) findBestOffset(searchStart) else 0
+        ensureOutputCapacity(SEGMENT_FRAMES - OVERLAP_FRAMES)
+        val outputOffset = (outputStart + outputFrames) * NUM_CHANNELS
+        val inputOffset = segmentStart * NUM_CHANNELS
+        if (hasOverlap) {
+            // Linear cross-fade from the end of the previous segment into this one
+            for (i in 0 until OVERLAP_FRAMES * NUM_CHANNELS) {
+                val fadeIn = i / NUM_CHANNELS
+                output[outputOffset + i] = ((overlap[i] * (OVERLAP_FRAMES - fadeIn) +
+                        input[inputOffset + i] * fadeIn) / OVERLAP_FRAMES).toShort()
+            }
+        } else {
+            System.arraycopy(input, inputOffset, output, outputOffset, OVERLAP_FRAMES * NUM_CHANNELS)
+        }
+        System.arraycopy(
+            input, inputOffset + OVERLAP_FRAMES * NUM_CHANNELS,
+            output, outputOffset + OVERLAP_FRAMES * NUM_CHANNELS,
+            (SEGMENT_FRAMES - 2 * OVERLAP_FRAMES) * NUM_CHANNELS
+        )
+        System.arraycopy(
+            input, inputOffset + (SEGMENT_FRAMES - OVERLAP_FRAMES) * NUM_CHANNELS,
+            overlap, 0,
+            OVERLAP_FRAMES * NUM_CHANNELS
+        )
+        for (i in 0 until OVERLAP_FRAMES) {
+            overlapMono[i] = (overlap[2 * i] + overlap[2 * i + 1]).toFloat()
+        }
+        hasOverlap = true
+        outputFrames += SEGMENT_FRAMES - OVERLAP_FRAMES
+        inputPosition += (SEGMENT_FRAMES - OVERLAP_FRAMES) * tempo
+    }
+
+    // Returns the offset in the seek window from searchStart at which the input is most similar
+    // to the end of the previous segment. The window is searched coarsely first, and then around
+    // the best coarse offset.
+    private fun findBestOffset(searchStart: Int): Int {
+        var bestOffset = 0
+        var bestSimilarity = Float.NEGATIVE_INFINITY
+        for (offset in 0 until SEEK_FRAMES step COARSE_SEEK_STEP) {
+            val similarity = getSimilarity(searchStart + offset)
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity
+                bestOffset = offset
+            }
+        }
+        val coarseOffset = bestOffset
+        val fineStart = max(0, coarseOffset - COARSE_SEEK_STEP + 1)
+        val fineEnd = min(SEEK_FRAMES - 1, coarseOffset + COARSE_SEEK_STEP - 1)
+        for (offset in fineStart..fineEnd) {
+            if (offset == coarseOffset) {
+                continue
+            }
+            val similarity = getSimilarity(searchStart + offset)
+            if (similarity > bestSimilarity) {
+                bestSimilarity = similarity
+                bestOffset = offset
+            }
+        }
+        return bestOffset
+    }
+
+    // Cross-correlation of the mono mix of the input from frame with overlapMono, normalised by
+    // the input's energy. Every CORRELATION_STEP-th frame is compared to keep the search cheap.
+    private fun getSimilarity(frame: Int): Float {
+        var correlation = 0f
+        var energy = 0f
+        var i = 0
+        var sampleIndex = frame * NUM_CHANNELS
+        while (i < OVERLAP_FRAMES) {
+            val sample = (input[sampleIndex] + input[sampleIndex + 1]).toFloat()
+            correlation += overlapMono[i] * sample
+            energy += sample * sample
+            i += CORRELATION_STEP
+            sampleIndex += CORRELATION_STEP * NUM_CHANNELS
+        }
+        return correlation / sqrt(energy + 1f)
+    }
+
+    private fun discardConsumedInput() {
+        val consumedFrames = inputPosition.toInt()
+        if (consumedFrames <= 0) {
+            return
+        }
+        System.arraycopy(
+            input, consumedFrames * NUM_CHANNELS,
+            input, 0,
+            (inputFrames - consumedFrames) * NUM_CHANNELS
+        )
+        inputFrames -= consumedFrames
+        inputPosition -= consumedFrames
+    }
+
+    private fun ensureInputCapacity(frames: Int) {
+        if (frames * NUM_CHANNELS > input.size) {
+            input = input.copyOf(max(frames * NUM_CHANNELS, input.size * 2))
+        }
+    }
+
+    // Makes room for the input number of frames after the output that has not been received
+    private fun ensureOutputCapacity(frames: Int) {
+        val requiredSize = (outputFrames + frames) * NUM_CHANNELS
+        if ((outputStart + outputFrames + frames) * NUM_CHANNELS <= output.size) {
+            return
+        }
+        val newOutput = if (requiredSize > output.size) {
+            ShortArray(max(requiredSize, output.size * 2))
+        } else {
+            output
+        }
+        System.arraycopy(
+            output, outputStart * NUM_CHANNELS,
+            newOutput, 0,
+            outputFrames * NUM_CHANNELS
+        )
+        output = newOutput
+        outputStart = 0
+    }
+
+    companion object {
+        // Lengths of a segment, of the cross-fade between segments and of the window searched for
+        // the start of a segment. Segments of about 40 ms keep beats intact while being short
+        // enough not to be heard as echoes.
+        private const val SEGMENT_FRAMES = SAMPLE_RATE * 40 / 1000
+        private const val OVERLAP_FRAMES = SAMPLE_RATE * 8 / 1000
+        private const val SEEK_FRAMES = SAMPLE_RATE * 15 / 1000
+
+        private const val COARSE_SEEK_STEP = 4
+        private const val CORRELATION_STEP = 2
+        private const val INITIAL_CAPACITY_FRAMES = SAMPLE_RATE
+    }
+}
@@ -6,23 +6,41 @@ import com.cs4347.cadence.R;
 
 import java.lang.reflect.Field;
 import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.TreeMap;
 
 public class SongSelector {
     private TreeMap<Integer, ArrayList<TimeShiftedSong>> songLibrary;
 
+    // Resource IDs of the tempo variants of each song, by the song name they share
+    private LinkedHashMap<String, ArrayList<Integer>> songVariants;
+
+    // BPM given by the resource name, for resources whose name ends in one
+    private HashMap<Integer, Integer> labelledBpms;
+
+    // BPM estimated from the audio of the resource
+    private HashMap<Integer, Integer> estimatedBpms;
+
     private int currentBpm;
     private int currentTrackNo;
 
     public SongSelector() {
         songLibrary = new TreeMap<>();
+        songVariants = new LinkedHashMap<>();
+        labelledBpms = new HashMap<>();
+        estimatedBpms = new HashMap<>();
         currentBpm = 0;
         currentTrackNo = 0;
         populateLibrary();
     }
 
-    public TimeShiftedSong getNextSong(int bpm) {
-        if (currentBpm == bpm) { //No change in BPM, play next song
+    public synchronized TimeShiftedSong getNextSong(int bpm) {
+        int nextBpm = getLibraryBpm(bpm);
+        if (currentBpm == nextBpm) { //No change in BPM bucket, play next song
             currentTrackNo++;
             if (currentTrackNo >= songLibrary.get(currentBpm).size()) {
                 currentTrackNo = 0;
@@ -30,22 +48,32 @@ public class SongSelector {
             return songLibrary.get(currentBpm).get(currentTrackNo);
         }
 
-        if (songLibrary.containsKey(bpm)) { //Change in BPM, BPM is found, play first song
-            currentBpm = bpm;
-            currentTrackNo = 0;
-            return songLibrary.get(currentBpm).get(currentTrackNo);
-        }
-
-        // Change in BPM, exact BPM not found in library. Find closest and play first song
-
-        currentBpm = getBestFitBpm(bpm);
+        // Change in BPM bucket, play its first song
+        currentBpm = nextBpm;
         currentTrackNo = 0;
         return songLibrary.get(currentBpm).get(currentTrackNo);
+    }
 
+    // Returns the song that getNextSong(bpm) would return, without advancing the selector.
+    public synchronized TimeShiftedSong peekNextSong(int bpm) {
+        int nextBpm = getLibraryBpm(bpm);
+        if (currentBpm == nextBpm) {
+            int nextTrackNo = currentTrackNo + 1;
+            if (nextTrackNo >= songLibrary.get(currentBpm).size()) {
+                nextTrackNo = 0;
+            }
+            return songLibrary.get(currentBpm).get(nextTrackNo);
+        }
+        return songLibrary.get(nextBpm).get(0);
+    }
 
+    // BPM of the library bucket songs are picked from for the input cadence, so that a cadence
+    // between buckets keeps advancing through the same bucket
+    private int getLibraryBpm(int bpm) {
+        return songLibrary.containsKey(bpm) ? bpm : getBestFitBpm(bpm);
     }
 
-    public int getBestFitBpm(int bpm) {
+    public synchronized int getBestFitBpm(int bpm) {
         int doubleTimeBpm = 2 * bpm;
 
         int[] differences = new int[4];
@@ -84,23 +112,61 @@ public class SongSelector {
         return differences[min_index];
     }
 
-    private void populateLibrary() {
-        Field[] fields = R.raw.class.getFields();
-        int i = 0;
-        while (i < fields.length) {
-            @RawRes int slowId = getIdFromField(fields[i]);
-            int slowBpm = getBpmFromField(fields[i]);
-            i++;
+    // Resource IDs of the song variants whose name does not give their BPM, which has to be
+    // estimated from their audio instead
+    public synchronized List<Integer> getUnlabelledResourceIds() {
+        ArrayList<Integer> resourceIds = new ArrayList<>();
+        for (ArrayList<Integer> variants : songVariants.values()) {
+            for (int resourceId : variants) {
+                if (!labelledBpms.containsKey(resourceId)) {
+                    resourceIds.add(resourceId);
+                }
+            }
+        }
+        return resourceIds;
+    }
 
-            @RawRes int originalId = getIdFromField(fields[i]);
-            int originalBpm = getBpmFromField(fields[i]);
-            i++;
+    // Sets the BPM estimated from the audio of a song variant. The estimate is used unless the
+    // variant's name gives its BPM, so that songs can be added without labelling them.
+    public synchronized void setEstimatedBpm(@RawRes int resourceId, int bpm) {
+        estimatedBpms.put(resourceId, bpm);
+        if (!labelledBpms.containsKey(resourceId)) {
+            indexLibrary();
+        }
+    }
 
-            @RawRes int fastId = getIdFromField(fields[i]);
-            int fastBpm = getBpmFromField(fields[i]);
-            i++;
+    // Groups the raw resources into the tempo variants of each song. Variants are named after
+    // their song, followed by their BPM if it is known, e.g. song_name_120.
+    private void populateLibrary() {
+        Field[] fields = R.raw.class.getFields();
+        for (Field field : fields) {
+            @RawRes int resourceId = getIdFromField(field);
+            String name = field.getName();
+            int bpm = getBpmFromField(field);
+            if (bpm > 0) {
+                labelledBpms.put(resourceId, bpm);
+                name = name.substring(0, name.lastIndexOf('_'));
+            }
+            ArrayList<Integer> variants = songVariants.get(name);
+            if (variants == null) {
+                variants = new ArrayList<>();
+                songVariants.put(name, variants);
+            }
+            variants.add(resourceId);
+        }
+        indexLibrary();
+    }
 
-            TimeShiftedSong currentSong = new TimeShiftedSong(slowId, slowBpm, originalId, originalBpm, fastId, fastBpm);
+    // Rebuilds the BPM index from the known BPM of each variant. Songs are left out until the BPM
+    // of at least one of their variants is known.
+    private void indexLibrary() {
+        songLibrary.clear();
+        for (ArrayList<Integer> variants : songVariants.values()) {
+            TimeShiftedSong currentSong = createSong(variants);
+            if (currentSong == null) {
+                continue;
+            }
+            int originalBpm = currentSong.getOriginalBpm();
             if (songLibrary.containsKey(originalBpm)) {
                 songLibrary.get(originalBpm).add(currentSong);
             } else {
@@ -109,12 +175,54 @@ public class SongSelector {
                 songLibrary.put(originalBpm, songList);
             }
         }
+        if (!songLibrary.containsKey(currentBpm)) {
+            currentBpm = 0;
+            currentTrackNo = 0;
+        }
     }
 
+    // Creates the song from the variants whose BPM is known, the slowest and fastest being the
+    // slow and fast variants. A song with a single variant uses it for all three.
+    private TimeShiftedSong createSong(List<Integer> variants) {
+        ArrayList<Integer> knownVariants = new ArrayList<>();
+        for (int resourceId : variants) {
+            if (getBpm(resourceId) > 0) {
+                knownVariants.add(resourceId);
+            }
+        }
+        if (knownVariants.isEmpty()) {
+            return null;
+        }
+        Collections.sort(knownVariants, new Comparator<Integer>() {
+            @Override
+            public int compare(Integer a, Integer b) {
+                return Integer.compare(getBpm(a), getBpm(b));
+            }
+        });
+        @RawRes int slowId = knownVariants.get(0);
+        @RawRes int originalId = knownVariants.get(knownVariants.size() / 2);
+        @RawRes int fastId = knownVariants.get(knownVariants.size() - 1);
+        return new TimeShiftedSong(slowId, getBpm(slowId), originalId, getBpm(originalId), fastId, getBpm(fastId));
+    }
+
+    // BPM of a variant from its name if given, its estimate otherwise, or 0 if unknown
+    private int getBpm(@RawRes int resourceId) {
+        Integer bpm = labelledBpms.get(resourceId);
+        if (bpm == null) {
+            bpm = estimatedBpms.get(resourceId);
+        }
+        return bpm == null ? 0 : bpm;
+    }
+
+    // Returns the BPM at the end of the resource name, or 0 if it does not end in one
     private int getBpmFromField(Field field) {
         String name = field.getName();
         String[] details = name.split("_");
-        return Integer.parseInt(details[details.length - 1]);
+        try {
+            return Integer.parseInt(details[details.length - 1]);
+        } catch (NumberFormatException e) {
+            return 0;
+        }
     }
 
     private int getIdFromField(Field field) {
@@ -127,15 +235,15 @@ public class SongSelector {
         return resourceId;
     }
 
-    public int getCurrentTrackNo() {
+    public synchronized int getCurrentTrackNo() {
         return currentTrackNo;
     }
 
-    public void setCurrentTrackNo(int currentTrackNo) {
+    public synchronized void setCurrentTrackNo(int currentTrackNo) {
         this.currentTrackNo = currentTrackNo;
     }
 
-    public boolean isShouldChangeBpm(int newBpm) {
+    public synchronized boolean isShouldChangeBpm(int newBpm) {
         return getBestFitBpm(newBpm) != currentBpm;
     }
 }
@@ -1,5 +1,7 @@
 package com.cs4347.cadence.sensor
 
+import android.os.SystemClock
+
 abstract class StepSensor {
     protected val listeners: MutableList<StepListener> = ArrayList()
 
@@ -11,6 +13,12 @@ abstract class StepSensor {
         listeners.remove(stepListener)
     }
 
+    // Current time on the clock that step times are given in. Android sensor events are timestamped
+    // with the time since boot.
+    open fun getClockNs(): Long {
+        return SystemClock.elapsedRealtimeNanos()
+    }
+
     open fun stop() {
         listeners.forEach {
             it.sensorStopped()
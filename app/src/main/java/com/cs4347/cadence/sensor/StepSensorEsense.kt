@@ -110,6 +110,11 @@ class StepSensorEsense(context: Context, deviceName: String) : StepSensor() {
         super.stop()
     }
 
+    // eSense events are timestamped with the wall clock time in milliseconds
+    override fun getClockNs(): Long {
+        return System.currentTimeMillis() * 1000000
+    }
+
     fun updateAccel(
         timeNs: Long,
         x: Float,
@@ -0,0 +1,77 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertFalse
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.io.File
+import java.io.FileInputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+
+/**
+ * Host benchmark of the pure JVM decoder backend. Decodes every file in res/raw and reports the
+ * decode throughput and the bytes allocated per second of decoded audio.
+ *
+ * Skipped unless the CADENCE_BENCHMARK environment variable is set, e.g.
+ * `CADENCE_BENCHMARK=1 ./gradlew :app:testDebugUnitTest --tests '*AudioDecoderBenchmark'`
+ */
+class AudioDecoderBenchmark {
+    private class CountingSink : PcmSink {
+        var bytesWritten = 0L
+
+        override fun write(buffer: ByteBuffer): Boolean {
+            bytesWritten += buffer.remaining()
+            buffer.position(buffer.limit())
+            return true
+        }
+    }
+
+    @Test
+    fun decodeRawResources() {
+        assumeTrue(System.getenv("CADENCE_BENCHMARK") != null)
+        val threadBean = ManagementFactory.getThreadMXBean() as com.sun.management.ThreadMXBean
+        val threadId = Thread.currentThread().id
+        val files = File(RAW_RESOURCE_DIRECTORY).listFiles()
+            ?.filter { it.name.endsWith(".mp3") }
+            ?.sortedBy { it.name }
+            ?: emptyList()
+        assertFalse("No files found in $RAW_RESOURCE_DIRECTORY", files.isEmpty())
+
+        var totalPcmBytes = 0L
+        var totalNanos = 0L
+        var totalAllocatedBytes = 0L
+        for (file in files) {
+            val sink = CountingSink()
+            val allocatedBefore = threadBean.getThreadAllocatedBytes(threadId)
+            val startTime = System.nanoTime()
+            JavaMp3AudioDecoder.decodeStream(FileInputStream(file), 0, sink)
+            val elapsedNanos = System.nanoTime() - startTime
+            val allocatedBytes = threadBean.getThreadAllocatedBytes(threadId) - allocatedBefore
+
+            totalPcmBytes += sink.bytesWritten
+            totalNanos += elapsedNanos
+            totalAllocatedBytes += allocatedBytes
+            printResult(file.name, sink.bytesWritten, elapsedNanos, allocatedBytes)
+        }
+        printResult("TOTAL", totalPcmBytes, totalNanos, totalAllocatedBytes)
+    }
+
+    private fun printResult(name: String, pcmBytes: Long, elapsedNanos: Long, allocatedBytes: Long) {
+        val seconds = elapsedNanos / 1e9
+        val audioSeconds = pcmBytes.toDouble() / BYTES_PER_SECOND
+        println(
+            String.format(
+                "%-32s %8.2f MB/s PCM %7.1fx realtime %12.0f bytes allocated per audio second",
+                name,
+                pcmBytes / 1e6 / seconds,
+                audioSeconds / seconds,
+                allocatedBytes / audioSeconds
+            )
+        )
+    }
+
+    companion object {
+        // Relative to the app module, which is the working directory of unit tests
+        private const val RAW_RESOURCE_DIRECTORY = "src/main/res/raw"
+    }
+}
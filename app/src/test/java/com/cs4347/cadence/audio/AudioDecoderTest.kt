@@ -0,0 +1,91 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.io.IOException
+import java.nio.ByteBuffer
+
+/**
+ * Host tests of the PcmSink contract as implemented by the pure JVM decoder backend. The
+ * MediaCodec backend needs a device and is not covered here.
+ */
+class AudioDecoderTest {
+    // Collects the PCM it is given, and stops decoding once it holds maxBytes
+    private class BufferingSink(private val maxBytes: Int = Int.MAX_VALUE) : PcmSink {
+        val pcm = ByteArrayOutputStream()
+        var writeCount = 0
+
+        override fun write(buffer: ByteBuffer): Boolean {
+            val bytes = ByteArray(buffer.remaining())
+            buffer.get(bytes)
+            pcm.write(bytes)
+            writeCount++
+            return pcm.size() < maxBytes
+        }
+    }
+
+    @Test
+    fun decodeStream_reachesEndOfSong() {
+        val sink = BufferingSink()
+        val isEndReached = JavaMp3AudioDecoder.decodeStream(FileInputStream(SONG_FILE), 0, sink)
+        assertTrue(isEndReached)
+        // At least a minute of whole stereo frames
+        assertTrue(sink.pcm.size() > 60 * BYTES_PER_SECOND)
+        assertEquals(0, sink.pcm.size() % (NUM_CHANNELS * BYTES_PER_SAMPLE))
+    }
+
+    @Test
+    fun decodeStream_stopsWhenSinkReturnsFalse() {
+        val sink = BufferingSink(maxBytes = 1)
+        val isEndReached = JavaMp3AudioDecoder.decodeStream(FileInputStream(SONG_FILE), 0, sink)
+        assertFalse(isEndReached)
+        assertEquals(1, sink.writeCount)
+    }
+
+    @Test
+    fun decodeStream_fromStartIndexMatchesFullDecode() {
+        val full = decode(0, START_INDEX + COMPARED_BYTES)
+        val fromStartIndex = decode(START_INDEX, COMPARED_BYTES)
+        assertArrayEquals(
+            full.copyOfRange(START_INDEX, START_INDEX + COMPARED_BYTES),
+            fromStartIndex.copyOf(COMPARED_BYTES)
+        )
+    }
+
+    @Test
+    fun decodeStream_pastEndOfSongWritesNothing() {
+        val sink = BufferingSink()
+        val isEndReached = JavaMp3AudioDecoder.decodeStream(FileInputStream(SONG_FILE), Int.MAX_VALUE, sink)
+        assertTrue(isEndReached)
+        assertEquals(0, sink.writeCount)
+    }
+
+    @Test(expected = IOException::class)
+    fun skipFully_throwsAtEndOfInput() {
+        JavaMp3AudioDecoder.skipFully(ByteArrayInputStream(ByteArray(10)), 11)
+    }
+
+    // Returns at least the first length bytes of the song's PCM from startIndex
+    private fun decode(startIndex: Int, length: Int): ByteArray {
+        val sink = BufferingSink(length)
+        JavaMp3AudioDecoder.decodeStream(FileInputStream(SONG_FILE), startIndex, sink)
+        assertTrue(sink.pcm.size() >= length)
+        return sink.pcm.toByteArray()
+    }
+
+    companion object {
+        // Relative to the app module, which is the working directory of unit tests
+        private val SONG_FILE = File("src/main/res/raw/a_mighty_city_176.mp3")
+
+        // Not a multiple of javamp3's block size, so the skipped PCM ends mid-block
+        private const val START_INDEX = 5 * BYTES_PER_SECOND + 1236
+        private const val COMPARED_BYTES = 2 * BYTES_PER_SECOND
+    }
+}
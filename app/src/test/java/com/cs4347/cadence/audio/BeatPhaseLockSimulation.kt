@@ -0,0 +1,74 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.util.Random
+import kotlin.math.abs
+import kotlin.math.floor
+
+/**
+ * Simulation of BeatPhaseLock against a runner. The music plays at MUSIC_BPM, sped up by the
+ * lock's rate correction, and footfalls land at a steady cadence but are detected with Gaussian
+ * timing jitter. Starting INITIAL_OFFSET beats out, it reports how many footfalls it takes until
+ * the true phase error stays within LOCKED_PHASE_ERROR beats for the rest of the run.
+ *
+ * Skipped unless the CADENCE_BENCHMARK environment variable is set, e.g.
+ * `CADENCE_BENCHMARK=1 ./gradlew :app:testDebugUnitTest --tests '*BeatPhaseLockSimulation'`
+ */
+class BeatPhaseLockSimulation {
+    @Test
+    fun lockFromInitialOffset() {
+        assumeTrue(System.getenv("CADENCE_BENCHMARK") != null)
+        for (cadenceOffsetBpm in CADENCE_OFFSETS_BPM) {
+            val stepsToLock = (0 until RUNS).map {
+                simulate(MUSIC_BPM + cadenceOffsetBpm, Random(it.toLong()))
+            }
+            val lockedRuns = stepsToLock.filter { it >= 0 }.sorted()
+            println(
+                String.format(
+                    "cadence %+.0f BPM: %d/%d runs locked, median %d steps, slowest %d steps",
+                    cadenceOffsetBpm,
+                    lockedRuns.size,
+                    RUNS,
+                    lockedRuns.getOrElse(lockedRuns.size / 2) { -1 },
+                    lockedRuns.lastOrNull() ?: -1
+                )
+            )
+        }
+    }
+
+    // Returns the number of footfalls until the lock holds for the rest of the run, or -1 if it
+    // never does
+    private fun simulate(cadenceBpm: Double, random: Random): Int {
+        val lock = BeatPhaseLock()
+        val stepSeconds = 60 / cadenceBpm
+        val beatSeconds = 60 / MUSIC_BPM
+        // Beat of the music being heard at each true footfall
+        var musicBeats = INITIAL_OFFSET
+        var lastUnlockedStep = -1
+        for (step in 0 until STEPS) {
+            val trueError = musicBeats - floor(musicBeats + 0.5)
+            if (abs(trueError) > LOCKED_PHASE_ERROR) {
+                lastUnlockedStep = step
+            }
+            // The detector reports the footfall early or late, so the music has moved on by then
+            val jitterSeconds = random.nextGaussian() * STEP_JITTER_SECONDS
+            val detectedBeats = musicBeats + jitterSeconds * (1 + lock.rateCorrection) / beatSeconds
+            lock.onStep(detectedBeats - floor(detectedBeats))
+            musicBeats += stepSeconds * (1 + lock.rateCorrection) / beatSeconds
+        }
+        return if (lastUnlockedStep == STEPS - 1) -1 else lastUnlockedStep + 1
+    }
+
+    companion object {
+        private const val MUSIC_BPM = 160.0
+        private val CADENCE_OFFSETS_BPM = doubleArrayOf(0.0, 2.0, -2.0)
+        private const val INITIAL_OFFSET = 0.3
+        private const val STEP_JITTER_SECONDS = 0.015
+
+        // Phase error, in beats, within which beats are taken to land on footfalls
+        private const val LOCKED_PHASE_ERROR = 0.1
+        private const val STEPS = 400
+        private const val RUNS = 100
+    }
+}
@@ -0,0 +1,84 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+import kotlin.math.floor
+
+/**
+ * Host tests of BeatPhaseLock against a steady runner whose footfalls are detected without jitter.
+ * BeatPhaseLockSimulation covers detection jitter.
+ */
+class BeatPhaseLockTest {
+    @Test
+    fun footfallAfterBeatSlowsMusicDown() {
+        val lock = BeatPhaseLock()
+        lock.onStep(0.2)
+        assertTrue(lock.rateCorrection < 0)
+        assertEquals(0.2, lock.lastPhaseError, 1e-9)
+    }
+
+    @Test
+    fun footfallBeforeBeatSpeedsMusicUp() {
+        val lock = BeatPhaseLock()
+        lock.onStep(0.8)
+        assertTrue(lock.rateCorrection > 0)
+        assertEquals(-0.2, lock.lastPhaseError, 1e-9)
+    }
+
+    @Test
+    fun convergesAtMatchingCadence() {
+        val lock = BeatPhaseLock()
+        val phaseErrors = run(lock, MUSIC_BPM, 0.3, 200)
+        assertTrue(phaseErrors.takeLast(100).all { abs(it) < 0.01 })
+        assertEquals(0.0, lock.rateCorrection, 0.001)
+    }
+
+    @Test
+    fun absorbsSmallTempoDifference() {
+        for (cadenceOffsetBpm in doubleArrayOf(-2.0, 2.0)) {
+            val lock = BeatPhaseLock()
+            val phaseErrors = run(lock, MUSIC_BPM + cadenceOffsetBpm, 0.3, 400)
+            assertTrue("Offset $cadenceOffsetBpm BPM", phaseErrors.takeLast(100).all { abs(it) < 0.02 })
+            // The music has to play faster by the ratio of the tempos to keep up
+            assertEquals(cadenceOffsetBpm / MUSIC_BPM, lock.rateCorrection, 0.001)
+        }
+    }
+
+    @Test
+    fun correctionIsBounded() {
+        val lock = BeatPhaseLock()
+        // Too far from the tempo to be absorbed within the maximum correction
+        run(lock, MUSIC_BPM * 1.1, 0.0, 400)
+        assertTrue(abs(lock.rateCorrection) <= MAX_RATE_CORRECTION + 1e-9)
+    }
+
+    @Test
+    fun resetDropsCorrection() {
+        val lock = BeatPhaseLock()
+        run(lock, MUSIC_BPM + 2, 0.3, 100)
+        lock.reset()
+        assertEquals(0.0, lock.rateCorrection, 0.0)
+        lock.onStep(0.0)
+        assertEquals(0.0, lock.rateCorrection, 0.0)
+    }
+
+    // Runs steps footfalls at cadenceBpm starting initialOffset beats into music at MUSIC_BPM, which
+    // is played faster by the lock's correction. Returns the phase error of each footfall.
+    private fun run(lock: BeatPhaseLock, cadenceBpm: Double, initialOffset: Double, steps: Int): List<Double> {
+        val phaseErrors = ArrayList<Double>()
+        var musicBeats = initialOffset
+        for (step in 0 until steps) {
+            phaseErrors.add(musicBeats - floor(musicBeats + 0.5))
+            lock.onStep(musicBeats - floor(musicBeats))
+            musicBeats += 60 / cadenceBpm * (1 + lock.rateCorrection) * MUSIC_BPM / 60
+        }
+        return phaseErrors
+    }
+
+    companion object {
+        private const val MUSIC_BPM = 160.0
+        private const val MAX_RATE_CORRECTION = 0.02
+    }
+}
@@ -0,0 +1,104 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.ByteArrayInputStream
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.nio.ByteBuffer
+
+/**
+ * Host tests of Mp3FrameIndex and of seeking through it with the javamp3 backend. A seek must
+ * produce exactly the PCM that a decode from the start of the song produces at the same index.
+ */
+class Mp3FrameIndexTest {
+    // Collects the PCM it is given, and stops decoding once it holds maxBytes
+    private class BufferingSink(private val maxBytes: Int = Int.MAX_VALUE) : PcmSink {
+        val pcm = ByteArrayOutputStream()
+        var length = -1
+
+        override fun onLengthKnown(length: Int) {
+            this.length = length
+        }
+
+        override fun write(buffer: ByteBuffer): Boolean {
+            val bytes = ByteArray(buffer.remaining())
+            buffer.get(bytes)
+            pcm.write(bytes)
+            return pcm.size() < maxBytes
+        }
+    }
+
+    private val data = SONG_FILE.readBytes()
+
+    private val frameIndex = Mp3FrameIndex.scan(data)
+
+    @Test
+    fun scan_readsStreamParameters() {
+        assertEquals(SAMPLE_RATE, frameIndex.sampleRate)
+        assertEquals(1152, frameIndex.samplesPerFrame)
+        assertEquals(frameIndex.frameCount * 1152 * NUM_CHANNELS * BYTES_PER_SAMPLE, frameIndex.length)
+        for (frame in 1 until frameIndex.frameCount) {
+            assertTrue(frameIndex.getFrameOffset(frame) > frameIndex.getFrameOffset(frame - 1))
+        }
+    }
+
+    @Test
+    fun scan_lengthMatchesFullDecode() {
+        val sink = BufferingSink()
+        assertTrue(decode(0, sink))
+        assertEquals(frameIndex.length, sink.length)
+        assertEquals(frameIndex.length, sink.pcm.size())
+    }
+
+    @Test(expected = IllegalArgumentException::class)
+    fun scan_rejectsDataWithoutFrames() {
+        Mp3FrameIndex.scan(ByteArray(4096))
+    }
+
+    @Test
+    fun getPrerollFrame_isClampedToSong() {
+        assertEquals(0, frameIndex.getPrerollFrame(0))
+        assertEquals(frameIndex.frameCount - 3, frameIndex.getPrerollFrame(Int.MAX_VALUE))
+        val frame = 100
+        assertEquals(frame - 2, frameIndex.getPrerollFrame(frameIndex.getFrameStartIndex(frame)))
+    }
+
+    @Test
+    fun decodeIndexedStream_seekMatchesFullDecode() {
+        val fullSink = BufferingSink()
+        decode(0, fullSink)
+        val full = fullSink.pcm.toByteArray()
+        val frameBytes = frameIndex.getFrameStartIndex(1)
+        val startIndices = intArrayOf(
+            frameBytes,
+            frameIndex.getFrameStartIndex(3) + 4,
+            full.size / 3 / 4 * 4,
+            frameIndex.getFrameStartIndex(frameIndex.frameCount / 2),
+            full.size - SEEK_COMPARED_BYTES / 2 / 4 * 4
+        )
+        for (startIndex in startIndices) {
+            val sink = BufferingSink(SEEK_COMPARED_BYTES)
+            decode(startIndex, sink)
+            val length = minOf(SEEK_COMPARED_BYTES, full.size - startIndex)
+            assertArrayEquals(
+                "Seek to $startIndex",
+                full.copyOfRange(startIndex, startIndex + length),
+                sink.pcm.toByteArray().copyOf(length)
+            )
+        }
+    }
+
+    private fun decode(startIndex: Int, sink: BufferingSink): Boolean {
+        return JavaMp3AudioDecoder.decodeIndexedStream(ByteArrayInputStream(data), frameIndex, startIndex, sink)
+    }
+
+    companion object {
+        // Relative to the app module, which is the working directory of unit tests
+        private val SONG_FILE = File("src/main/res/raw/a_mighty_city_176.mp3")
+
+        private const val SEEK_COMPARED_BYTES = BYTES_PER_SECOND
+    }
+}
@@ -0,0 +1,100 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertArrayEquals
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteOrder
+import kotlin.math.abs
+
+/**
+ * Host tests of OutputResampler at the output rates of common devices, on synthetic stereo tones
+ */
+class OutputResamplerTest {
+    @Test
+    fun sameRateWithoutCorrectionIsCopied() {
+        val input = TestPcm.tone(TONE_HZ, SAMPLE_RATE)
+        val output = process(OutputResampler(SAMPLE_RATE), input, 0.0)
+        assertArrayEquals(input, output)
+    }
+
+    @Test
+    fun outputLengthFollowsRateRatio() {
+        val inputFrames = 10 * SAMPLE_RATE
+        val input = TestPcm.tone(TONE_HZ, inputFrames)
+        for (sampleRate in intArrayOf(22050, 32000, 48000, 96000)) {
+            val output = process(OutputResampler(sampleRate), input, 0.0)
+            val ratio = sampleRate.toDouble() / SAMPLE_RATE
+            // The last HALF_TAPS frames are held back until more input arrives
+            val expectedFrames = (inputFrames - HALF_TAPS) * ratio
+            val outputFrames = output.size.toDouble() / NUM_CHANNELS
+            assertEquals("Length at $sampleRate Hz", expectedFrames, outputFrames, ratio + 1)
+        }
+    }
+
+    @Test
+    fun outputLengthFollowsRateCorrection() {
+        val inputFrames = 10 * SAMPLE_RATE
+        val input = TestPcm.tone(TONE_HZ, inputFrames)
+        for (rateCorrection in doubleArrayOf(-0.02, 0.01)) {
+            val output = process(OutputResampler(48000), input, rateCorrection)
+            val ratio = 48000 / (SAMPLE_RATE * (1 + rateCorrection))
+            val expectedFrames = (inputFrames - HALF_TAPS) * ratio
+            val outputFrames = output.size.toDouble() / NUM_CHANNELS
+            assertEquals("Length at correction $rateCorrection", expectedFrames, outputFrames, ratio + 1)
+        }
+    }
+
+    @Test
+    fun pitchIsPreserved() {
+        val input = TestPcm.tone(TONE_HZ, 5 * SAMPLE_RATE)
+        for (sampleRate in intArrayOf(22050, 48000)) {
+            val output = process(OutputResampler(sampleRate), input, 0.0)
+            // getFrequency assumes SAMPLE_RATE, so scale by the actual output rate
+            val frequency = TestPcm.getFrequency(output) * sampleRate / SAMPLE_RATE
+            assertEquals("Pitch at $sampleRate Hz", TONE_HZ, frequency, TONE_HZ * 0.001)
+        }
+    }
+
+    @Test
+    fun switchingBetweenCopyingAndResamplingIsContinuous() {
+        val input = TestPcm.tone(100.0, 4 * SAMPLE_RATE)
+        val resampler = OutputResampler(SAMPLE_RATE)
+        val blockSamples = 1000 * NUM_CHANNELS
+        val output = ArrayList<Short>()
+        for ((block, start) in (0 until input.size step blockSamples).withIndex()) {
+            val rateCorrection = if (block / 10 % 2 == 0) 0.0 else 0.02
+            val samples = input.copyOfRange(start, minOf(start + blockSamples, input.size))
+            output.addAll(process(resampler, samples, rateCorrection).toList())
+        }
+        // A 100 Hz tone at this amplitude moves by at most about 115 per frame
+        for (i in NUM_CHANNELS until output.size) {
+            val step = abs(output[i] - output[i - NUM_CHANNELS])
+            assertTrue("Jump of $step at sample $i", step < 200)
+        }
+    }
+
+    // Passes input through resampler in blocks and returns all of its output
+    private fun process(resampler: OutputResampler, input: ShortArray, rateCorrection: Double): ShortArray {
+        val bytes = TestPcm.toBytes(input)
+        val output = ArrayList<Short>()
+        while (bytes.hasRemaining()) {
+            val block = bytes.slice().order(ByteOrder.LITTLE_ENDIAN)
+            block.limit(minOf(block.remaining(), BLOCK_FRAMES * NUM_CHANNELS * BYTES_PER_SAMPLE))
+            bytes.position(bytes.position() + block.remaining())
+            val result = resampler.process(block, rateCorrection).asShortBuffer()
+            while (result.hasRemaining()) {
+                output.add(result.get())
+            }
+        }
+        return output.toShortArray()
+    }
+
+    companion object {
+        private const val TONE_HZ = 1000.0
+        private const val BLOCK_FRAMES = 4096
+
+        // Half the length of the resampler's filter
+        private const val HALF_TAPS = 32
+    }
+}
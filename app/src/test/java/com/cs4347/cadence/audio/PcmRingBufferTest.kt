@@ -0,0 +1,109 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertFalse
+import org.junit.Assert.assertNull
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ByteBuffer
+import kotlin.concurrent.thread
+
+/**
+ * Host tests of PcmRingBuffer, including wrapping around its storage and blocking the producer
+ */
+class PcmRingBufferTest {
+    @Test
+    fun readsWrapAroundStorage() {
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(16))
+        assertTrue(ringBuffer.write(bytes(0, 10)))
+        assertEquals(10, read(ringBuffer, 10).size)
+        assertTrue(ringBuffer.write(bytes(10, 10)))
+        assertEquals(6, ringBuffer.remainingCapacity())
+        // A read stops at the end of the storage, and the rest follows from its start
+        val beforeEnd = read(ringBuffer, 16)
+        val afterEnd = read(ringBuffer, 16)
+        assertEquals(listOf<Byte>(10, 11, 12, 13, 14, 15), beforeEnd)
+        assertEquals(listOf<Byte>(16, 17, 18, 19), afterEnd)
+        assertEquals(0, ringBuffer.available())
+    }
+
+    @Test
+    fun peekDoesNotWaitForData() {
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(16))
+        val view = ringBuffer.peek(8)
+        assertEquals(0, view?.remaining())
+    }
+
+    @Test
+    fun peekReturnsNullOnceDrained() {
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(16))
+        ringBuffer.write(bytes(0, 4))
+        ringBuffer.markEndOfStream()
+        assertFalse(ringBuffer.isDrained())
+        assertEquals(4, read(ringBuffer, 8).size)
+        assertTrue(ringBuffer.isDrained())
+        assertNull(ringBuffer.peek(8))
+    }
+
+    @Test
+    fun producerBlocksUntilConsumerFrees() {
+        val capacity = 64
+        val totalBytes = 10 * capacity + 7
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(capacity))
+        val producer = thread {
+            // Writes larger than the capacity have to wait for the consumer part way through
+            for (start in 0 until totalBytes step 100) {
+                ringBuffer.write(bytes(start, minOf(100, totalBytes - start)))
+            }
+            ringBuffer.markEndOfStream()
+        }
+        val received = ArrayList<Byte>()
+        while (!ringBuffer.isDrained()) {
+            assertTrue(ringBuffer.awaitAvailable(1, 5000))
+            received.addAll(read(ringBuffer, 16))
+        }
+        producer.join()
+        assertEquals(totalBytes, received.size)
+        for (i in received.indices) {
+            assertEquals(i.toByte(), received[i])
+        }
+    }
+
+    @Test
+    fun closeReleasesBlockedProducer() {
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(16))
+        var isWritten = true
+        val producer = thread {
+            isWritten = ringBuffer.write(bytes(0, 32))
+        }
+        assertTrue(ringBuffer.awaitAvailable(16, 5000))
+        ringBuffer.close()
+        producer.join(5000)
+        assertFalse(producer.isAlive)
+        assertFalse(isWritten)
+        assertNull(ringBuffer.peek(8))
+    }
+
+    @Test
+    fun awaitAvailableTimesOut() {
+        val ringBuffer = PcmRingBuffer(ByteBuffer.allocate(16))
+        ringBuffer.write(bytes(0, 4))
+        assertFalse(ringBuffer.awaitAvailable(8, 10))
+        ringBuffer.markEndOfStream()
+        assertTrue(ringBuffer.awaitAvailable(8, 10))
+    }
+
+    // Bytes counting up from start, wrapping at 256
+    private fun bytes(start: Int, count: Int): ByteBuffer {
+        return ByteBuffer.wrap(ByteArray(count) { (start + it).toByte() })
+    }
+
+    // Peeks and consumes up to length bytes
+    private fun read(ringBuffer: PcmRingBuffer, length: Int): List<Byte> {
+        val view = ringBuffer.peek(length) ?: return emptyList()
+        val bytes = ByteArray(view.remaining())
+        view.get(bytes)
+        ringBuffer.consume(bytes.size)
+        return bytes.toList()
+    }
+}
@@ -0,0 +1,94 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.io.File
+import java.io.FileInputStream
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+
+/**
+ * Host tests of TempoEstimator on synthetic onset envelopes and on songs from res/raw, which are
+ * decoded and analyzed the way SongTempoAnalyzer does
+ */
+class TempoEstimatorTest {
+    @Test
+    fun straightBeatsAreFoundConfidently() {
+        // Strong beats with weaker eighth notes between them
+        val onsets = pulses(150.0) { if (it % 2 == 0) 1f else 0.5f }
+        val estimate = TempoEstimator.estimate(onsets)
+        assertEquals(150.0, estimate.bpm, 1.0)
+        assertTrue(estimate.confidence >= MIN_TEMPO_CONFIDENCE)
+    }
+
+    @Test
+    fun tripletFeelIsNotConfident() {
+        // Beats at 180 BPM with weaker eighth notes, one of which falls on every beat of 120 BPM
+        val onsets = pulses(180.0) { if (it % 2 == 0) 1f else 0.6f }
+        val estimate = TempoEstimator.estimate(onsets)
+        assertTrue(
+            "${estimate.bpm} BPM with confidence ${estimate.confidence}",
+            Math.abs(estimate.bpm - 180) <= 1 || estimate.confidence < MIN_TEMPO_CONFIDENCE
+        )
+    }
+
+    @Test
+    fun labelledSongsAreEstimated() {
+        for (name in LABELLED_SONGS) {
+            val bpm = name.substringAfterLast('_').toDouble()
+            val estimate = TempoEstimator.estimate(getOnsets(name))
+            assertEquals(name, bpm, estimate.bpm, 1.0)
+            assertTrue(name, estimate.confidence >= MIN_TEMPO_CONFIDENCE)
+        }
+    }
+
+    @Test
+    fun threeToTwoErrorIsNotConfident() {
+        // Scores highest at 120 BPM, whose beats only every other beat of the song falls on
+        val estimate = TempoEstimator.estimate(getOnsets("general_submission_180"))
+        assertTrue(
+            "${estimate.bpm} BPM with confidence ${estimate.confidence}",
+            Math.abs(estimate.bpm - 180) <= 1 || estimate.confidence < MIN_TEMPO_CONFIDENCE
+        )
+    }
+
+    // Onset envelope of ANALYSIS_SECONDS with a pulse of the input strength on each eighth note
+    // at bpm
+    private fun pulses(bpm: Double, strength: (Int) -> Float): FloatArray {
+        val hopsPerSecond = SAMPLE_RATE.toDouble() / OnsetEnvelope.HOP_FRAMES
+        val onsets = FloatArray((ANALYSIS_SECONDS * hopsPerSecond).toInt())
+        val hopsPerEighth = 60 * hopsPerSecond / bpm / 2
+        var eighth = 0
+        while ((eighth * hopsPerEighth).toInt() < onsets.size) {
+            onsets[(eighth * hopsPerEighth).toInt()] = strength(eighth)
+            eighth++
+        }
+        return onsets
+    }
+
+    // Onset envelope of the first ANALYSIS_SECONDS of the raw resource with the input name
+    private fun getOnsets(name: String): FloatArray {
+        val envelope = OnsetEnvelope()
+        var bytesDecoded = 0
+        val file = File("$RAW_RESOURCE_DIRECTORY/$name.mp3")
+        JavaMp3AudioDecoder.decodeStream(FileInputStream(file), 0, object : PcmSink {
+            override fun write(buffer: ByteBuffer): Boolean {
+                bytesDecoded += buffer.remaining()
+                envelope.add(buffer.order(ByteOrder.LITTLE_ENDIAN).asShortBuffer())
+                return bytesDecoded < ANALYSIS_SECONDS * BYTES_PER_SECOND
+            }
+        })
+        return envelope.toArray()
+    }
+
+    companion object {
+        // Relative to the app module, which is the working directory of unit tests
+        private const val RAW_RESOURCE_DIRECTORY = "src/main/res/raw"
+
+        // As analyzed by SongTempoAnalyzer
+        private const val ANALYSIS_SECONDS = 120
+
+        private val LABELLED_SONGS = arrayOf("shimmy_155", "the_big_boom_120")
+    }
+}
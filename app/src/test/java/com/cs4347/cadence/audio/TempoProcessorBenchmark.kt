@@ -0,0 +1,99 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertFalse
+import org.junit.Assume.assumeTrue
+import org.junit.Test
+import java.io.ByteArrayOutputStream
+import java.io.File
+import java.io.FileInputStream
+import java.lang.management.ManagementFactory
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+
+/**
+ * Host benchmark of the tempo processors. Decodes the first song in res/raw, streams it through
+ * each processor in blocks at TEMPO and reports the CPU time taken as a share of one core while
+ * the song plays.
+ *
+ * Skipped unless the CADENCE_BENCHMARK environment variable is set, e.g.
+ * `CADENCE_BENCHMARK=1 ./gradlew :app:testDebugUnitTest --tests '*TempoProcessorBenchmark'`
+ */
+class TempoProcessorBenchmark {
+    private class BufferingSink : PcmSink {
+        val pcm = ByteArrayOutputStream()
+
+        override fun write(buffer: ByteBuffer): Boolean {
+            val bytes = ByteArray(buffer.remaining())
+            buffer.get(bytes)
+            pcm.write(bytes)
+            return true
+        }
+    }
+
+    @Test
+    fun processFirstRawResource() {
+        assumeTrue(System.getenv("CADENCE_BENCHMARK") != null)
+        val file = File(RAW_RESOURCE_DIRECTORY).listFiles()
+            ?.filter { it.name.endsWith(".mp3") }
+            ?.sortedBy { it.name }
+            ?.firstOrNull()
+        assertFalse("No files found in $RAW_RESOURCE_DIRECTORY", file == null)
+        val sink = BufferingSink()
+        JavaMp3AudioDecoder.decodeStream(FileInputStream(file!!), 0, sink)
+        val pcm = ByteBuffer.wrap(sink.pcm.toByteArray()).order(ByteOrder.LITTLE_ENDIAN)
+        val songSeconds = pcm.remaining().toDouble() / BYTES_PER_SECOND
+        println(String.format("%s: %.1f s at tempo %.2f", file.name, songSeconds, TEMPO))
+
+        // Warm up the JIT before timing anything
+        process(WsolaTimeStretcher(), pcm)
+        process(VarispeedResampler(), pcm)
+        val wsolaNanos = process(WsolaTimeStretcher(), pcm)
+        val varispeedNanos = process(VarispeedResampler(), pcm)
+        printResult("WsolaTimeStretcher", pcm.remaining(), wsolaNanos)
+        printResult("VarispeedResampler", pcm.remaining(), varispeedNanos)
+        val ratio = varispeedNanos.toDouble() / wsolaNanos
+        println(String.format("Varispeed / WSOLA CPU time: %.2f", ratio))
+    }
+
+    // Streams all of pcm through processor the way TempoSongStream does. Returns the CPU time of
+    // this thread taken in nanoseconds.
+    private fun process(processor: TempoProcessor, pcm: ByteBuffer): Long {
+        val threadBean = ManagementFactory.getThreadMXBean()
+        val input = pcm.duplicate().order(ByteOrder.LITTLE_ENDIAN)
+        val output = ShortBuffer.allocate(BLOCK_FRAMES * NUM_CHANNELS * 2)
+        processor.tempo = TEMPO
+        val startTime = threadBean.currentThreadCpuTime
+        while (input.hasRemaining()) {
+            val block = input.slice().order(ByteOrder.LITTLE_ENDIAN)
+            block.limit(minOf(block.remaining(), BLOCK_FRAMES * NUM_CHANNELS * BYTES_PER_SAMPLE))
+            input.position(input.position() + block.remaining())
+            processor.putInput(block)
+            while (processor.availableFrames > 0) {
+                output.clear()
+                processor.receiveOutput(output)
+            }
+        }
+        processor.flush()
+        return threadBean.currentThreadCpuTime - startTime
+    }
+
+    private fun printResult(name: String, pcmBytes: Int, cpuNanos: Long) {
+        val audioSeconds = pcmBytes.toDouble() / BYTES_PER_SECOND / TEMPO
+        println(
+            String.format(
+                "%-20s %8.3f s CPU %7.3f%% of one core while playing",
+                name,
+                cpuNanos / 1e9,
+                cpuNanos / 1e9 / audioSeconds * 100
+            )
+        )
+    }
+
+    companion object {
+        // Relative to the app module, which is the working directory of unit tests
+        private const val RAW_RESOURCE_DIRECTORY = "src/main/res/raw"
+        private const val BLOCK_FRAMES = 4096
+        private const val TEMPO = 1.05
+    }
+}
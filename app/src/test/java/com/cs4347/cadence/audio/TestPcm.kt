@@ -0,0 +1,64 @@
+package com.cs4347.cadence.audio
+
+import java.nio.ByteBuffer
+import java.nio.ByteOrder
+import java.nio.ShortBuffer
+import kotlin.math.PI
+import kotlin.math.sin
+
+// Synthetic 16-bit stereo PCM and helpers shared by the unit tests of the audio processors
+object TestPcm {
+    // Interleaved stereo sine wave of the input frequency, length and amplitude
+    fun tone(frequency: Double, frames: Int, amplitude: Int = 8000): ShortArray {
+        val samples = ShortArray(frames * NUM_CHANNELS)
+        for (frame in 0 until frames) {
+            val sample = (amplitude * sin(2 * PI * frequency * frame / SAMPLE_RATE)).toInt().toShort()
+            samples[frame * NUM_CHANNELS] = sample
+            samples[frame * NUM_CHANNELS + 1] = sample
+        }
+        return samples
+    }
+
+    // Little-endian bytes of samples, positioned at their start
+    fun toBytes(samples: ShortArray): ByteBuffer {
+        val bytes = ByteBuffer.allocate(samples.size * BYTES_PER_SAMPLE).order(ByteOrder.LITTLE_ENDIAN)
+        bytes.asShortBuffer().put(samples)
+        return bytes
+    }
+
+    // Estimates the frequency of the left channel of a tone from its rising zero crossings
+    fun getFrequency(samples: ShortArray): Double {
+        var firstCrossing = -1
+        var lastCrossing = -1
+        var crossings = 0
+        for (frame in 1 until samples.size / NUM_CHANNELS) {
+            if (samples[(frame - 1) * NUM_CHANNELS] < 0 && samples[frame * NUM_CHANNELS] >= 0) {
+                if (firstCrossing < 0) {
+                    firstCrossing = frame
+                } else {
+                    crossings++
+                }
+                lastCrossing = frame
+            }
+        }
+        return crossings.toDouble() * SAMPLE_RATE / (lastCrossing - firstCrossing)
+    }
+
+    // Streams input through processor at tempo in blocks of blockFrames, the way TempoSongStream
+    // feeds it, then flushes it. Returns all of its output.
+    fun process(processor: TempoProcessor, input: ShortArray, tempo: Double, blockFrames: Int = 4096): ShortArray {
+        processor.tempo = tempo
+        val bytes = toBytes(input)
+        val output = ShortBuffer.allocate((input.size / MIN_TEMPO).toInt() + SAMPLE_RATE * NUM_CHANNELS)
+        while (bytes.hasRemaining()) {
+            val block = bytes.slice().order(ByteOrder.LITTLE_ENDIAN)
+            block.limit(minOf(block.remaining(), blockFrames * NUM_CHANNELS * BYTES_PER_SAMPLE))
+            bytes.position(bytes.position() + block.remaining())
+            processor.putInput(block)
+            processor.receiveOutput(output)
+        }
+        processor.flush()
+        processor.receiveOutput(output)
+        return output.array().copyOf(output.position())
+    }
+}
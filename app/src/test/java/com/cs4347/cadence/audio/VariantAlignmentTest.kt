@@ -0,0 +1,82 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertNotNull
+import org.junit.Assert.assertNull
+import org.junit.Test
+import kotlin.math.roundToInt
+
+/**
+ * Host tests of VariantAlignment between synthetic beat grids of the variants of a song
+ */
+class VariantAlignmentTest {
+    @Test
+    fun beatsMapToMatchingBeats() {
+        val from = evenGrid(120, 1000, 64)
+        val to = evenGrid(132, 909, 64)
+        val alignment = VariantAlignment.create(from, 120, to, 132)!!
+        for (beat in 0 until 63) {
+            assertEquals(toIndex(to.getBeatFrame(beat)), alignment.map(toIndex(from.getBeatFrame(beat))))
+        }
+    }
+
+    @Test
+    fun positionsBetweenBeatsAreInterpolated() {
+        val from = BeatGrid(intArrayOf(0, 1000, 2000, 3000, 4000, 5000))
+        // The second beat of to was stretched unevenly
+        val to = BeatGrid(intArrayOf(0, 900, 2100, 2800, 3700, 4600))
+        val alignment = VariantAlignment.create(from, 100, to, 110)!!
+        assertEquals(toIndex(900 + 300), alignment.map(toIndex(1250)))
+        assertEquals(toIndex(2100 + 350), alignment.map(toIndex(2500)))
+    }
+
+    @Test
+    fun missedIntroBeatsAreSkipped() {
+        val from = evenGrid(120, 1000, 64)
+        // The first two beats of to were not detected
+        val fullTo = evenGrid(125, 960, 64)
+        val to = BeatGrid(IntArray(62) { fullTo.getBeatFrame(it + 2) })
+        val alignment = VariantAlignment.create(from, 120, to, 125)!!
+        assertEquals(toIndex(to.getBeatFrame(8)), alignment.map(toIndex(from.getBeatFrame(10))))
+    }
+
+    @Test
+    fun positionsOutsideMatchedBeatsAreStretchedEvenly() {
+        val from = evenGrid(120, 22050, 16)
+        val to = evenGrid(126, 21000, 16)
+        val alignment = VariantAlignment.create(from, 120, to, 126)!!
+        assertEquals(toIndex((10000 * 120.0 / 126).roundToInt()), alignment.map(toIndex(10000)))
+        val afterEnd = from.getBeatFrame(15) + 5000
+        assertEquals(toIndex((afterEnd * 120.0 / 126).roundToInt()), alignment.map(toIndex(afterEnd)))
+    }
+
+    @Test
+    fun mismatchedGridsAreRejected() {
+        val from = evenGrid(120, 1000, 64)
+        // Beats of to fall between those of from, at a tempo that does not match its BPM
+        val to = evenGrid(100, 12000, 64)
+        assertNull(VariantAlignment.create(from, 120, to, 126))
+        assertNotNull(VariantAlignment.create(from, 120, from, 120))
+    }
+
+    @Test
+    fun nextBeatIndexRoundsUpToBeat() {
+        val from = BeatGrid(intArrayOf(100, 200, 300))
+        val alignment = VariantAlignment.create(from, 120, from, 120)!!
+        assertEquals(toIndex(100), alignment.getNextBeatIndex(0))
+        assertEquals(toIndex(200), alignment.getNextBeatIndex(toIndex(200)))
+        // A byte index part way through the frame before a beat rounds up to it
+        assertEquals(toIndex(200), alignment.getNextBeatIndex(toIndex(199) + 1))
+        assertEquals(-1, alignment.getNextBeatIndex(toIndex(300) + 1))
+    }
+
+    // Grid of count beats at bpm, starting at firstFrame
+    private fun evenGrid(bpm: Int, firstFrame: Int, count: Int): BeatGrid {
+        val beatFrames = 60.0 * SAMPLE_RATE / bpm
+        return BeatGrid(IntArray(count) { (firstFrame + it * beatFrames).roundToInt() })
+    }
+
+    private fun toIndex(frame: Int): Int {
+        return frame * NUM_CHANNELS * BYTES_PER_SAMPLE
+    }
+}
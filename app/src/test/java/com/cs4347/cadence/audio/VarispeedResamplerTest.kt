@@ -0,0 +1,75 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import kotlin.math.abs
+
+/**
+ * Host tests of VarispeedResampler on synthetic stereo tones
+ */
+class VarispeedResamplerTest {
+    @Test
+    fun outputLengthFollowsTempo() {
+        val inputFrames = 30 * SAMPLE_RATE
+        val input = TestPcm.tone(TONE_HZ, inputFrames)
+        for (tempo in doubleArrayOf(MIN_TEMPO, 0.95, 1.0, 1.05, MAX_TEMPO)) {
+            val output = TestPcm.process(VarispeedResampler(), input, tempo)
+            val expectedFrames = inputFrames / tempo
+            val outputFrames = output.size.toDouble() / NUM_CHANNELS
+            assertEquals("Length at tempo $tempo", expectedFrames, outputFrames, 1.0)
+        }
+    }
+
+    @Test
+    fun pitchFollowsTempo() {
+        val input = TestPcm.tone(TONE_HZ, 10 * SAMPLE_RATE)
+        for (tempo in doubleArrayOf(MIN_TEMPO, MAX_TEMPO)) {
+            val output = TestPcm.process(VarispeedResampler(), input, tempo)
+            val expectedHz = TONE_HZ * tempo
+            val frequency = TestPcm.getFrequency(output)
+            assertEquals("Pitch at tempo $tempo", expectedHz, frequency, expectedHz * 0.001)
+        }
+    }
+
+    @Test
+    fun constantInputHasUnityGain() {
+        val input = ShortArray(SAMPLE_RATE * NUM_CHANNELS) { 10000 }
+        val output = TestPcm.process(VarispeedResampler(), input, 1.1, blockFrames = 1000)
+        // The filter ramps in from the silence before the first frame and out into the padding
+        // after the last
+        for (i in 8 * NUM_CHANNELS until output.size - 8 * NUM_CHANNELS) {
+            assertTrue("Sample $i is ${output[i]}", abs(output[i] - 10000) <= 1)
+        }
+    }
+
+    @Test
+    fun fullScaleInputSaturates() {
+        // Full scale square wave, whose plateaus must come out at full scale rather than wrap
+        val periodFrames = 100
+        val input = ShortArray(SAMPLE_RATE * NUM_CHANNELS) {
+            if (it / NUM_CHANNELS % periodFrames < periodFrames / 2) Short.MAX_VALUE else Short.MIN_VALUE
+        }
+        val tempo = 0.9
+        val output = TestPcm.process(VarispeedResampler(), input, tempo)
+        var plateauFrames = 0
+        for (frame in 0 until output.size / NUM_CHANNELS) {
+            // Output frame i is interpolated at input frame i * tempo
+            val inputFrame = (frame * tempo).toInt()
+            val phase = inputFrame % periodFrames
+            if (phase < 8 || phase in periodFrames / 2 - 8 until periodFrames / 2 + 8 ||
+                phase >= periodFrames - 8 || inputFrame >= SAMPLE_RATE - 8
+            ) {
+                continue
+            }
+            val sample = output[frame * NUM_CHANNELS]
+            assertTrue("Frame $frame is $sample", abs(sample - input[inputFrame * NUM_CHANNELS]) <= 1)
+            plateauFrames++
+        }
+        assertTrue(plateauFrames > SAMPLE_RATE / 2)
+    }
+
+    companion object {
+        private const val TONE_HZ = 440.0
+    }
+}
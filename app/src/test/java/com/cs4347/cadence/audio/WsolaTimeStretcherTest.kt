@@ -0,0 +1,57 @@
+package com.cs4347.cadence.audio
+
+import org.junit.Assert.assertEquals
+import org.junit.Assert.assertTrue
+import org.junit.Test
+import java.nio.ShortBuffer
+import kotlin.math.abs
+
+/**
+ * Host tests of WsolaTimeStretcher on synthetic stereo tones
+ */
+class WsolaTimeStretcherTest {
+    @Test
+    fun outputLengthFollowsTempo() {
+        val inputFrames = 30 * SAMPLE_RATE
+        val input = TestPcm.tone(TONE_HZ, inputFrames)
+        for (tempo in doubleArrayOf(MIN_TEMPO, 0.95, 1.0, 1.05, MAX_TEMPO)) {
+            val output = TestPcm.process(WsolaTimeStretcher(), input, tempo)
+            val expectedFrames = inputFrames / tempo
+            val error = abs(output.size / NUM_CHANNELS - expectedFrames) / expectedFrames
+            assertTrue("Length error $error at tempo $tempo", error <= MAX_LENGTH_ERROR)
+        }
+    }
+
+    @Test
+    fun pitchIsPreserved() {
+        val input = TestPcm.tone(TONE_HZ, 10 * SAMPLE_RATE)
+        for (tempo in doubleArrayOf(MIN_TEMPO, MAX_TEMPO)) {
+            val output = TestPcm.process(WsolaTimeStretcher(), input, tempo)
+            assertEquals("Pitch at tempo $tempo", TONE_HZ, TestPcm.getFrequency(output), TONE_HZ * 0.01)
+        }
+    }
+
+    @Test
+    fun silenceStaysSilent() {
+        val output = TestPcm.process(WsolaTimeStretcher(), ShortArray(5 * SAMPLE_RATE * NUM_CHANNELS), 1.1)
+        assertTrue(output.all { it.toInt() == 0 })
+    }
+
+    @Test
+    fun flushDrainsQueuedInput() {
+        val stretcher = WsolaTimeStretcher()
+        stretcher.putInput(TestPcm.toBytes(TestPcm.tone(TONE_HZ, SAMPLE_RATE)))
+        assertTrue(stretcher.queuedInputFrames > 0)
+        stretcher.flush()
+        stretcher.receiveOutput(ShortBuffer.allocate(2 * SAMPLE_RATE * NUM_CHANNELS))
+        assertEquals(0, stretcher.availableFrames)
+        assertEquals(0, stretcher.queuedInputFrames)
+    }
+
+    companion object {
+        private const val TONE_HZ = 440.0
+
+        // WSOLA only approximates the tempo segment by segment, but must not drift from it
+        private const val MAX_LENGTH_ERROR = 0.0005
+    }
+}